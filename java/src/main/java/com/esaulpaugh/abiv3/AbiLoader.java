@@ -0,0 +1,150 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Builds {@link FunctionTable}s from Solidity ABI JSON. Parameter types are built into {@link V3Type}s directly,
+ * including tuples described by nested {@code components}, without composing signature strings to be re-parsed.
+ * Functions are numbered in the order in which they appear in the ABI. Entries other than functions are ignored.
+ * <p>
+ * The JSON is streamed: of each entry only its {@code type}, {@code name} and parameters' {@code type}s and
+ * {@code components} are kept, and everything else, such as {@code outputs}, is skipped as it is read.
+ */
+public final class AbiLoader {
+
+    private AbiLoader() {}
+
+    private static final String TUPLE = "tuple";
+
+    public static FunctionTable load(Path path) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return load(reader);
+        }
+    }
+
+    public static FunctionTable load(Reader reader) throws IOException {
+        final Json json = new Json(reader);
+        final List<String> names = new ArrayList<>();
+        final List<V3Type> types = new ArrayList<>();
+        if (json.beginArray()) {
+            do {
+                String kind = null;
+                String name = null;
+                List<Param> inputs = null;
+                for (String key = json.beginObject(); key != null; key = json.nextKey()) {
+                    switch (key) {
+                    case "type": kind = json.stringOrSkip(); break;
+                    case "name": name = json.stringOrSkip(); break;
+                    case "inputs": inputs = readParams(json); break;
+                    default: json.skipValue();
+                    }
+                }
+                if (kind == null || "function".equals(kind)) {
+                    if (name == null) throw new IllegalArgumentException("function missing name");
+                    names.add(name);
+                    types.add(tupleOf(inputs));
+                }
+            } while (json.nextElement());
+        }
+        json.end();
+        return new FunctionTable(names.toArray(new String[0]), types.toArray(new V3Type[0]));
+    }
+
+    /**
+     * Loads many ABI files in parallel on the common fork/join pool.
+     *
+     * @param paths the files
+     * @return the tables, in the same order as {@code paths}
+     * @throws UncheckedIOException if any file could not be read
+     */
+    public static List<FunctionTable> loadAll(List<Path> paths) {
+        return paths.parallelStream()
+                .map(p -> {
+                    try {
+                        return load(p);
+                    } catch (IOException ioe) {
+                        throw new UncheckedIOException(p.toString(), ioe);
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+
+    /** A parameter as declared, kept until its entry is known to be a function. */
+    private static final class Param {
+        String type;
+        List<Param> components;
+    }
+
+    private static List<Param> readParams(Json json) throws IOException {
+        final List<Param> params = new ArrayList<>();
+        if (!json.nullValue() && json.beginArray()) {
+            do {
+                final Param p = new Param();
+                for (String key = json.beginObject(); key != null; key = json.nextKey()) {
+                    switch (key) {
+                    case "type": p.type = json.stringOrSkip(); break;
+                    case "components": p.components = readParams(json); break;
+                    default: json.skipValue();
+                    }
+                }
+                params.add(p);
+            } while (json.nextElement());
+        }
+        return params;
+    }
+
+    private static V3Type tupleOf(List<Param> params) {
+        final V3Type[] elements = new V3Type[params != null ? params.size() : 0];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = typeOf(params.get(i));
+        }
+        return new V3Type(elements);
+    }
+
+    private static V3Type typeOf(Param param) {
+        final String type = param.type;
+        if (type == null) throw new IllegalArgumentException("parameter missing type");
+        if (type.startsWith(TUPLE)) {
+            if (!isArraySuffix(type, TUPLE.length())) throw new IllegalArgumentException("unrecognized type: " + type);
+            final V3Type tuple = tupleOf(param.components);
+            return type.length() == TUPLE.length() ? tuple : TypeFactory.create(type, tuple);
+        }
+        return TypeFactory.create(type);
+    }
+
+    /** Whether {@code type} from {@code i} on is nothing but array brackets, each empty or holding a decimal length. */
+    private static boolean isArraySuffix(String type, int i) {
+        final int n = type.length();
+        while (i < n) {
+            if (type.charAt(i++) != '[') return false;
+            while (i < n && type.charAt(i) >= '0' && type.charAt(i) <= '9') {
+                i++;
+            }
+            if (i == n || type.charAt(i++) != ']') return false;
+        }
+        return true;
+    }
+}
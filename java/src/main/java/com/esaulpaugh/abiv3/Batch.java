@@ -0,0 +1,62 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Decodes batches of calls and hands each call's arguments to a handler which may block, e.g. on a database write. On
+ * Java 21 and later every call gets its own virtual thread, so a batch of thousands waits concurrently; before that,
+ * calls share one platform thread per processor.
+ */
+public final class Batch {
+
+    private Batch() {}
+
+    /**
+     * Decodes each call and applies the handler to its arguments, all concurrently, and returns the handler's results in
+     * the order of the calls. If any decoding or handler fails, the rest are cancelled and the first failure, in call
+     * order, is thrown.
+     */
+    public static <R> List<R> decodeEach(V3Type tupleType, List<byte[]> calls, Function<Object[], R> handler) throws InterruptedException {
+        final ExecutorService executor = Threads.newExecutor();
+        try {
+            final List<Future<R>> futures = new ArrayList<>(calls.size());
+            for (byte[] call : calls) {
+                futures.add(executor.submit(() -> handler.apply(V3.decodeFunction(tupleType, call))));
+            }
+            final List<R> results = new ArrayList<>(futures.size());
+            for (Future<R> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException ee) {
+                    final Throwable cause = ee.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IllegalStateException(cause);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
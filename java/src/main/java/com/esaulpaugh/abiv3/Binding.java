@@ -0,0 +1,319 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+
+/**
+ * Binds a tuple type to a user class. Decoding invokes the class's constructor directly with the decoded values and
+ * encoding reads the values back through getters, so neither direction builds an intermediate {@code Object[]}.
+ * Constructor and getters are resolved into {@link MethodHandle}s once, at creation. A tuple element (or an array of
+ * tuples) whose constructor parameter is some class other than {@code Object[]} is bound to that class in turn.
+ * Integer elements may bind to {@code long} or {@code int} parameters as well as {@link BigInteger}.
+ * <p>
+ * Limitations: the class must have a public constructor taking every element in order; classes populated through a
+ * no-arg constructor and setters are not supported. Bindings created implicitly for nested classes have no getters,
+ * since their names cannot be inferred, so encoding an object which holds one throws {@link IllegalStateException}
+ * unless a binding with getters is supplied through {@link #withNested(int, Binding)}.
+ */
+public final class Binding<T> {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodHandle DECODE;
+    private static final MethodHandle DECODE_BOOLEAN;
+    private static final MethodHandle DECODE_LONG;
+    private static final MethodHandle DECODE_INT;
+    private static final MethodHandle DECODE_BOUND_ARRAY;
+
+    static {
+        try {
+            DECODE = LOOKUP.findStatic(V3.class, "decode", MethodType.methodType(Object.class, V3Type.class, ByteBuffer.class, boolean.class));
+            DECODE_BOOLEAN = LOOKUP.findStatic(V3.class, "decodeBoolean", MethodType.methodType(boolean.class, ByteBuffer.class));
+            DECODE_LONG = LOOKUP.findStatic(Binding.class, "decodeLong", MethodType.methodType(long.class, V3Type.class, ByteBuffer.class, boolean.class));
+            DECODE_INT = LOOKUP.findStatic(Binding.class, "decodeInt", MethodType.methodType(int.class, V3Type.class, ByteBuffer.class, boolean.class));
+            DECODE_BOUND_ARRAY = LOOKUP.findStatic(Binding.class, "decodeBoundArray", MethodType.methodType(Object[].class, V3Type.class, Binding.class, ByteBuffer.class, boolean.class));
+        } catch (ReflectiveOperationException roe) {
+            throw new ExceptionInInitializerError(roe);
+        }
+    }
+
+    final V3Type tupleType;
+    final Class<T> target;
+    private final IntFunction<Object[]> arrayFactory; // creates arrays of target, for arrays of tuples
+    private final MethodHandle constructor;
+    private final MethodHandle[] getters; // each of type (Object)Object; null if the binding is decode-only
+    private final Binding<?>[] nested; // per element; non-null where a tuple or an array of tuples binds to a class
+    private final MethodHandle internalReader; // (ByteBuffer)Object
+    private final MethodHandle externalReader;
+
+    private Binding(V3Type tupleType, Class<T> target, MethodHandle constructor, MethodHandle[] getters, Binding<?>[] nested) {
+        this.tupleType = tupleType;
+        this.target = target;
+        this.arrayFactory = V3Type.arrayFactory(target);
+        this.constructor = constructor;
+        this.getters = getters;
+        this.nested = nested;
+        this.internalReader = buildReader(false);
+        this.externalReader = buildReader(true);
+    }
+
+    /**
+     * Creates a binding to the public constructor of {@code target} whose arity equals the number of tuple elements.
+     *
+     * @param tupleType   the tuple type
+     * @param target      the class to bind to
+     * @param getterNames the names of the public no-arg methods which return the tuple's elements, in order; or none,
+     *                    for a decode-only binding
+     * @return the binding
+     */
+    public static <T> Binding<T> of(V3Type tupleType, Class<T> target, String... getterNames) {
+        if (tupleType.typeCode != V3Type.TYPE_CODE_TUPLE) throw new IllegalArgumentException("not a tuple type: " + tupleType.canonicalType);
+        final int n = tupleType.elementTypes.length;
+        if (getterNames.length != 0 && getterNames.length != n) throw new IllegalArgumentException("expected " + n + " getters");
+        try {
+            final MethodHandle constructor = LOOKUP.unreflectConstructor(findConstructor(target, n));
+            MethodHandle[] getters = null;
+            if (getterNames.length != 0) {
+                getters = new MethodHandle[n];
+                for (int i = 0; i < n; i++) {
+                    getters[i] = LOOKUP.unreflect(target.getMethod(getterNames[i]))
+                            .asType(MethodType.methodType(Object.class, Object.class));
+                }
+            }
+            final Binding<?>[] nested = new Binding<?>[n];
+            for (int i = 0; i < n; i++) {
+                final V3Type et = tupleType.elementTypes[i];
+                final Class<?> p = constructor.type().parameterType(i);
+                checkWidth(et, p);
+                if (et.typeCode == V3Type.TYPE_CODE_TUPLE && isUserClass(p)) {
+                    nested[i] = of(et, p);
+                } else if (et.typeCode == V3Type.TYPE_CODE_ARRAY
+                        && et.elementType.typeCode == V3Type.TYPE_CODE_TUPLE
+                        && p.isArray() && isUserClass(p.getComponentType())) {
+                    nested[i] = of(et.elementType, p.getComponentType());
+                }
+            }
+            return new Binding<>(tupleType, target, constructor, getters, nested);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns a copy of this binding which uses {@code binding} for the tuple element (or array of tuples) at
+     * {@code index}. Bindings created implicitly for nested classes are decode-only, so supply one here to encode them.
+     */
+    public Binding<T> withNested(int index, Binding<?> binding) {
+        final Binding<?> existing = nested[index];
+        if (existing == null) throw new IllegalArgumentException("element " + index + " is not bound to a class");
+        if (existing.target != binding.target || !existing.tupleType.canonicalType.equals(binding.tupleType.canonicalType)) {
+            throw new IllegalArgumentException("incompatible binding for element " + index);
+        }
+        final Binding<?>[] copy = nested.clone();
+        copy[index] = binding;
+        return new Binding<>(tupleType, target, constructor, getters, copy);
+    }
+
+    T decode(ByteBuffer bb, boolean external) {
+        try {
+            return target.cast((Object) (external ? externalReader : internalReader).invokeExact(bb));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    int measure(Object obj, boolean external) {
+        final MethodHandle[] getters = getters();
+        int len = 0;
+        for (int i = 0; i < getters.length; i++) {
+            final V3Type et = tupleType.elementTypes[i];
+            final Object val = get(getters[i], obj);
+            final Binding<?> b = nested[i];
+            if (b == null) {
+                len += V3.measure(et, toV3(et, val), external);
+            } else if (et.typeCode == V3Type.TYPE_CODE_ARRAY) {
+                final Object[] arr = (Object[]) val;
+                V3.validateLength(et.arrayLen, arr.length);
+                len += V3.lengthPrefixLength(et, arr.length);
+                for (Object e : arr) {
+                    len += b.measure(e, external);
+                }
+            } else {
+                len += b.measure(val, external);
+            }
+        }
+        return len;
+    }
+
+    void encode(Object obj, boolean external, ByteBuffer dest) {
+        final MethodHandle[] getters = getters();
+        for (int i = 0; i < getters.length; i++) {
+            final V3Type et = tupleType.elementTypes[i];
+            final Object val = get(getters[i], obj);
+            final Binding<?> b = nested[i];
+            if (b == null) {
+                V3.encode(et, toV3(et, val), external, dest);
+            } else if (et.typeCode == V3Type.TYPE_CODE_ARRAY) {
+                final Object[] arr = (Object[]) val;
+                if (et.arrayLen == -1) {
+                    V3.putRlp(arr.length, dest);
+                }
+                for (Object e : arr) {
+                    b.encode(e, external, dest);
+                }
+            } else {
+                b.encode(val, external, dest);
+            }
+        }
+    }
+
+    private MethodHandle[] getters() {
+        if (getters == null) {
+            throw new IllegalStateException("decode-only binding: " + target.getName() + "; supply one with getters via withNested");
+        }
+        return getters;
+    }
+
+    /**
+     * Composes the constructor with one reader per parameter, yielding a single (ByteBuffer)Object handle which reads
+     * the arguments in order and then constructs the object.
+     */
+    private MethodHandle buildReader(boolean external) {
+        final MethodType ctorType = constructor.type();
+        MethodHandle h = MethodHandles.dropArguments(constructor, 0, ByteBuffer.class); // (ByteBuffer, A0..An-1)T
+        for (int k = ctorType.parameterCount() - 1; k >= 0; k--) {
+            // h is (ByteBuffer, A0..Ak)T. move Ak to the front so that folding a reader of Ak yields (ByteBuffer, A0..Ak-1)T
+            final Class<?>[] params = new Class<?>[k + 2];
+            params[0] = ctorType.parameterType(k);
+            params[1] = ByteBuffer.class;
+            final int[] reorder = new int[k + 2];
+            reorder[0] = 1;
+            for (int j = 0; j < k; j++) {
+                params[j + 2] = ctorType.parameterType(j);
+                reorder[j + 1] = j + 2;
+            }
+            reorder[k + 1] = 0;
+            h = MethodHandles.permuteArguments(h, MethodType.methodType(ctorType.returnType(), params), reorder);
+            h = MethodHandles.foldArguments(h, reader(k, ctorType.parameterType(k), external));
+        }
+        return h.asType(MethodType.methodType(Object.class, ByteBuffer.class));
+    }
+
+    private MethodHandle reader(int i, Class<?> paramType, boolean external) {
+        final V3Type et = tupleType.elementTypes[i];
+        final MethodHandle r;
+        if (nested[i] != null) {
+            r = et.typeCode == V3Type.TYPE_CODE_ARRAY
+                    ? MethodHandles.insertArguments(DECODE_BOUND_ARRAY, 0, et, nested[i])
+                    : nested[i].readerOf(external);
+        } else if (et.typeCode == V3Type.TYPE_CODE_BOOLEAN && paramType == boolean.class) {
+            return DECODE_BOOLEAN;
+        } else if (et.typeCode == V3Type.TYPE_CODE_BIG_INTEGER && (paramType == long.class || paramType == Long.class)) {
+            r = MethodHandles.insertArguments(DECODE_LONG, 0, et);
+        } else if (et.typeCode == V3Type.TYPE_CODE_BIG_INTEGER && (paramType == int.class || paramType == Integer.class)) {
+            r = MethodHandles.insertArguments(DECODE_INT, 0, et);
+        } else {
+            r = MethodHandles.insertArguments(DECODE, 0, et);
+        }
+        return (r.type().parameterCount() == 2 ? MethodHandles.insertArguments(r, 1, external) : r)
+                .asType(MethodType.methodType(paramType, ByteBuffer.class));
+    }
+
+    private MethodHandle readerOf(boolean external) {
+        return external ? externalReader : internalReader;
+    }
+
+    /**
+     * Rejects binding an integer type to a {@code long} or {@code int} parameter too narrow to hold its every value's
+     * bits. Unsigned values which fill the parameter, e.g. a {@code uint64} bound to {@code long}, are held in two's
+     * complement, as {@link CallReader#nextUint64()} returns them.
+     */
+    private static void checkWidth(V3Type type, Class<?> p) {
+        if (type.typeCode != V3Type.TYPE_CODE_BIG_INTEGER) return;
+        final int max = p == long.class || p == Long.class ? Long.SIZE
+                : p == int.class || p == Integer.class ? Integer.SIZE
+                : Integer.MAX_VALUE;
+        if (type.bitLen > max) {
+            throw new IllegalArgumentException("cannot bind " + type.canonicalType + " to " + p.getName());
+        }
+    }
+
+    private static long decodeLong(V3Type type, ByteBuffer bb, boolean external) {
+        final int byteLen = type.bitLen / Byte.SIZE;
+        V3.checkLong(byteLen, bb, external);
+        return V3.decodeLong(byteLen, type.unsigned, bb, external);
+    }
+
+    private static int decodeInt(V3Type type, ByteBuffer bb, boolean external) {
+        return (int) decodeLong(type, bb, external);
+    }
+
+    private static Object[] decodeBoundArray(V3Type arrayType, Binding<?> elementBinding, ByteBuffer bb, boolean external) {
+        final Object[] arr = elementBinding.arrayFactory.apply(V3.getLength(arrayType, bb, external, null));
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = elementBinding.decode(bb, external);
+        }
+        return arr;
+    }
+
+    private static Object toV3(V3Type type, Object val) {
+        if (type.typeCode != V3Type.TYPE_CODE_BIG_INTEGER) return val;
+        if (val instanceof Long) {
+            final long v = (Long) val;
+            return type.unsigned && v < 0 ? new BigInteger(Long.toUnsignedString(v)) : BigInteger.valueOf(v);
+        }
+        if (val instanceof Integer) {
+            final int v = (Integer) val;
+            return BigInteger.valueOf(type.unsigned ? v & 0xFFFFFFFFL : v);
+        }
+        return val;
+    }
+
+    private static Object get(MethodHandle getter, Object obj) {
+        try {
+            return (Object) getter.invokeExact(obj);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static boolean isUserClass(Class<?> c) {
+        return !c.isPrimitive() && !c.isAssignableFrom(Object[].class);
+    }
+
+    private static Constructor<?> findConstructor(Class<?> target, int arity) {
+        Constructor<?> found = null;
+        for (Constructor<?> c : target.getConstructors()) {
+            if (c.getParameterCount() == arity) {
+                if (found != null) throw new IllegalArgumentException("ambiguous constructor: " + target.getName());
+                found = c;
+            }
+        }
+        if (found == null) throw new IllegalArgumentException("no public constructor of arity " + arity + ": " + target.getName());
+        return found;
+    }
+}
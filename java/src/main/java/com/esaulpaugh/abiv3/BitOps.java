@@ -0,0 +1,106 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+/**
+ * Packs and unpacks boolean arrays and counts zero bytes. Booleans are packed most significant bit first and aligned
+ * to the end of the last byte, so that any unused bits are the leading bits of the first byte.
+ * <p>
+ * {@link #get()} returns a SIMD implementation if the JVM offers the incubating Vector API (Java 17+, run with
+ * {@code --add-modules jdk.incubator.vector}), unless {@code -Dabiv3.vector=false}, and otherwise the scalar one.
+ */
+abstract class BitOps {
+
+    private static final BitOps INSTANCE = load();
+
+    static BitOps get() {
+        return INSTANCE;
+    }
+
+    private static BitOps load() {
+        if (!"false".equals(System.getProperty("abiv3.vector"))) {
+            try {
+                return (BitOps) Class.forName("com.esaulpaugh.abiv3.VectorBitOps").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // not on this JVM
+            }
+        }
+        return new Scalar();
+    }
+
+    static int packedLength(int numBooleans) {
+        return (int) ((numBooleans + (Byte.SIZE - 1L)) / Byte.SIZE); // no overflow near Integer.MAX_VALUE
+    }
+
+    /** Writes {@code packedLength(booleans.length)} bytes to {@code dest} at {@code offset}. */
+    abstract void pack(boolean[] booleans, byte[] dest, int offset);
+
+    /** Fills {@code booleans} from the bytes at {@code offset}, ignoring any unused bits. */
+    abstract void unpack(byte[] src, int offset, boolean[] booleans);
+
+    abstract int countZeros(byte[] a, int from, int to);
+
+    static class Scalar extends BitOps {
+
+        @Override
+        void pack(boolean[] booleans, byte[] dest, int offset) {
+            int bits = 0;
+            int k = packedLength(booleans.length) * Byte.SIZE - booleans.length; // the unused bits come first
+            for (boolean b : booleans) {
+                bits = (bits << 1) | (b ? 1 : 0);
+                if (++k == Byte.SIZE) {
+                    dest[offset++] = (byte) bits;
+                    bits = 0;
+                    k = 0;
+                }
+            }
+        }
+
+        @Override
+        void unpack(byte[] src, int offset, boolean[] booleans) {
+            if (booleans.length == 0) {
+                return;
+            }
+            int i = (booleans.length - 1) % Byte.SIZE + 1; // the booleans in the first byte, which may be partial
+            final int first = src[offset++];
+            for (int j = 0; j < i; j++) {
+                booleans[j] = (first & (1 << (i - 1 - j))) != 0;
+            }
+            for ( ; i < booleans.length; i += Byte.SIZE) {
+                final int bits = src[offset++];
+                booleans[i] = (bits & 0x80) != 0;
+                booleans[i + 1] = (bits & 0x40) != 0;
+                booleans[i + 2] = (bits & 0x20) != 0;
+                booleans[i + 3] = (bits & 0x10) != 0;
+                booleans[i + 4] = (bits & 0x08) != 0;
+                booleans[i + 5] = (bits & 0x04) != 0;
+                booleans[i + 6] = (bits & 0x02) != 0;
+                booleans[i + 7] = (bits & 0x01) != 0;
+            }
+        }
+
+        @Override
+        int countZeros(byte[] a, int from, int to) {
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                if (a[i] == 0) {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+}
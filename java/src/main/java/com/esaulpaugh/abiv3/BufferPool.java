@@ -0,0 +1,268 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct {@link ByteBuffer}s in power-of-two size classes. Each thread keeps a small cache per size class in
+ * front of a shared, bounded free list, so a thread which repeatedly acquires and releases buffers of similar size
+ * neither allocates nor contends. Buffers must be returned explicitly via {@link #release(ByteBuffer)} and must not be
+ * used afterwards. Requests larger than the largest size class are served by unpooled buffers.
+ * <p>
+ * Every buffer the pool allocates is registered, weakly, with a tag recording whether it is out on loan, so that
+ * releasing a foreign buffer or releasing twice is detected while a buffer never released can still be reclaimed by
+ * the GC. Tags are found without locking; the registry is locked only to register a newly allocated buffer.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 6; // 64 bytes
+    private static final int MAX_SHIFT = 24; // 16 MiB
+    private static final int NUM_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int MIN_TAGS = 64;
+
+    private final int localCapacity;
+    private final ByteBuffer[][] shared;
+    private final int[] sharedCounts;
+    private final ThreadLocal<LocalCache> local;
+    private volatile AtomicReferenceArray<Tag> tags = new AtomicReferenceArray<>(MIN_TAGS); // open addressing by identity hash
+    private int tagCount; // including those whose buffers are gone; guarded by this
+
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder outstandingBytes = new LongAdder();
+
+    /**
+     * @param localCapacity  the number of buffers each thread may cache per size class
+     * @param sharedCapacity the number of buffers the shared free list may hold per size class
+     */
+    public BufferPool(int localCapacity, int sharedCapacity) {
+        if (localCapacity < 0 || sharedCapacity < 0) throw new IllegalArgumentException();
+        this.localCapacity = localCapacity;
+        this.shared = new ByteBuffer[NUM_CLASSES][sharedCapacity];
+        this.sharedCounts = new int[NUM_CLASSES];
+        this.local = ThreadLocal.withInitial(LocalCache::new);
+    }
+
+    public BufferPool() {
+        this(8, 64);
+    }
+
+    /**
+     * Returns a cleared, big-endian direct buffer with a capacity of at least {@code minCapacity}. Its limit is set to
+     * {@code minCapacity}.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity < 0) throw new IllegalArgumentException();
+        acquires.increment();
+        final int c = sizeClass(minCapacity);
+        ByteBuffer bb = null;
+        if (c < NUM_CLASSES) {
+            bb = local.get().pop(c);
+            if (bb != null) {
+                localHits.increment();
+            } else if ((bb = popShared(c)) != null) {
+                sharedHits.increment();
+            }
+        }
+        if (bb == null) {
+            final int capacity = c < NUM_CLASSES ? 1 << (c + MIN_SHIFT) : minCapacity;
+            bb = ByteBuffer.allocateDirect(capacity);
+            allocatedBytes.add(capacity);
+            register(bb);
+        } else {
+            find(bb).out = 1;
+        }
+        outstandingBytes.add(bb.capacity());
+        bb.clear().limit(minCapacity);
+        bb.order(ByteOrder.BIG_ENDIAN);
+        return bb;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool.
+     *
+     * @throws IllegalArgumentException if the buffer, which must be the very object acquired and not a slice or
+     *                                  duplicate, did not come from this pool
+     * @throws IllegalStateException    if the buffer has already been released
+     */
+    public void release(ByteBuffer bb) {
+        final Tag tag = find(bb);
+        if (tag == null) throw new IllegalArgumentException("not a buffer from this pool");
+        if (!OUT.compareAndSet(tag, 1, 0)) throw new IllegalStateException("buffer already released");
+        releases.increment();
+        final int capacity = bb.capacity();
+        outstandingBytes.add(-capacity);
+        final int c = sizeClass(capacity);
+        if (c < NUM_CLASSES && 1 << (c + MIN_SHIFT) == capacity && !local.get().push(c, bb)) {
+            pushShared(c, bb);
+        }
+    }
+
+    /** Returns the tag of a buffer this pool allocated, or null. */
+    private Tag find(ByteBuffer bb) {
+        final AtomicReferenceArray<Tag> t = tags;
+        final int mask = t.length() - 1;
+        for (int i = System.identityHashCode(bb) & mask; ; i = (i + 1) & mask) {
+            final Tag tag = t.get(i);
+            if (tag == null || tag.get() == bb) {
+                return tag;
+            }
+        }
+    }
+
+    /** Tags a newly allocated buffer as out on loan, first rebuilding the table without dead tags if it is half full. */
+    private synchronized void register(ByteBuffer bb) {
+        AtomicReferenceArray<Tag> t = tags;
+        if (2 * (tagCount + 1) > t.length()) {
+            int live = 0;
+            for (int i = 0; i < t.length(); i++) {
+                final Tag tag = t.get(i);
+                if (tag != null && tag.get() != null) {
+                    live++;
+                }
+            }
+            final AtomicReferenceArray<Tag> rebuilt = new AtomicReferenceArray<>(Math.max(MIN_TAGS, Integer.highestOneBit(live + 1) << 2));
+            for (int i = 0; i < t.length(); i++) {
+                final Tag tag = t.get(i);
+                if (tag != null && tag.get() != null) {
+                    insert(rebuilt, tag);
+                }
+            }
+            tags = t = rebuilt;
+            tagCount = live;
+        }
+        final Tag tag = new Tag(bb);
+        tag.out = 1;
+        insert(t, tag);
+        tagCount++;
+    }
+
+    private static void insert(AtomicReferenceArray<Tag> t, Tag tag) {
+        final int mask = t.length() - 1;
+        int i = tag.hash & mask;
+        while (t.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        t.set(i, tag);
+    }
+
+    /** The total number of calls to {@link #acquire(int)}. */
+    public long acquireCount() {
+        return acquires.sum();
+    }
+
+    /** The number of acquisitions served from the acquiring thread's own cache. */
+    public long localHitCount() {
+        return localHits.sum();
+    }
+
+    /** The number of acquisitions served from the shared free list. */
+    public long sharedHitCount() {
+        return sharedHits.sum();
+    }
+
+    /** The total number of calls to {@link #release(ByteBuffer)}. */
+    public long releaseCount() {
+        return releases.sum();
+    }
+
+    /** The total capacity of all direct buffers this pool has ever allocated. */
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /** The total capacity of the buffers currently acquired and not yet released. */
+    public long outstandingBytes() {
+        return outstandingBytes.sum();
+    }
+
+    private ByteBuffer popShared(int c) {
+        synchronized (shared[c]) {
+            final int n = sharedCounts[c];
+            if (n == 0) {
+                return null;
+            }
+            final ByteBuffer bb = shared[c][n - 1];
+            shared[c][n - 1] = null;
+            sharedCounts[c] = n - 1;
+            return bb;
+        }
+    }
+
+    private void pushShared(int c, ByteBuffer bb) {
+        synchronized (shared[c]) {
+            final int n = sharedCounts[c];
+            if (n < shared[c].length) {
+                shared[c][n] = bb;
+                sharedCounts[c] = n + 1;
+            } // else drop it and let the GC reclaim it
+        }
+    }
+
+    private static int sizeClass(int capacity) {
+        return capacity <= 1 << MIN_SHIFT
+                ? 0
+                : Integer.SIZE - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    private static final AtomicIntegerFieldUpdater<Tag> OUT = AtomicIntegerFieldUpdater.newUpdater(Tag.class, "out");
+
+    /** Weakly identifies a buffer this pool allocated, so that a buffer never released does not outlive its last use. */
+    private static final class Tag extends WeakReference<ByteBuffer> {
+        final int hash;
+        volatile int out; // 1 while on loan
+
+        Tag(ByteBuffer bb) {
+            super(bb);
+            this.hash = System.identityHashCode(bb);
+        }
+    }
+
+    private final class LocalCache {
+        private final ByteBuffer[][] stacks = new ByteBuffer[NUM_CLASSES][localCapacity];
+        private final int[] counts = new int[NUM_CLASSES];
+
+        ByteBuffer pop(int c) {
+            final int n = counts[c];
+            if (n == 0) {
+                return null;
+            }
+            final ByteBuffer bb = stacks[c][n - 1];
+            stacks[c][n - 1] = null;
+            counts[c] = n - 1;
+            return bb;
+        }
+
+        boolean push(int c, ByteBuffer bb) {
+            final int n = counts[c];
+            if (n == localCapacity) {
+                return false;
+            }
+            stacks[c][n] = bb;
+            counts[c] = n + 1;
+            return true;
+        }
+    }
+}
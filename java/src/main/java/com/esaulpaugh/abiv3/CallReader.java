@@ -0,0 +1,277 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a function call field by field, in the order of its type, without building an {@code Object[]} tree or any
+ * {@link java.math.BigInteger}s. Each value is checked as strictly as by {@link Validator} before it is returned, and
+ * each read is checked against the next type the tuple calls for. Containers are read depth-first between
+ * {@link #enterArray()}/{@link #exitArray()} and {@link #enterTuple()}/{@link #exitTuple()}; values not of interest
+ * can be passed over with {@link #skip()}.
+ * <p>
+ * A reader may be restarted on another call of the same type; doing so allocates nothing.
+ */
+public final class CallReader {
+
+    private final V3Type tupleType;
+    private final TypeCursor cursor = new TypeCursor();
+    private ByteBuffer bb;
+    private boolean external;
+    private int start;
+    private int bits; // the packed byte of bools being read
+    private int bitsLeft; // how many of its bools remain
+    private int nextBits; // how many bools the next packed byte holds
+
+    public CallReader(V3Type tupleType) {
+        if (tupleType.typeCode != V3Type.TYPE_CODE_TUPLE) throw new IllegalArgumentException("not a tuple type: " + tupleType.canonicalType);
+        this.tupleType = tupleType;
+    }
+
+    /** Creates a reader and reads the header of the call at the buffer's position. */
+    public static CallReader of(V3Type tupleType, ByteBuffer bb) {
+        return new CallReader(tupleType).start(bb);
+    }
+
+    /**
+     * Reads the header of the call at the buffer's position, abandoning any call in progress.
+     *
+     * @throws IllegalArgumentException if the buffer is not big-endian or the header is malformed
+     */
+    public CallReader start(ByteBuffer bb) {
+        V3.checkOrder(bb);
+        this.bb = bb;
+        this.start = bb.position();
+        this.external = V3.readHeader(bb);
+        this.bitsLeft = 0;
+        cursor.reset(tupleType);
+        return this;
+    }
+
+    public boolean isExternal() {
+        return external;
+    }
+
+    /** Returns true if the innermost open container has values left to read. */
+    public boolean hasNext() {
+        return cursor.depth() != 0 && cursor.remaining() > 0;
+    }
+
+    /** Returns the type of the next value. */
+    public V3Type nextType() {
+        return cursor.peek();
+    }
+
+    /** Reads an unsigned integer of up to 64 bits. Values of {@code uint64} are returned as their two's complement bits. */
+    public long nextUint64() {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER);
+        if (!t.unsigned || t.bitLen > Long.SIZE) throw TypeCursor.mismatch(t, "uint64");
+        V3.checkLong(t.bitLen / Byte.SIZE, bb, external);
+        cursor.advance();
+        return V3.decodeLong(t.bitLen / Byte.SIZE, true, bb, external);
+    }
+
+    /** Reads a signed integer of up to 64 bits. */
+    public long nextInt64() {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER);
+        if (t.unsigned || t.bitLen > Long.SIZE) throw TypeCursor.mismatch(t, "int64");
+        V3.checkLong(t.bitLen / Byte.SIZE, bb, external);
+        cursor.advance();
+        return V3.decodeLong(t.bitLen / Byte.SIZE, false, bb, external);
+    }
+
+    /**
+     * Reads an integer of any width into {@code dest} at {@code offset} as big-endian two's complement, as wide as the
+     * type.
+     *
+     * @return the number of bytes written
+     */
+    public int nextIntegerInto(byte[] dest, int offset) {
+        return integerInto(cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER), dest, offset);
+    }
+
+    /** Reads an {@code address} into the 20 bytes of {@code dest} at {@code offset}. */
+    public void nextAddressInto(byte[] dest, int offset) {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER);
+        if (!t.unsigned || t.bitLen != 160) throw TypeCursor.mismatch(t, "address");
+        integerInto(t, dest, offset);
+    }
+
+    public boolean nextBool() {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BOOLEAN);
+        if (cursor.container().typeCode == V3Type.TYPE_CODE_ARRAY) { // bit-packed, aligned to the end of the last byte
+            cursor.advance();
+            if (bitsLeft == 0) {
+                bits = bb.get() & 0xFF;
+                bitsLeft = nextBits;
+                nextBits = Byte.SIZE;
+            }
+            return ((bits >>> --bitsLeft) & 1) != 0;
+        }
+        checkNext(t);
+        cursor.advance();
+        return bb.get() != 0x00;
+    }
+
+    /** Reads a byte string, which is returned as a slice of the buffer. */
+    public ByteBuffer nextBytes() {
+        final V3Type t = cursor.expectByteString();
+        final int end = checkNext(t);
+        cursor.advance();
+        final int len = length(t);
+        final ByteBuffer slice = bb.slice();
+        slice.limit(len);
+        bb.position(end);
+        return slice;
+    }
+
+    /**
+     * Reads a byte string into {@code dest} at {@code offset}.
+     *
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if they would not fit, in which case nothing is consumed
+     */
+    public int nextBytesInto(byte[] dest, int offset) {
+        final V3Type t = cursor.expectByteString();
+        final int end = checkNext(t);
+        final int pos = bb.position();
+        final int len = length(t);
+        if (offset < 0 || len > dest.length - offset) {
+            bb.position(pos);
+            throw new IllegalArgumentException(len + " bytes do not fit");
+        }
+        cursor.advance();
+        bb.get(dest, offset, len);
+        bb.position(end);
+        return len;
+    }
+
+    public String nextString() {
+        final V3Type t = cursor.expectByteString();
+        if (!t.isString) throw TypeCursor.mismatch(t, "string");
+        final int end = checkNext(t);
+        cursor.advance();
+        final int len = length(t);
+        final String str;
+        if (bb.hasArray()) {
+            str = new String(bb.array(), bb.arrayOffset() + bb.position(), len, StandardCharsets.UTF_8);
+        } else {
+            final byte[] utf8 = new byte[len];
+            bb.get(utf8);
+            str = new String(utf8, StandardCharsets.UTF_8);
+        }
+        bb.position(end);
+        return str;
+    }
+
+    /**
+     * Opens the next array, whose elements are to be read next, and returns its length. Byte strings are read whole,
+     * with {@link #nextBytes()} and the like.
+     */
+    public int enterArray() {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_ARRAY);
+        if (t.elementType.typeCode == V3Type.TYPE_CODE_BYTE) throw TypeCursor.mismatch(t, "array");
+        final int pos = bb.position();
+        final int len = V3.getLength(t, bb, external, null);
+        if (t.elementType.typeCode == V3Type.TYPE_CODE_BOOLEAN) {
+            final int usedBits = len % Byte.SIZE;
+            if (usedBits != 0 && (bb.get(bb.position()) & 0xFF) >>> usedBits != 0) throw new DecodeException(Validator.NON_CANONICAL, pos);
+            bitsLeft = 0;
+            nextBits = len == 0 ? 0 : (len - 1) % Byte.SIZE + 1;
+        }
+        cursor.advance();
+        cursor.push(t, len);
+        return len;
+    }
+
+    /** @throws IllegalStateException if the innermost open container is not an array or has unread elements */
+    public void exitArray() {
+        cursor.pop(V3Type.TYPE_CODE_ARRAY);
+    }
+
+    public void enterTuple() {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_TUPLE);
+        cursor.advance();
+        cursor.push(t, t.elementTypes.length);
+    }
+
+    /** @throws IllegalStateException if the innermost open container is not a tuple or has unread elements */
+    public void exitTuple() {
+        if (cursor.depth() == 1) throw new IllegalStateException("no tuple open");
+        cursor.pop(V3Type.TYPE_CODE_TUPLE);
+    }
+
+    /** Passes over the next value, whatever its type, checking it in full. */
+    public void skip() {
+        final V3Type t = cursor.peek();
+        if (t.typeCode == V3Type.TYPE_CODE_BOOLEAN && cursor.container().typeCode == V3Type.TYPE_CODE_ARRAY) {
+            nextBool();
+            return;
+        }
+        bb.position(checkNext(t));
+        cursor.advance();
+    }
+
+    /**
+     * Completes the call, consuming the padding byte if one is required, and leaves the position at the end of the
+     * encoding.
+     *
+     * @return the length of the call in bytes
+     * @throws IllegalStateException if a container is open or arguments remain unread
+     */
+    public int finish() {
+        if (cursor.depth() != 1) throw new IllegalStateException(cursor.depth() == 0 ? "no call in progress" : "unclosed " + cursor.container().canonicalType);
+        cursor.pop(V3Type.TYPE_CODE_TUPLE);
+        V3.readPadding(bb, start);
+        return bb.position() - start;
+    }
+
+    /** Checks the value of the given type at the position and returns the offset just past it. */
+    private int checkNext(V3Type t) {
+        final long next = Validator.skip(t, bb, bb.position(), bb.limit(), external);
+        if (next < 0) throw new DecodeException(Validator.code(next), Validator.offset(next));
+        return (int) next;
+    }
+
+    /** Consumes a checked byte string's prefix, if any, and returns the length of its data. */
+    private int length(V3Type t) {
+        return t.arrayLen == -1 ? V3.readStringPrefix(bb) : t.arrayLen;
+    }
+
+    private int integerInto(V3Type t, byte[] dest, int offset) {
+        final int byteLen = t.bitLen / Byte.SIZE;
+        if (offset < 0 || byteLen > dest.length - offset) throw new IllegalArgumentException(byteLen + " bytes required");
+        checkNext(t);
+        cursor.advance();
+        if (!external) {
+            bb.get(dest, offset, byteLen);
+            return byteLen;
+        }
+        final int lead = bb.get() & 0xFF;
+        if (lead < 0x80) {
+            Arrays.fill(dest, offset, offset + byteLen - 1, (byte) 0x00);
+            dest[offset + byteLen - 1] = (byte) lead;
+            return byteLen;
+        }
+        final int n = lead - 0x80; // a negative value is sign-extended to full width, so anything shorter is positive
+        Arrays.fill(dest, offset, offset + byteLen - n, (byte) 0x00);
+        bb.get(dest, offset + byteLen - n, n);
+        return byteLen;
+    }
+}
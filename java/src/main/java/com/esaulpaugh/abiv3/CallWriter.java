@@ -0,0 +1,306 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a function call straight into a buffer, one argument at a time, without building an {@code Object[]} first.
+ * Each put is checked against the next type the tuple calls for and is encoded immediately. Containers are written
+ * depth-first between {@link #beginArray(int)}/{@link #endArray()} and {@link #beginTuple()}/{@link #endTuple()}.
+ * <p>
+ * A writer may be restarted after {@link #finish()} to write another call of the same type; doing so allocates nothing.
+ * The output is identical to that of {@link V3#encodeFunction(int, V3Type, Object[], boolean)}.
+ */
+public final class CallWriter {
+
+    private final V3Type tupleType;
+    private final TypeCursor cursor = new TypeCursor();
+    private ByteBuffer dest;
+    private boolean external;
+    private int start;
+    private int bits; // the bools of a packed byte in progress
+    private int bitsLeft; // how many more bools that byte needs
+    private long w0, w1, w2, w3; // the words of a wide integer being written, least significant first
+
+    public CallWriter(V3Type tupleType) {
+        if (tupleType.typeCode != V3Type.TYPE_CODE_TUPLE) throw new IllegalArgumentException("not a tuple type: " + tupleType.canonicalType);
+        this.tupleType = tupleType;
+    }
+
+    /** Creates a writer and writes the header of a call to the given buffer. */
+    public static CallWriter of(int functionNumber, V3Type tupleType, boolean external, ByteBuffer dest) {
+        return new CallWriter(tupleType).start(functionNumber, external, dest);
+    }
+
+    /**
+     * Writes the header of a call at the buffer's position, abandoning any call in progress.
+     *
+     * @throws IllegalArgumentException if the buffer is not big-endian
+     */
+    public CallWriter start(int functionNumber, boolean external, ByteBuffer dest) {
+        V3.checkOrder(dest);
+        this.dest = dest;
+        this.external = external;
+        this.start = dest.position();
+        this.bitsLeft = 0;
+        V3.putHeader(functionNumber, external, dest);
+        cursor.reset(tupleType);
+        return this;
+    }
+
+    /** Writes an unsigned integer of up to 64 bits. For {@code uint64}, the value is taken as unsigned. */
+    public CallWriter putUint(long val) {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER);
+        if (!t.unsigned) throw TypeCursor.mismatch(t, "unsigned integer");
+        if (t.bitLen > Long.SIZE) {
+            return putWide(t, 0L, 0L, 0L, val);
+        }
+        V3.checkRange(t, val);
+        cursor.advance();
+        V3.encodeLong(t.bitLen / Byte.SIZE, true, val, external, dest);
+        return this;
+    }
+
+    /** Writes a signed integer. */
+    public CallWriter putInt(long val) {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER);
+        if (t.unsigned) throw TypeCursor.mismatch(t, "signed integer");
+        if (t.bitLen > Long.SIZE) {
+            final long ext = val >> (Long.SIZE - 1);
+            return putWide(t, ext, ext, ext, val);
+        }
+        V3.checkRange(t, val);
+        cursor.advance();
+        V3.encodeLong(t.bitLen / Byte.SIZE, false, val, external, dest);
+        return this;
+    }
+
+    /** Writes an unsigned integer of up to 256 bits given as four words, most significant first. */
+    public CallWriter putUint256(long w3, long w2, long w1, long w0) {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER);
+        if (!t.unsigned) throw TypeCursor.mismatch(t, "unsigned integer");
+        if (t.bitLen > Long.SIZE) {
+            return putWide(t, w3, w2, w1, w0);
+        }
+        if ((w3 | w2 | w1) != 0L) throw outOfRange(t);
+        V3.checkRange(t, w0);
+        cursor.advance();
+        V3.encodeLong(t.bitLen / Byte.SIZE, true, w0, external, dest);
+        return this;
+    }
+
+    /** Writes a signed integer of up to 256 bits given as four words of two's complement, most significant first. */
+    public CallWriter putInt256(long w3, long w2, long w1, long w0) {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER);
+        if (t.unsigned) throw TypeCursor.mismatch(t, "signed integer");
+        if (t.bitLen > Long.SIZE) {
+            return putWide(t, w3, w2, w1, w0);
+        }
+        final long ext = w0 >> (Long.SIZE - 1);
+        if (w3 != ext || w2 != ext || w1 != ext) throw outOfRange(t);
+        V3.checkRange(t, w0);
+        cursor.advance();
+        V3.encodeLong(t.bitLen / Byte.SIZE, false, w0, external, dest);
+        return this;
+    }
+
+    /** Writes the 20 bytes at {@code offset} as an {@code address}. */
+    public CallWriter putAddress(byte[] address, int offset) {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_BIG_INTEGER);
+        if (!t.unsigned || t.bitLen != 160) throw TypeCursor.mismatch(t, "address");
+        if (offset < 0 || address.length - offset < 20) throw new IllegalArgumentException("20 bytes required");
+        return putWide(t, 0L, Words.getLong(address, offset, 4), Words.getLong(address, offset + 4, 8), Words.getLong(address, offset + 12, 8));
+    }
+
+    public CallWriter putBool(boolean val) {
+        cursor.expect(V3Type.TYPE_CODE_BOOLEAN);
+        cursor.advance();
+        final V3Type c = cursor.container();
+        if (c.typeCode == V3Type.TYPE_CODE_ARRAY) { // bit-packed, aligned to the end of the last byte
+            bits = (bits << 1) | (val ? 1 : 0);
+            if (--bitsLeft == 0) {
+                dest.put((byte) bits);
+                bits = 0;
+                bitsLeft = Byte.SIZE;
+            }
+        } else {
+            dest.put(val ? (byte) 0x01 : (byte) 0x00);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the buffer's remaining bytes, consuming them, as a byte string. For a string type, they must be UTF-8.
+     *
+     * @throws IllegalArgumentException if the type is of fixed length and the count differs
+     */
+    public CallWriter putBytes(ByteBuffer src) {
+        final V3Type t = cursor.expectByteString();
+        final int len = src.remaining();
+        putByteStringPrefix(t, len, len == 1 ? src.get(src.position()) : 0);
+        dest.put(src);
+        return this;
+    }
+
+    public CallWriter putBytes(byte[] src) {
+        final V3Type t = cursor.expectByteString();
+        putByteStringPrefix(t, src.length, src.length == 1 ? src[0] : 0);
+        dest.put(src);
+        return this;
+    }
+
+    /** Writes a string as UTF-8, substituting {@code '?'} for an unpaired surrogate. */
+    public CallWriter putString(String str) {
+        final V3Type t = cursor.expectByteString();
+        if (!t.isString) throw TypeCursor.mismatch(t, "string");
+        final int utf8Len = V3.utf8Length(str);
+        putByteStringPrefix(t, utf8Len, utf8Len == 1 && str.charAt(0) < 0x80 ? (byte) str.charAt(0) : (byte) '?');
+        final int len = str.length();
+        for (int i = 0; i < len; i++) {
+            final char c = str.charAt(i);
+            if (c < 0x80) {
+                dest.put((byte) c);
+            } else if (c < 0x800) {
+                dest.put((byte) (0xC0 | (c >>> 6)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+            } else if (!Character.isSurrogate(c)) {
+                dest.put((byte) (0xE0 | (c >>> 12)))
+                        .put((byte) (0x80 | ((c >>> 6) & 0x3F)))
+                        .put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, str.charAt(++i));
+                dest.put((byte) (0xF0 | (cp >>> 18)))
+                        .put((byte) (0x80 | ((cp >>> 12) & 0x3F)))
+                        .put((byte) (0x80 | ((cp >>> 6) & 0x3F)))
+                        .put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                dest.put((byte) '?');
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Opens an array of {@code len} elements, which are to be written next. Byte strings are written whole, with
+     * {@link #putBytes(byte[])} or {@link #putString(String)}.
+     *
+     * @throws IllegalArgumentException if the type is of fixed length and {@code len} differs
+     */
+    public CallWriter beginArray(int len) {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_ARRAY);
+        if (t.elementType.typeCode == V3Type.TYPE_CODE_BYTE) throw TypeCursor.mismatch(t, "array");
+        if (len < 0) throw new IllegalArgumentException("negative length");
+        if (t.arrayLen == -1) {
+            V3.putRlp(len, dest);
+        } else if (len != t.arrayLen) {
+            throw new IllegalArgumentException("expected length " + t.arrayLen + " for " + t.canonicalType + " but found " + len);
+        }
+        cursor.advance();
+        if (t.elementType.typeCode == V3Type.TYPE_CODE_BOOLEAN) {
+            bits = 0;
+            bitsLeft = len == 0 ? 0 : (len - 1) % Byte.SIZE + 1;
+        }
+        cursor.push(t, len);
+        return this;
+    }
+
+    /** @throws IllegalStateException if the innermost open container is not an array or is not full */
+    public CallWriter endArray() {
+        cursor.pop(V3Type.TYPE_CODE_ARRAY);
+        return this;
+    }
+
+    public CallWriter beginTuple() {
+        final V3Type t = cursor.expect(V3Type.TYPE_CODE_TUPLE);
+        cursor.advance();
+        cursor.push(t, t.elementTypes.length);
+        return this;
+    }
+
+    /** @throws IllegalStateException if the innermost open container is not a tuple or is not full */
+    public CallWriter endTuple() {
+        if (cursor.depth() == 1) throw new IllegalStateException("no tuple open");
+        cursor.pop(V3Type.TYPE_CODE_TUPLE);
+        return this;
+    }
+
+    /**
+     * Completes the call, appending the padding byte if one is needed.
+     *
+     * @return the length of the call in bytes
+     * @throws IllegalStateException if a container is open or arguments remain
+     */
+    public int finish() {
+        if (cursor.depth() != 1) throw new IllegalStateException(cursor.depth() == 0 ? "no call in progress" : "unclosed " + cursor.container().canonicalType);
+        cursor.pop(V3Type.TYPE_CODE_TUPLE);
+        if (V3.isPaddedLength(dest.position() - start)) {
+            dest.put((byte) 0x00);
+        }
+        return dest.position() - start;
+    }
+
+    private void putByteStringPrefix(V3Type t, int len, byte first) {
+        if (t.arrayLen == -1) {
+            V3.putRlpPrefix(len, first, dest);
+        } else if (len != t.arrayLen) {
+            throw new IllegalArgumentException("expected " + t.arrayLen + " bytes for " + t.canonicalType + " but found " + len);
+        }
+        cursor.advance();
+    }
+
+    /** Writes an integer wider than 64 bits, given as its low 256 bits. */
+    private CallWriter putWide(V3Type t, long w3, long w2, long w1, long w0) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        final int byteLen = t.bitLen / Byte.SIZE;
+        final int ext = t.unsigned ? 0 : (int) (w3 >> (Long.SIZE - 1)) & 0xFF; // what the bytes above the type must hold
+        for (int i = 31; i >= byteLen; i--) {
+            if (byteAt(i) != ext) throw outOfRange(t);
+        }
+        if (!t.unsigned && ((byteAt(byteLen - 1) ^ ext) & 0x80) != 0) throw outOfRange(t);
+        cursor.advance();
+        int n = byteLen;
+        if (external) {
+            if (ext != 0) {
+                dest.put((byte) (0x80 + byteLen)); // negative values are sign-extended to full width
+            } else {
+                while (n > 0 && byteAt(n - 1) == 0) {
+                    n--;
+                }
+                if (n != 1 || byteAt(0) >= 0x80) {
+                    dest.put((byte) (0x80 + n));
+                }
+            }
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            dest.put((byte) byteAt(i));
+        }
+        return this;
+    }
+
+    /** Returns byte {@code i} of the wide integer, counting from the least significant. */
+    private int byteAt(int i) {
+        final long w = i < 8 ? w0 : i < 16 ? w1 : i < 24 ? w2 : w3;
+        return (int) (w >>> ((i & 7) * Byte.SIZE)) & 0xFF;
+    }
+
+    private static IllegalArgumentException outOfRange(V3Type t) {
+        return new IllegalArgumentException("out of range for " + t.canonicalType);
+    }
+}
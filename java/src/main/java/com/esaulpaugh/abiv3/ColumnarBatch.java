@@ -0,0 +1,177 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Many calls with arguments of one tuple type, decoded column by column instead of row by row. Each argument becomes
+ * one column, stored according to its type:
+ * <ul>
+ * <li>{@link #LONGS}: integers of up to 64 bits, in a {@code long[]}. Values of {@code uint64} which exceed
+ * {@link Long#MAX_VALUE} are stored as their two's complement bits.</li>
+ * <li>{@link #BOOLEANS}: booleans, in a {@link BitSet}.</li>
+ * <li>{@link #BYTES}: byte strings and strings, concatenated into one {@code byte[]}, with an {@code int[]} of
+ * {@code size() + 1} offsets delimiting each row's bytes. Strings are stored as UTF-8.</li>
+ * <li>{@link #OBJECTS}: everything else, decoded as usual, in an array of the type's class.</li>
+ * </ul>
+ */
+public final class ColumnarBatch {
+
+    public static final int LONGS = 0;
+    public static final int BOOLEANS = 1;
+    public static final int BYTES = 2;
+    public static final int OBJECTS = 3;
+
+    private final V3Type tupleType;
+    private final int size;
+    private final int[] kinds;
+    private final Object[] columns; // per column: long[], BitSet, byte[] or an array of the element type's class
+    private final int[][] offsets; // per BYTES column
+
+    private ColumnarBatch(V3Type tupleType, int size, int[] kinds, Object[] columns, int[][] offsets) {
+        this.tupleType = tupleType;
+        this.size = size;
+        this.kinds = kinds;
+        this.columns = columns;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Decodes each encoding, which must occupy its whole array, straight into the columns.
+     *
+     * @throws DecodeException if any encoding is malformed
+     */
+    public static ColumnarBatch decode(V3Type tupleType, List<byte[]> encodings) {
+        if (tupleType.typeCode != V3Type.TYPE_CODE_TUPLE) throw new IllegalArgumentException("not a tuple type: " + tupleType.canonicalType);
+        final V3Type[] types = tupleType.elementTypes;
+        final int n = encodings.size();
+        final int[] kinds = new int[types.length];
+        final Object[] columns = new Object[types.length];
+        final int[][] offsets = new int[types.length][];
+        final int[] byteCounts = new int[types.length];
+        for (int c = 0; c < types.length; c++) {
+            kinds[c] = kind(types[c]);
+            switch (kinds[c]) {
+            case LONGS: columns[c] = new long[n]; break;
+            case BOOLEANS: columns[c] = new BitSet(n); break;
+            case BYTES:
+                columns[c] = new byte[Math.max(16, n * (types[c].arrayLen == -1 ? 16 : types[c].arrayLen))];
+                offsets[c] = new int[n + 1];
+                break;
+            default: columns[c] = types[c].arrayFactory.apply(n);
+            }
+        }
+        for (int row = 0; row < n; row++) {
+            final ByteBuffer bb = ByteBuffer.wrap(encodings.get(row));
+            final boolean external = V3.readHeader(bb);
+            for (int c = 0; c < types.length; c++) {
+                final V3Type t = types[c];
+                switch (kinds[c]) {
+                case LONGS:
+                    final int byteLen = t.bitLen / Byte.SIZE;
+                    V3.checkLong(byteLen, bb, external);
+                    ((long[]) columns[c])[row] = V3.decodeLong(byteLen, t.unsigned, bb, external);
+                    break;
+                case BOOLEANS:
+                    if (!bb.hasRemaining()) throw new DecodeException(Validator.TRUNCATED, bb.position());
+                    final byte b = bb.get();
+                    if (b == 0x01) {
+                        ((BitSet) columns[c]).set(row);
+                    } else if (b != 0x00) {
+                        throw new DecodeException(Validator.BAD_BOOLEAN, bb.position() - 1);
+                    }
+                    break;
+                case BYTES:
+                    final int len = t.arrayLen == -1 ? V3.readStringPrefix(bb) : t.arrayLen;
+                    if (len > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, bb.position());
+                    byte[] data = (byte[]) columns[c];
+                    final int count = byteCounts[c];
+                    if (data.length - count < len) {
+                        columns[c] = data = Arrays.copyOf(data, Math.max(data.length * 2, count + len));
+                    }
+                    bb.get(data, count, len);
+                    byteCounts[c] = offsets[c][row + 1] = count + len;
+                    break;
+                default: ((Object[]) columns[c])[row] = V3.decode(t, bb, external);
+                }
+            }
+            V3.readEnd(bb, 0);
+        }
+        return new ColumnarBatch(tupleType, n, kinds, columns, offsets);
+    }
+
+    private static int kind(V3Type t) {
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN: return BOOLEANS;
+        case V3Type.TYPE_CODE_BIG_INTEGER: return t.bitLen <= Long.SIZE ? LONGS : OBJECTS;
+        case V3Type.TYPE_CODE_ARRAY: return t.elementType.typeCode == V3Type.TYPE_CODE_BYTE ? BYTES : OBJECTS;
+        default: return OBJECTS;
+        }
+    }
+
+    public V3Type tupleType() {
+        return tupleType;
+    }
+
+    /** The number of rows, i.e. of calls decoded. */
+    public int size() {
+        return size;
+    }
+
+    /** One of {@link #LONGS}, {@link #BOOLEANS}, {@link #BYTES} or {@link #OBJECTS}. */
+    public int kind(int column) {
+        return kinds[column];
+    }
+
+    public long[] longs(int column) {
+        return (long[]) column(column, LONGS);
+    }
+
+    public BitSet booleans(int column) {
+        return (BitSet) column(column, BOOLEANS);
+    }
+
+    /** The concatenated bytes of every row, delimited by {@link #offsets(int)}. May be longer than needed. */
+    public byte[] bytes(int column) {
+        return (byte[]) column(column, BYTES);
+    }
+
+    /** Row {@code i}'s bytes span from {@code offsets[i]} inclusive to {@code offsets[i + 1]} exclusive. */
+    public int[] offsets(int column) {
+        column(column, BYTES);
+        return offsets[column];
+    }
+
+    /** Decodes one row of a {@link #BYTES} column as UTF-8. */
+    public String string(int column, int row) {
+        final int[] o = offsets(column);
+        return new String(bytes(column), o[row], o[row + 1] - o[row], StandardCharsets.UTF_8);
+    }
+
+    public Object[] objects(int column) {
+        return (Object[]) column(column, OBJECTS);
+    }
+
+    private Object column(int column, int kind) {
+        if (kinds[column] != kind) throw new IllegalArgumentException("column " + column + " is of kind " + kinds[column]);
+        return columns[column];
+    }
+}
@@ -0,0 +1,416 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A file of V3 calldata records, read through memory maps so that each record is handed out as a slice of the file,
+ * ready for {@link V3#decodeFunction(V3Type, ByteBuffer)}, without being copied. Files larger than a single map
+ * permits are mapped one region at a time.
+ * <p>
+ * Layout, all integers big-endian: a header of magic, version, record count (8 bytes), index offset (8 bytes) and
+ * index interval; then the records, each a 4-byte length followed by that many bytes; then the index, the file
+ * offsets of records {@code interval}, {@code 2 * interval} and so on (8 bytes each), through to the end of the file.
+ * An index offset of zero means the file was not closed cleanly: the record count is then unknown, there is no index,
+ * and the records run to the end of the last whole record, after which any partial one is ignored.
+ */
+public final class Corpus implements Iterable<ByteBuffer>, Closeable {
+
+    private static final int MAGIC = 0x56334346; // "V3CF"
+    private static final int VERSION = 1;
+    static final int HEADER_LEN = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+    private static final int COUNT_OFFSET = 2 * Integer.BYTES;
+    private static final int DEFAULT_REGION_SIZE = 1 << 30;
+
+    private final FileChannel fc;
+    private final long dataEnd;
+    private final long recordCount;
+    private final int indexInterval;
+    private final long[] index;
+    private final int regionSize;
+
+    private Corpus(FileChannel fc, long dataEnd, long recordCount, int indexInterval, long[] index, int regionSize) {
+        this.fc = fc;
+        this.dataEnd = dataEnd;
+        this.recordCount = recordCount;
+        this.indexInterval = indexInterval;
+        this.index = index;
+        this.regionSize = regionSize;
+    }
+
+    /**
+     * Opens a corpus file for reading and loads its index. Records are mapped on demand as they are iterated.
+     *
+     * @throws IllegalArgumentException if the file is not a corpus of a supported version
+     */
+    public static Corpus open(Path path) throws IOException {
+        return open(path, DEFAULT_REGION_SIZE);
+    }
+
+    static Corpus open(Path path, int regionSize) throws IOException {
+        final FileChannel fc = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = readHeader(fc);
+            final long indexOffset = header.getLong(COUNT_OFFSET + Long.BYTES);
+            if (indexOffset == 0) {
+                return new Corpus(fc, scanRecords(fc, null), -1L, 0, new long[0], regionSize);
+            }
+            return new Corpus(fc, indexOffset, header.getLong(COUNT_OFFSET), header.getInt(COUNT_OFFSET + 2 * Long.BYTES),
+                    readIndex(fc, indexOffset), regionSize);
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /** Creates a new corpus file, replacing any existing one, which indexes every {@code indexInterval}th record, or none if zero. */
+    public static Writer create(Path path, int indexInterval) throws IOException {
+        if (indexInterval < 0) throw new IllegalArgumentException("negative index interval");
+        final FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        final Writer w = new Writer(fc, HEADER_LEN, 0L, indexInterval, new long[16], 0);
+        try {
+            w.writeHeader(0L);
+        } catch (IOException e) {
+            fc.close();
+            throw e;
+        }
+        return w;
+    }
+
+    /**
+     * Opens an existing corpus file for appending. Its index is kept and extended. If the file was not closed cleanly,
+     * its records are counted and indexed afresh and a partial record at the end, if any, is discarded.
+     */
+    public static Writer append(Path path) throws IOException {
+        final FileChannel fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final ByteBuffer header = readHeader(fc);
+            final long indexOffset = header.getLong(COUNT_OFFSET + Long.BYTES);
+            final int indexInterval = header.getInt(COUNT_OFFSET + 2 * Long.BYTES);
+            final Writer w;
+            if (indexOffset != 0) {
+                final long[] index = readIndex(fc, indexOffset);
+                w = new Writer(fc, indexOffset, header.getLong(COUNT_OFFSET), indexInterval,
+                        Arrays.copyOf(index, Math.max(16, index.length)), index.length);
+            } else {
+                w = new Writer(fc, HEADER_LEN, 0L, indexInterval, new long[16], 0);
+                w.position = scanRecords(fc, w::mark);
+            }
+            w.writeHeader(0L); // open again until closed
+            fc.truncate(w.position);
+            return w;
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /** Returns the number of records, or -1 if unknown because the file was not closed cleanly. */
+    public long recordCount() {
+        return recordCount;
+    }
+
+    public int indexInterval() {
+        return indexInterval;
+    }
+
+    /** Iterates over every record. Each is a read-only slice of the mapped file, big-endian, spanning exactly the record. */
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return new Records(HEADER_LEN, dataEnd);
+    }
+
+    /** Iterates over the records from the given one on, using the index to skip most of those before it. */
+    public Iterator<ByteBuffer> iterator(long fromRecord) {
+        if (fromRecord < 0) throw new IllegalArgumentException("negative record number");
+        final int i = indexInterval == 0 ? 0 : (int) Math.min(fromRecord / indexInterval, index.length);
+        final Records records = new Records(i == 0 ? HEADER_LEN : index[i - 1], dataEnd);
+        for (long skip = fromRecord - (long) i * indexInterval; skip > 0 && records.hasNext(); skip--) {
+            records.skip();
+        }
+        return records;
+    }
+
+    /**
+     * Splits on record boundaries, at index entries if the file has an index and otherwise at boundaries found by first
+     * skipping through the records' length prefixes. Every split is sized exactly.
+     */
+    @Override
+    public Spliterator<ByteBuffer> spliterator() {
+        final RecordSpliterator.Source source = Records::new;
+        if (indexInterval == 0 || recordCount < 0) {
+            return RecordSpliterator.scan(source, HEADER_LEN, dataEnd);
+        }
+        final long[] bounds = new long[index.length + 2];
+        bounds[0] = HEADER_LEN;
+        System.arraycopy(index, 0, bounds, 1, index.length);
+        bounds[bounds.length - 1] = dataEnd;
+        return RecordSpliterator.of(source, bounds, indexInterval, recordCount);
+    }
+
+    /** Streams the records, in order. A parallel stream decodes on as many threads as its fork/join pool has. */
+    public Stream<ByteBuffer> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    /**
+     * Streams records held in memory, laid out as in a corpus file but without the header or index, from the buffer's
+     * position to its limit. Each is a slice of the buffer.
+     */
+    public static Stream<ByteBuffer> stream(ByteBuffer records, boolean parallel) {
+        return StreamSupport.stream(RecordSpliterator.of(records), parallel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fc.close();
+    }
+
+    private static ByteBuffer readHeader(FileChannel fc) throws IOException {
+        if (fc.size() < HEADER_LEN) throw new IllegalArgumentException("not a corpus file");
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+        readFully(fc, header, 0L);
+        if (header.getInt(0) != MAGIC) throw new IllegalArgumentException("not a corpus file");
+        if (header.getInt(4) != VERSION) throw new IllegalArgumentException("unsupported corpus version: " + header.getInt(4));
+        return header;
+    }
+
+    /**
+     * Walks the length prefixes of a file not closed cleanly, passing each whole record's offset to {@code onRecord}
+     * if not null, and returns the offset just past the last whole record.
+     */
+    private static long scanRecords(FileChannel fc, LongConsumer onRecord) throws IOException {
+        final ByteBuffer len = ByteBuffer.allocate(Integer.BYTES);
+        final long size = fc.size();
+        long position = HEADER_LEN;
+        while (size - position >= Integer.BYTES) {
+            len.clear();
+            readFully(fc, len, position);
+            final long next = position + Integer.BYTES + (len.getInt(0) & 0xFFFFFFFFL);
+            if (next > size) {
+                break;
+            }
+            if (onRecord != null) {
+                onRecord.accept(position);
+            }
+            position = next;
+        }
+        return position;
+    }
+
+    private static long[] readIndex(FileChannel fc, long indexOffset) throws IOException {
+        final long len = fc.size() - indexOffset;
+        if (len < 0 || len % Long.BYTES != 0 || len / Long.BYTES > Integer.MAX_VALUE) throw new IllegalArgumentException("corrupt index");
+        final ByteBuffer bb = ByteBuffer.allocate((int) len);
+        readFully(fc, bb, indexOffset);
+        final long[] index = new long[(int) (len / Long.BYTES)];
+        bb.flip();
+        bb.asLongBuffer().get(index);
+        return index;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            final int n = fc.read(dest, position);
+            if (n < 0) throw new IllegalArgumentException("unexpected end of file");
+            position += n;
+        }
+    }
+
+    /** Hands out records between two file offsets, mapping a new region whenever the next record is not within the current one. */
+    final class Records implements RecordSpliterator.Cursor {
+
+        private long offset;
+        private final long end;
+        private ByteBuffer region;
+        private long regionStart;
+        private long regionEnd;
+
+        Records(long offset, long end) {
+            this.offset = offset;
+            this.end = end;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return offset < end;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            final int len = length();
+            final int pos = (int) (offset - regionStart) + Integer.BYTES;
+            final ByteBuffer record = region.duplicate();
+            record.limit(pos + len).position(pos);
+            offset += Integer.BYTES + len;
+            return record.slice();
+        }
+
+        @Override
+        public void skip() {
+            offset += Integer.BYTES + length();
+        }
+
+        private int length() {
+            if (offset >= end) throw new NoSuchElementException();
+            if (offset + Integer.BYTES > end) throw new IllegalArgumentException("truncated record at " + offset);
+            map(Integer.BYTES);
+            final int len = region.getInt((int) (offset - regionStart));
+            if (len < 0 || len > Integer.MAX_VALUE - Integer.BYTES || offset + Integer.BYTES + len > end) {
+                throw new IllegalArgumentException("truncated record at " + offset);
+            }
+            map(Integer.BYTES + len);
+            return len;
+        }
+
+        private void map(int needed) {
+            if (region == null || offset + needed > regionEnd) {
+                final long size = Math.min(end - offset, Math.max(regionSize, needed));
+                try {
+                    region = fc.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                } catch (IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+                regionStart = offset;
+                regionEnd = offset + size;
+            }
+        }
+    }
+
+    /**
+     * Appends records to a corpus file. Records are gathered in a direct buffer and written in large batches; the index
+     * and header are written on {@link #close()}. Not thread-safe.
+     */
+    public static final class Writer implements Closeable {
+
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        private final FileChannel fc;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final int indexInterval;
+        private long[] index;
+        private int indexSize;
+        private long position; // the file offset of the buffered bytes
+        private long recordCount;
+
+        Writer(FileChannel fc, long position, long recordCount, int indexInterval, long[] index, int indexSize) {
+            this.fc = fc;
+            this.position = position;
+            this.recordCount = recordCount;
+            this.indexInterval = indexInterval;
+            this.index = index;
+            this.indexSize = indexSize;
+        }
+
+        public long recordCount() {
+            return recordCount;
+        }
+
+        public void write(byte[] record) throws IOException {
+            write(ByteBuffer.wrap(record));
+        }
+
+        /** Appends the bytes from the record's position to its limit, consuming them. */
+        public void write(ByteBuffer record) throws IOException {
+            final int len = record.remaining();
+            mark(position + buffer.position());
+            if (buffer.remaining() < Integer.BYTES + len) {
+                flush();
+            }
+            buffer.putInt(len);
+            if (len > buffer.remaining()) {
+                flush();
+                while (record.hasRemaining()) {
+                    position += fc.write(record, position);
+                }
+            } else {
+                buffer.put(record);
+            }
+        }
+
+        /** Counts a record starting at the given file offset, indexing it if it begins an interval. */
+        private void mark(long offset) {
+            if (recordCount > 0 && indexInterval != 0 && recordCount % indexInterval == 0) {
+                if (indexSize == index.length) {
+                    index = Arrays.copyOf(index, indexSize * 2);
+                }
+                index[indexSize++] = offset;
+            }
+            recordCount++;
+        }
+
+        public void writeAll(Iterable<byte[]> records) throws IOException {
+            for (byte[] record : records) {
+                write(record);
+            }
+        }
+
+        /** Writes out any buffered records. They are readable, though without an index, even if the writer is never closed. */
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += fc.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        /** Writes out any buffered records, then the index and header, and closes the file. */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                final long indexOffset = position;
+                final ByteBuffer bb = ByteBuffer.allocate(indexSize * Long.BYTES);
+                bb.asLongBuffer().put(index, 0, indexSize);
+                while (bb.hasRemaining()) {
+                    position += fc.write(bb, position);
+                }
+                writeHeader(indexOffset);
+            } finally {
+                fc.close();
+            }
+        }
+
+        void writeHeader(long indexOffset) throws IOException {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(recordCount).putLong(indexOffset).putInt(indexInterval);
+            header.flip();
+            long pos = 0L;
+            while (header.hasRemaining()) {
+                pos += fc.write(header, pos);
+            }
+        }
+    }
+}
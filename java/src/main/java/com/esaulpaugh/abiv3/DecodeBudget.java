@@ -0,0 +1,96 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+/**
+ * Limits on the resources one decoding may consume, for untrusted input. Each limit is checked before the allocation it
+ * guards. Exceeding one throws a {@link DecodeException} with the corresponding {@link Validator} code.
+ * <p>
+ * Bytes are counted approximately: the payload of each array (e.g. eight bytes per {@code long} or reference) plus the
+ * length of each byte string and string, not object headers.
+ */
+public final class DecodeBudget {
+
+    /** No limits beyond those every decoding has: declared lengths must fit in the remaining input. */
+    public static final DecodeBudget UNLIMITED = new DecodeBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private final int maxDepth;
+    private final int maxArrayLength;
+    private final long maxElements;
+    private final long maxBytes;
+
+    /**
+     * @param maxDepth       the maximum nesting depth of tuples and arrays, counting the arguments tuple as 1
+     * @param maxArrayLength the maximum length of any one array other than a byte string
+     * @param maxElements    the maximum total number of array elements
+     * @param maxBytes       the maximum total number of bytes allocated for arrays, byte strings and strings
+     */
+    public DecodeBudget(int maxDepth, int maxArrayLength, long maxElements, long maxBytes) {
+        if (maxDepth < 1 || maxArrayLength < 0 || maxElements < 0 || maxBytes < 0) throw new IllegalArgumentException();
+        this.maxDepth = maxDepth;
+        this.maxArrayLength = maxArrayLength;
+        this.maxElements = maxElements;
+        this.maxBytes = maxBytes;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public int maxArrayLength() {
+        return maxArrayLength;
+    }
+
+    public long maxElements() {
+        return maxElements;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    Meter meter() {
+        return new Meter();
+    }
+
+    /** Tracks one decoding's consumption against the budget. */
+    final class Meter {
+        private int depth;
+        private long elements;
+        private long bytes;
+
+        void enter(int offset) {
+            if (++depth > maxDepth) throw new DecodeException(Validator.TOO_DEEP, offset);
+        }
+
+        void exit() {
+            depth--;
+        }
+
+        void array(V3Type arrayType, int len, int offset) {
+            if (len > maxArrayLength) throw new DecodeException(Validator.ARRAY_TOO_LONG, offset);
+            if ((elements += len) > maxElements) throw new DecodeException(Validator.TOO_MANY_ELEMENTS, offset);
+            final int bytesPerElement = arrayType.elementType.typeCode == V3Type.TYPE_CODE_BOOLEAN ? 1
+                    : arrayType.primitiveBits != 0 ? arrayType.primitiveBits / Byte.SIZE
+                    : Long.BYTES; // a reference, generously
+            bytes(len * (long) bytesPerElement, offset);
+        }
+
+        void bytes(long n, int offset) {
+            if ((bytes += n) > maxBytes) throw new DecodeException(Validator.TOO_MANY_BYTES, offset);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+/**
+ * Thrown by the decoder on malformed input. Carries a {@link Validator} result code and the offset in the buffer at
+ * which the problem was found. Has no stack trace, since the cause is the input, not the call path, and filling one in
+ * would make rejecting garbage far costlier than accepting a valid encoding. For the same reason, the message is built
+ * only when asked for.
+ */
+public final class DecodeException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+    private final int offset;
+
+    DecodeException(int code, int offset) {
+        this.code = code;
+        this.offset = offset;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    @Override
+    public String getMessage() {
+        return Validator.describe(code) + " @ " + offset;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
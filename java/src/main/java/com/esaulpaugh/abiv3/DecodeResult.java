@@ -0,0 +1,65 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+/**
+ * The outcome of {@link V3#tryDecodeFunction(V3Type, byte[])}: either the decoded arguments, or a {@link Validator}
+ * result code and the offset of the offending item.
+ */
+public final class DecodeResult {
+
+    private final int code;
+    private final int offset;
+    private final Object[] values;
+
+    private DecodeResult(int code, int offset, Object[] values) {
+        this.code = code;
+        this.offset = offset;
+        this.values = values;
+    }
+
+    static DecodeResult success(Object[] values) {
+        return new DecodeResult(Validator.VALID, -1, values);
+    }
+
+    static DecodeResult failure(int code, int offset) {
+        return new DecodeResult(code, offset, null);
+    }
+
+    public boolean isSuccess() {
+        return code == Validator.VALID;
+    }
+
+    /** {@link Validator#VALID} on success, otherwise one of the other {@link Validator} result codes. */
+    public int code() {
+        return code;
+    }
+
+    /** The offset in the input of the item which failed validation, or -1 on success. */
+    public int offset() {
+        return offset;
+    }
+
+    /** The decoded arguments, or null on failure. */
+    public Object[] values() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return isSuccess() ? "success" : Validator.describe(code) + " @ " + offset;
+    }
+}
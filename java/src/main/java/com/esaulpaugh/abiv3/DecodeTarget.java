@@ -0,0 +1,262 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A mutable, reusable destination for decoding, shaped like a tuple type. Each decoding overwrites it in place: tuple
+ * slots are allocated once, arrays and byte buffers grow as needed and are then reused, so that decoding the same
+ * function over and over allocates nothing once the largest values have been seen.
+ * <p>
+ * Each element of a tuple or array is held according to its type. Integers of up to 64 bits and booleans are read with
+ * {@link #getLong(int)} and {@link #getBoolean(int)}; byte strings, strings and wider integers with {@link #bytes(int)}
+ * and {@link #length(int)}; tuples and arrays with {@link #get(int)}. {@link #string(int)} and
+ * {@link #bigInteger(int)} are conveniences which allocate.
+ * <p>
+ * Not thread-safe. If a decoding fails, the target is left partly overwritten.
+ */
+public final class DecodeTarget {
+
+    private static final int LONG = 0; // integers up to 64 bits, and booleans as 0 or 1
+    private static final int BYTES = 1; // byte strings, strings as UTF-8, and wider integers as full-width two's complement
+    private static final int NODE = 2; // tuples and arrays
+
+    private final V3Type type; // a tuple, or an array whose elements are not bytes
+    private int size;
+    private long[] longs;
+    private byte[][] bytes;
+    private int[] lengths;
+    private DecodeTarget[] nodes;
+
+    public static DecodeTarget of(V3Type tupleType) {
+        if (tupleType.typeCode != V3Type.TYPE_CODE_TUPLE) throw new IllegalArgumentException("not a tuple type: " + tupleType.canonicalType);
+        return new DecodeTarget(tupleType);
+    }
+
+    private DecodeTarget(V3Type type) {
+        this.type = type;
+        if (type.typeCode == V3Type.TYPE_CODE_TUPLE) {
+            final V3Type[] ets = type.elementTypes;
+            size = ets.length;
+            longs = new long[size];
+            bytes = new byte[size][];
+            lengths = new int[size];
+            nodes = new DecodeTarget[size];
+            for (int i = 0; i < size; i++) {
+                init(i, ets[i]);
+            }
+        } else {
+            longs = new long[0];
+            bytes = new byte[0][];
+            lengths = new int[0];
+            nodes = new DecodeTarget[0];
+            if (type.arrayLen != -1) {
+                ensureCapacity(type.arrayLen);
+            }
+        }
+    }
+
+    private static int kind(V3Type t) {
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN: return LONG;
+        case V3Type.TYPE_CODE_BIG_INTEGER: return t.bitLen <= Long.SIZE ? LONG : BYTES;
+        case V3Type.TYPE_CODE_ARRAY: return t.elementType.typeCode == V3Type.TYPE_CODE_BYTE ? BYTES : NODE;
+        default: return NODE;
+        }
+    }
+
+    private void init(int i, V3Type t) {
+        switch (kind(t)) {
+        case BYTES:
+            bytes[i] = new byte[t.typeCode == V3Type.TYPE_CODE_BIG_INTEGER ? t.bitLen / Byte.SIZE : Math.max(t.arrayLen, 0)];
+            break;
+        case NODE: nodes[i] = new DecodeTarget(t); break;
+        default:
+        }
+    }
+
+    private void ensureCapacity(int len) {
+        final int capacity = longs.length;
+        if (len > capacity) {
+            final int newCapacity = Math.max(len, capacity * 2);
+            final V3Type et = type.elementType;
+            switch (kind(et)) {
+            case BYTES:
+                bytes = Arrays.copyOf(bytes, newCapacity);
+                lengths = Arrays.copyOf(lengths, newCapacity);
+                break;
+            case NODE: nodes = Arrays.copyOf(nodes, newCapacity); break;
+            default:
+            }
+            longs = new long[newCapacity]; // only its length matters for BYTES and NODE
+            for (int i = capacity; i < newCapacity; i++) {
+                init(i, et);
+            }
+        }
+    }
+
+    public V3Type type() {
+        return type;
+    }
+
+    /** The number of elements: a tuple's fields, or the length of the array last decoded. */
+    public int size() {
+        return size;
+    }
+
+    public long getLong(int i) {
+        check(i, LONG);
+        return longs[i];
+    }
+
+    public boolean getBoolean(int i) {
+        check(i, LONG);
+        return longs[i] != 0;
+    }
+
+    /** Returns the buffer holding element {@code i}'s bytes, from index 0 to {@link #length(int)}. Reused by the next decoding. */
+    public byte[] bytes(int i) {
+        check(i, BYTES);
+        return bytes[i];
+    }
+
+    public int length(int i) {
+        check(i, BYTES);
+        return lengths[i];
+    }
+
+    public String string(int i) {
+        check(i, BYTES);
+        return new String(bytes[i], 0, lengths[i], StandardCharsets.UTF_8);
+    }
+
+    public BigInteger bigInteger(int i) {
+        final V3Type t = elementType(i);
+        if (t.typeCode != V3Type.TYPE_CODE_BIG_INTEGER) throw new IllegalArgumentException("element " + i + " is not an integer");
+        if (kind(t) == LONG) {
+            final BigInteger val = BigInteger.valueOf(longs[i]);
+            return t.unsigned && longs[i] < 0 ? val.add(BigInteger.ONE.shiftLeft(Long.SIZE)) : val;
+        }
+        final byte[] b = Arrays.copyOf(bytes[i], lengths[i]);
+        return t.unsigned ? new BigInteger(1, b) : new BigInteger(b);
+    }
+
+    /** Returns the target for element {@code i}, a tuple or an array. */
+    public DecodeTarget get(int i) {
+        check(i, NODE);
+        return nodes[i];
+    }
+
+    private V3Type elementType(int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+        return type.typeCode == V3Type.TYPE_CODE_TUPLE ? type.elementTypes[i] : type.elementType;
+    }
+
+    private void check(int i, int kind) {
+        if (kind(elementType(i)) != kind) throw new IllegalArgumentException("element " + i + " is of type " + elementType(i).canonicalType);
+    }
+
+    void decode(ByteBuffer bb, boolean external) {
+        if (type.typeCode == V3Type.TYPE_CODE_TUPLE) {
+            final V3Type[] ets = type.elementTypes;
+            for (int i = 0; i < ets.length; i++) {
+                decodeElement(i, ets[i], bb, external);
+            }
+            return;
+        }
+        final V3Type et = type.elementType;
+        if (et.typeCode == V3Type.TYPE_CODE_BOOLEAN) {
+            decodeBooleans(bb);
+            return;
+        }
+        final int len = V3.getLength(type, bb, external, null);
+        ensureCapacity(len);
+        size = len;
+        for (int i = 0; i < len; i++) {
+            decodeElement(i, et, bb, external);
+        }
+    }
+
+    private void decodeElement(int i, V3Type t, ByteBuffer bb, boolean external) {
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN:
+            if (!bb.hasRemaining()) throw new DecodeException(Validator.TRUNCATED, bb.position());
+            final byte b = bb.get();
+            if (b != 0x00 && b != 0x01) throw new DecodeException(Validator.BAD_BOOLEAN, bb.position() - 1);
+            longs[i] = b;
+            return;
+        case V3Type.TYPE_CODE_BIG_INTEGER:
+            if (t.bitLen <= Long.SIZE) {
+                V3.checkLong(t.bitLen / Byte.SIZE, bb, external);
+                longs[i] = V3.decodeLong(t.bitLen / Byte.SIZE, t.unsigned, bb, external);
+            } else {
+                decodeWideInteger(i, t.bitLen / Byte.SIZE, bb, external);
+            }
+            return;
+        default:
+            if (t.typeCode == V3Type.TYPE_CODE_ARRAY && t.elementType.typeCode == V3Type.TYPE_CODE_BYTE) {
+                final int start = bb.position();
+                final int n = t.arrayLen == -1 ? V3.readStringPrefix(bb) : t.arrayLen;
+                if (n > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, start);
+                if (n > bytes[i].length) {
+                    bytes[i] = new byte[Math.max(n, bytes[i].length * 2)];
+                }
+                bb.get(bytes[i], 0, n);
+                lengths[i] = n;
+            } else {
+                nodes[i].decode(bb, external);
+            }
+        }
+    }
+
+    /** Stores the integer at full width, zero-filling an external encoding which is shorter, and so positive. */
+    private void decodeWideInteger(int i, int byteLen, ByteBuffer bb, boolean external) {
+        final int start = bb.position();
+        int n = byteLen;
+        if (external) {
+            n = V3.readStringPrefix(bb);
+            if (n > byteLen) throw new DecodeException(Validator.MALFORMED, start);
+        }
+        if (n > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, start);
+        final byte[] b = bytes[i];
+        Arrays.fill(b, 0, byteLen - n, (byte) 0);
+        bb.get(b, byteLen - n, n);
+        lengths[i] = byteLen;
+    }
+
+    private void decodeBooleans(ByteBuffer bb) {
+        final int len = type.arrayLen == 0 ? 0 : V3.getLength(type, bb, false, null);
+        final int start = bb.position();
+        ensureCapacity(len);
+        size = len;
+        if (len == 0) {
+            return;
+        }
+        if (BitOps.packedLength(len) > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, start);
+        final int usedBits = len % Byte.SIZE;
+        if (usedBits != 0 && (bb.get(start) & 0xFF) >>> usedBits != 0) throw new DecodeException(Validator.NON_CANONICAL, start);
+        final int unused = BitOps.packedLength(len) * Byte.SIZE - len;
+        for (int i = 0; i < len; i++) {
+            final int k = unused + i;
+            longs[i] = (bb.get(start + (k >>> 3)) >>> (7 - (k & 7))) & 1;
+        }
+        bb.position(start + BitOps.packedLength(len));
+    }
+}
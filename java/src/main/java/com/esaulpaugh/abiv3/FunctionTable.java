@@ -0,0 +1,65 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** A contract's functions, indexed by function number. Each function's arguments are described by a tuple type. */
+public final class FunctionTable {
+
+    private final String[] names;
+    private final V3Type[] types;
+    private final Map<String, Integer> numbers;
+
+    FunctionTable(String[] names, V3Type[] types) {
+        if (names.length != types.length) throw new IllegalArgumentException();
+        this.names = names;
+        this.types = types;
+        this.numbers = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            if (numbers.put(signature(i), i) != null) throw new IllegalArgumentException("duplicate function: " + signature(i));
+        }
+    }
+
+    /** The number of functions, i.e. one more than the greatest function number. */
+    public int size() {
+        return types.length;
+    }
+
+    public String name(int functionNumber) {
+        return names[functionNumber];
+    }
+
+    /** The tuple type of the arguments of the given function. */
+    public V3Type type(int functionNumber) {
+        return types[functionNumber];
+    }
+
+    /** The function's name followed by the canonical type of its arguments, e.g. {@code transfer(address,uint256)}. */
+    public String signature(int functionNumber) {
+        return names[functionNumber] + types[functionNumber].canonicalType;
+    }
+
+    /**
+     * @param signature a signature in the form returned by {@link #signature(int)}
+     * @return the function number, or -1 if there is no such function
+     */
+    public int functionNumber(String signature) {
+        final Integer n = numbers.get(signature);
+        return n != null ? n : -1;
+    }
+}
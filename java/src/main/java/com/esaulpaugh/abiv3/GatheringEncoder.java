@@ -0,0 +1,147 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes into a gather list: everything but large byte-string payloads goes into one buffer, and the payloads are
+ * referenced, read-only, in between its slices. See {@link V3#encodeFunctionGathering(int, V3Type, Object[], boolean, int)}.
+ */
+final class GatheringEncoder {
+
+    private final boolean external;
+    private final int threshold;
+    private final List<ByteBuffer> out = new ArrayList<>();
+    private ByteBuffer scratch;
+    private int sliceStart;
+
+    private GatheringEncoder(boolean external, int threshold) {
+        this.external = external;
+        this.threshold = threshold;
+    }
+
+    static ByteBuffer[] encode(int functionNumber, V3Type tupleType, Object[] vals, boolean external, int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("threshold must be positive");
+        final int len = V3.measureFunction(functionNumber, tupleType, vals, external);
+        final GatheringEncoder g = new GatheringEncoder(external, threshold);
+        final long referenced = g.referencedLength(tupleType, vals);
+        g.scratch = ByteBuffer.allocate((int) (len - referenced));
+        V3.putHeader(functionNumber, external, g.scratch);
+        g.encode(tupleType, vals);
+        if (V3.isPaddedLength((int) (g.scratch.position() + referenced))) {
+            g.scratch.put((byte) 0x00);
+        }
+        g.endSlice();
+        return g.out.toArray(new ByteBuffer[0]);
+    }
+
+    /** Returns the total length of the payloads which will be referenced rather than copied. */
+    private long referencedLength(V3Type t, Object val) {
+        if (!hasByteStrings(t)) {
+            return 0L;
+        }
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_ARRAY:
+            if (t.elementType.typeCode == V3Type.TYPE_CODE_BYTE) {
+                return isReferenced(t, val) ? ((byte[]) val).length : 0L;
+            }
+            long sum = 0L;
+            for (Object e : (Object[]) val) {
+                sum += referencedLength(t.elementType, e);
+            }
+            return sum;
+        case V3Type.TYPE_CODE_TUPLE:
+            final Object[] tuple = (Object[]) val;
+            long total = 0L;
+            for (int i = 0; i < tuple.length; i++) {
+                total += referencedLength(t.elementTypes[i], tuple[i]);
+            }
+            return total;
+        default: throw new AssertionError();
+        }
+    }
+
+    private boolean isReferenced(V3Type t, Object val) {
+        return !t.isString && ((byte[]) val).length >= threshold;
+    }
+
+    private void encode(V3Type t, Object val) {
+        if (!hasByteStrings(t)) {
+            V3.encode(t, val, external, scratch);
+            return;
+        }
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_ARRAY:
+            if (t.elementType.typeCode == V3Type.TYPE_CODE_BYTE) {
+                if (isReferenced(t, val)) {
+                    final byte[] payload = (byte[]) val;
+                    if (t.arrayLen == -1) {
+                        V3.putRlpPrefix(payload.length, payload.length == 1 ? payload[0] : 0, scratch);
+                    }
+                    endSlice();
+                    out.add(ByteBuffer.wrap(payload).asReadOnlyBuffer());
+                } else {
+                    V3.encode(t, val, external, scratch);
+                }
+                return;
+            }
+            final Object[] arr = (Object[]) val;
+            if (t.arrayLen == -1) {
+                V3.putRlp(arr.length, scratch);
+            }
+            for (Object e : arr) {
+                encode(t.elementType, e);
+            }
+            return;
+        case V3Type.TYPE_CODE_TUPLE:
+            final Object[] tuple = (Object[]) val;
+            for (int i = 0; i < tuple.length; i++) {
+                encode(t.elementTypes[i], tuple[i]);
+            }
+            return;
+        default: throw new AssertionError();
+        }
+    }
+
+    /** Adds what has been written to the scratch buffer since the last slice, if anything. */
+    private void endSlice() {
+        final int end = scratch.position();
+        if (end > sliceStart) {
+            final ByteBuffer slice = scratch.duplicate();
+            slice.limit(end).position(sliceStart);
+            out.add(slice.slice());
+            sliceStart = end;
+        }
+    }
+
+    /** Returns true if a value of the given type may contain a byte string. */
+    private static boolean hasByteStrings(V3Type t) {
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_ARRAY: return t.elementType.typeCode == V3Type.TYPE_CODE_BYTE || hasByteStrings(t.elementType);
+        case V3Type.TYPE_CODE_TUPLE:
+            for (V3Type e : t.elementTypes) {
+                if (hasByteStrings(e)) {
+                    return true;
+                }
+            }
+            return false;
+        default: return false;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table-driven hexadecimal conversion over {@link CharSequence}s, {@code char[]}s and ASCII {@code byte[]}s. Encodes in
+ * lowercase; decodes either case, with or without a {@code 0x} prefix.
+ */
+public final class Hex {
+
+    private Hex() {}
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] PAIRS = new char[256 * 2]; // the two digits of each byte value
+    private static final byte[] NIBBLES = new byte[128]; // the value of each ASCII digit, or -1
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            PAIRS[i * 2] = DIGITS[i >>> 4];
+            PAIRS[i * 2 + 1] = DIGITS[i & 0xF];
+        }
+        Arrays.fill(NIBBLES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            NIBBLES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            NIBBLES['a' + i] = (byte) (10 + i);
+            NIBBLES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private static final int MAX_SCRATCH = 1 << 16; // larger inputs get a one-off buffer rather than one retained per thread
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+
+    public static String encode(byte[] bytes) {
+        return new String(encode(bytes, 0, bytes.length));
+    }
+
+    /** Returns the {@code 2 * len} digits of the given bytes. */
+    public static char[] encode(byte[] bytes, int off, int len) {
+        final char[] out = new char[len * 2];
+        encode(bytes, off, len, out, 0);
+        return out;
+    }
+
+    /** Writes the {@code 2 * len} digits of the given bytes to {@code dest} at {@code destOff}. */
+    public static void encode(byte[] bytes, int off, int len, char[] dest, int destOff) {
+        for (int i = 0; i < len; i++) {
+            final int pair = (bytes[off + i] & 0xFF) * 2;
+            dest[destOff++] = PAIRS[pair];
+            dest[destOff++] = PAIRS[pair + 1];
+        }
+    }
+
+    /** Writes the {@code 2 * len} digits of the given bytes to {@code dest} at {@code destOff} as ASCII. */
+    public static void encodeAscii(byte[] bytes, int off, int len, byte[] dest, int destOff) {
+        for (int i = 0; i < len; i++) {
+            final int pair = (bytes[off + i] & 0xFF) * 2;
+            dest[destOff++] = (byte) PAIRS[pair];
+            dest[destOff++] = (byte) PAIRS[pair + 1];
+        }
+    }
+
+    /**
+     * Decodes a whole sequence of digits, which may begin with {@code 0x}.
+     *
+     * @throws IllegalArgumentException if the digits are of odd number or a character is not a digit
+     */
+    public static byte[] decode(CharSequence hex) {
+        final int from = prefixLength(hex);
+        final byte[] out = new byte[decodedLength(hex.length() - from)];
+        decode(hex, from, hex.length(), out, 0);
+        return out;
+    }
+
+    /** Decodes {@code chars[from, to)}, which may begin with {@code 0x}. */
+    public static byte[] decode(char[] chars, int from, int to) {
+        if (to - from >= 2 && chars[from] == '0' && (chars[from + 1] | 0x20) == 'x') {
+            from += 2;
+        }
+        final byte[] out = new byte[decodedLength(to - from)];
+        int j = 0;
+        for (int i = from; i < to; i += 2) {
+            out[j++] = (byte) ((nibble(chars[i], i) << 4) | nibble(chars[i + 1], i + 1));
+        }
+        return out;
+    }
+
+    /** Decodes the ASCII digits {@code ascii[from, to)}, which may begin with {@code 0x}. */
+    public static byte[] decodeAscii(byte[] ascii, int from, int to) {
+        if (to - from >= 2 && ascii[from] == '0' && (ascii[from + 1] | 0x20) == 'x') {
+            from += 2;
+        }
+        final byte[] out = new byte[decodedLength(to - from)];
+        int j = 0;
+        for (int i = from; i < to; i += 2) {
+            out[j++] = (byte) ((nibble((char) (ascii[i] & 0xFF), i) << 4) | nibble((char) (ascii[i + 1] & 0xFF), i + 1));
+        }
+        return out;
+    }
+
+    /**
+     * Decodes the digits {@code hex[from, to)}, which must not include a prefix, to {@code dest} at {@code destOff}.
+     *
+     * @return the number of bytes written
+     */
+    public static int decode(CharSequence hex, int from, int to, byte[] dest, int destOff) {
+        final int n = decodedLength(to - from);
+        for (int i = from; i < to; i += 2) {
+            dest[destOff++] = (byte) ((nibble(hex.charAt(i), i) << 4) | nibble(hex.charAt(i + 1), i + 1));
+        }
+        return n;
+    }
+
+    /**
+     * Decodes a whole sequence of digits, which may begin with {@code 0x}, into a buffer owned by the calling thread,
+     * which is valid only until the thread's next call. Decodings over {@link #MAX_SCRATCH} bytes get a buffer of their own.
+     */
+    static ByteBuffer decodeToScratch(CharSequence hex) {
+        final int from = prefixLength(hex);
+        final int n = decodedLength(hex.length() - from);
+        ByteBuffer scratch;
+        if (n > MAX_SCRATCH) {
+            scratch = ByteBuffer.allocate(n);
+        } else {
+            scratch = SCRATCH.get();
+            if (scratch.capacity() < n) {
+                scratch = ByteBuffer.allocate(Integer.highestOneBit(n - 1) << 1); // at most MAX_SCRATCH
+                SCRATCH.set(scratch);
+            }
+        }
+        decode(hex, from, hex.length(), scratch.array(), 0);
+        scratch.clear();
+        scratch.limit(n);
+        return scratch;
+    }
+
+    private static int prefixLength(CharSequence hex) {
+        return hex.length() >= 2 && hex.charAt(0) == '0' && (hex.charAt(1) | 0x20) == 'x' ? 2 : 0;
+    }
+
+    private static int decodedLength(int digits) {
+        if ((digits & 1) != 0) throw new IllegalArgumentException("odd number of hex digits: " + digits);
+        return digits / 2;
+    }
+
+    private static int nibble(char c, int index) {
+        final int v = c < 128 ? NIBBLES[c] : -1;
+        if (v < 0) throw new IllegalArgumentException("not a hex digit at " + index + ": " + c);
+        return v;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Decodes a function call which arrives in arbitrarily split chunks. Each call to {@link #feed(ByteBuffer)} decodes as
+ * far as the input allows and remembers where it stopped, so no field is decoded twice. Fields are decoded in place
+ * from the chunk; only a field which straddles two chunks is copied, into a small internal buffer. The decoder never
+ * reads past the end of the encoding (including its padding byte, if any), so whatever follows it in the last chunk is
+ * left unconsumed.
+ * <p>
+ * Not thread-safe. Call {@link #reset()} to decode another encoding of the same type.
+ */
+public final class IncrementalDecoder {
+
+    private final V3Type tupleType;
+    private final DecodeBudget budget;
+    private DecodeBudget.Meter meter;
+    private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+    private ByteBuffer pending = ByteBuffer.allocate(64); // the partial unit carried over from the previous chunk
+    private boolean headerRead;
+    private boolean external;
+    private int consumed;
+    private Object[] unpadded; // the arguments, while awaiting the padding byte
+    private Object[] result;
+
+    public IncrementalDecoder(V3Type tupleType) {
+        this(tupleType, DecodeBudget.UNLIMITED);
+    }
+
+    /**
+     * Creates a decoder whose every decoding is held to the given limits. Since the total length of the input is not
+     * known in advance, they are the only bound on what a hostile length prefix can make it allocate.
+     */
+    public IncrementalDecoder(V3Type tupleType, DecodeBudget budget) {
+        if (tupleType.typeCode != V3Type.TYPE_CODE_TUPLE) throw new IllegalArgumentException("not a tuple type");
+        this.tupleType = tupleType;
+        this.budget = budget;
+        this.meter = budget.meter();
+    }
+
+    /**
+     * Consumes bytes from the chunk, starting at its position, until the encoding is complete or the chunk is exhausted.
+     *
+     * @param chunk the next bytes of the encoding; must be big-endian
+     * @return 0 if the encoding is complete, otherwise the minimum number of further bytes needed to make progress
+     */
+    public int feed(ByteBuffer chunk) {
+        V3.checkOrder(chunk);
+        while (result == null) {
+            if (pending.position() == 0) {
+                final int required = required(chunk);
+                if (required > chunk.remaining()) {
+                    final int need = required - chunk.remaining();
+                    transfer(chunk, chunk.remaining());
+                    return need;
+                }
+                step(chunk);
+            } else {
+                int required;
+                while ((required = required(pendingView())) > pending.position()) {
+                    if (!chunk.hasRemaining()) {
+                        return required - pending.position();
+                    }
+                    transfer(chunk, Math.min(required - pending.position(), chunk.remaining()));
+                }
+                final ByteBuffer unit = pendingView();
+                step(unit);
+                pending.flip();
+                pending.position(unit.position());
+                pending.compact(); // empty unless the unit was zero-length
+            }
+        }
+        return 0;
+    }
+
+    public boolean isComplete() {
+        return result != null;
+    }
+
+    /** True if the encoding is in the external format. Meaningful once at least the first byte has been fed. */
+    public boolean isExternal() {
+        return external;
+    }
+
+    /** Returns the decoded arguments, or null if the encoding is not yet complete. */
+    public Object[] result() {
+        return result;
+    }
+
+    public void reset() {
+        stack.clear();
+        pending.clear();
+        meter = budget.meter();
+        headerRead = false;
+        external = false;
+        consumed = 0;
+        unpadded = null;
+        result = null;
+    }
+
+    /** Returns the length of the next unit, or a lower bound on it if the buffer is too short to tell. */
+    private int required(ByteBuffer bb) {
+        if (!headerRead) {
+            if (!bb.hasRemaining()) {
+                return 1;
+            }
+            final int zeroth = bb.get(bb.position());
+            if ((zeroth & V3.VERSION_MASK) == V3.VERSION_ID_INTERNAL) {
+                return 1 + Integer.BYTES;
+            }
+            return (zeroth & V3.VERSION_MASK) == V3.VERSION_ID_EXTERNAL && (zeroth & V3.ID_MASK) == V3.ID_MASK
+                    ? 1 + itemLength(bb, 1)
+                    : 1; // let readHeader judge it
+        }
+        if (unpadded != null) {
+            return 1;
+        }
+        final V3Type t = stack.peek().next();
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN: return 1;
+        case V3Type.TYPE_CODE_BIG_INTEGER: return external ? itemLength(bb, 0) : t.bitLen / Byte.SIZE;
+        case V3Type.TYPE_CODE_ARRAY:
+            switch (t.elementType.typeCode) {
+            case V3Type.TYPE_CODE_BYTE: return t.arrayLen == -1 ? itemLength(bb, 0) : t.arrayLen;
+            case V3Type.TYPE_CODE_BOOLEAN:
+                if (t.arrayLen != -1) {
+                    return packedLength(t.arrayLen);
+                }
+                final int prefixLen = itemLength(bb, 0);
+                return prefixLen > bb.remaining()
+                        ? prefixLen
+                        : prefixLen + packedLength(V3.getLength(t, bb.duplicate()));
+            default: return t.arrayLen == -1 ? itemLength(bb, 0) : 0; // the length prefix, if any
+            }
+        case V3Type.TYPE_CODE_TUPLE: return 0;
+        default: throw new AssertionError();
+        }
+    }
+
+    /** Decodes the next unit, which the buffer is known to hold in full, then closes any completed tuples and arrays. */
+    private void step(ByteBuffer bb) {
+        final int start = bb.position();
+        if (unpadded != null) {
+            if (bb.get() != 0x00) throw new DecodeException(Validator.TRAILING_BYTES, consumed);
+            result = unpadded;
+            return;
+        }
+        if (!headerRead) {
+            external = V3.readHeader(bb);
+            headerRead = true;
+            meter.enter(consumed);
+            stack.push(new Frame(tupleType, new Object[tupleType.elementTypes.length], tupleType.elementTypes.length));
+        } else {
+            final Frame f = stack.peek();
+            final V3Type t = f.next();
+            if (t.typeCode == V3Type.TYPE_CODE_TUPLE) {
+                meter.enter(consumed);
+                stack.push(new Frame(t, new Object[t.elementTypes.length], t.elementTypes.length));
+            } else if (t.typeCode == V3Type.TYPE_CODE_ARRAY
+                    && t.elementType.typeCode != V3Type.TYPE_CODE_BYTE
+                    && t.elementType.typeCode != V3Type.TYPE_CODE_BOOLEAN) {
+                final int len = V3.getLength(t, bb);
+                meter.enter(consumed);
+                meter.array(t, len, consumed);
+                stack.push(new Frame(t, newArray(t, len), len));
+            } else if (f.type.primitiveBits != 0) {
+                f.putLong(V3.decodeLong(t.bitLen / Byte.SIZE, t.unsigned, bb, external));
+            } else {
+                f.put(V3.decode(t, bb, external, meter));
+            }
+        }
+        consumed += bb.position() - start;
+        Frame top;
+        while ((top = stack.peek()) != null && top.index == top.len) {
+            stack.pop();
+            meter.exit();
+            final Frame parent = stack.peek();
+            if (parent != null) {
+                parent.put(top.out);
+            } else if (consumed % 32 == 4) {
+                unpadded = (Object[]) top.out;
+            } else {
+                result = (Object[]) top.out;
+            }
+        }
+    }
+
+    private ByteBuffer pendingView() {
+        return (ByteBuffer) pending.duplicate().flip();
+    }
+
+    private void transfer(ByteBuffer chunk, int n) {
+        if (pending.remaining() < n) {
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + n));
+            bigger.put(pendingView());
+            pending = bigger;
+        }
+        final ByteBuffer src = chunk.duplicate();
+        src.limit(src.position() + n);
+        pending.put(src);
+        chunk.position(chunk.position() + n);
+    }
+
+    private static Object newArray(V3Type type, int len) {
+        switch (type.primitiveBits) {
+        case Long.SIZE: return new long[len];
+        case Integer.SIZE: return new int[len];
+        case Short.SIZE: return new short[len];
+        case Byte.SIZE: return new byte[len];
+        default: return type.elementType.arrayFactory.apply(len);
+        }
+    }
+
+    private static int packedLength(int numBooleans) {
+        return Integers.roundLengthUp(numBooleans, Byte.SIZE) / Byte.SIZE;
+    }
+
+    /**
+     * Returns the length of the RLP string at the given offset from the buffer's position, or a lower bound on it if the
+     * buffer is too short to tell.
+     */
+    private int itemLength(ByteBuffer bb, int offset) {
+        if (bb.remaining() <= offset) {
+            return offset + 1;
+        }
+        final int pos = bb.position() + offset;
+        final int lead = bb.get(pos) & 0xFF;
+        if (lead < 0x80) {
+            return 1;
+        }
+        if (lead < 0xB8) {
+            return 1 + lead - 0x80;
+        }
+        if (lead < 0xC0) {
+            final int lengthOfLength = lead - 0xB7;
+            if (lengthOfLength > Integer.BYTES) throw new DecodeException(Validator.MALFORMED, consumed + offset);
+            if (bb.remaining() < offset + 1 + lengthOfLength) {
+                return 1 + lengthOfLength;
+            }
+            long dataLen = 0;
+            for (int i = 1; i <= lengthOfLength; i++) {
+                dataLen = (dataLen << Byte.SIZE) | (bb.get(pos + i) & 0xFFL);
+            }
+            if (dataLen > Integer.MAX_VALUE - Long.BYTES) throw new DecodeException(Validator.MALFORMED, consumed + offset);
+            return 1 + lengthOfLength + (int) dataLen;
+        }
+        throw new DecodeException(Validator.MALFORMED, consumed + offset);
+    }
+
+    private static final class Frame {
+        final V3Type type; // a tuple or an array of arrays, tuples or integers
+        final Object out;
+        final int len;
+        int index;
+
+        Frame(V3Type type, Object out, int len) {
+            this.type = type;
+            this.out = out;
+            this.len = len;
+        }
+
+        V3Type next() {
+            return type.typeCode == V3Type.TYPE_CODE_TUPLE ? type.elementTypes[index] : type.elementType;
+        }
+
+        void put(Object val) {
+            ((Object[]) out)[index++] = val;
+        }
+
+        void putLong(long val) {
+            switch (type.primitiveBits) {
+            case Long.SIZE: ((long[]) out)[index++] = val; return;
+            case Integer.SIZE: ((int[]) out)[index++] = (int) val; return;
+            case Short.SIZE: ((short[]) out)[index++] = (short) val; return;
+            default: ((byte[]) out)[index++] = (byte) val;
+            }
+        }
+    }
+}
@@ -37,13 +37,7 @@ public final class Integers {
         if (len < 0 || len > Integer.BYTES || buffer[offset] == 0) {
             throw new IllegalArgumentException();
         }
-        int shift = Byte.SIZE * (len - 1);
-        int val = 0;
-        for (int i = 0; i < len; i++) {
-            val |= (buffer[offset + i] & 0xFF) << shift;
-            shift -= Byte.SIZE;
-        }
-        return val;
+        return (int) Words.getLong(buffer, offset, len);
     }
 
     /**
@@ -60,12 +54,49 @@ public final class Integers {
         if (len < 0 || len > Long.BYTES || buffer[offset] == 0) {
             throw new IllegalArgumentException();
         }
-        int shift = Byte.SIZE * (len - 1);
-        long val = 0L;
-        for (int i = 0; i < len; i++) {
-            val |= (buffer[offset + i] & 0xFFL) << shift;
-            shift -= Byte.SIZE;
+        return Words.getLong(buffer, offset, len);
+    }
+
+    /**
+     * Reads an integer up to four bytes in length from the buffer's position, advancing it. Big-endian two's complement
+     * format.
+     *
+     * @param bb  the buffer, which must be big-endian
+     * @param len the length in bytes of the integer's representation
+     * @return the integer
+     * @throws IllegalArgumentException if the integer's representation is found to have leading zeroes
+     */
+    public static int getInt(ByteBuffer bb, int len) {
+        if (len > Integer.BYTES) throw new IllegalArgumentException();
+        return (int) getLong(bb, len);
+    }
+
+    /**
+     * Reads an integer up to eight bytes in length from the buffer's position, advancing it. Big-endian two's complement
+     * format. Reads a whole word at once if the buffer has eight bytes remaining.
+     *
+     * @param bb  the buffer, which must be big-endian
+     * @param len the length in bytes of the integer's representation
+     * @return the integer
+     * @throws IllegalArgumentException if the integer's representation is found to have leading zeroes
+     */
+    public static long getLong(ByteBuffer bb, int len) {
+        if (len == 0) return 0L;
+        final int pos = bb.position();
+        if (len < 0 || len > Long.BYTES || bb.get(pos) == 0) {
+            throw new IllegalArgumentException();
+        }
+        final long val;
+        if (bb.limit() - pos >= Long.BYTES) {
+            val = bb.getLong(pos) >>> (Long.SIZE - len * Byte.SIZE);
+        } else {
+            long v = 0L;
+            for (int i = 0; i < len; i++) {
+                v = (v << Byte.SIZE) | (bb.get(pos + i) & 0xFFL);
+            }
+            val = v;
         }
+        bb.position(pos + len);
         return val;
     }
 
@@ -77,12 +108,18 @@ public final class Integers {
      * @return the byte length
      */
     public static int len(int val) {
-        int len = 0;
-        while (val != 0) {
-            len++;
-            val >>>= Byte.SIZE;
-        }
-        return len;
+        return (Integer.SIZE + (Byte.SIZE - 1) - Integer.numberOfLeadingZeros(val)) / Byte.SIZE;
+    }
+
+    /**
+     * Returns the byte length of a long's minimal (without leading zeroes) two's complement representation. Zero always
+     * has zero length.
+     *
+     * @param val the long
+     * @return the byte length
+     */
+    public static int len(long val) {
+        return (Long.SIZE + (Byte.SIZE - 1) - Long.numberOfLeadingZeros(val)) / Byte.SIZE;
     }
 
     /**
@@ -108,21 +145,33 @@ public final class Integers {
      * @see #toBytes(int)
      */
     public static void putInt(int val, byte[] o, int i) {
-        final byte[] temp = new byte[Integer.BYTES];
-        int j = Integer.BYTES;
-        for ( ; val != 0; val >>>= Byte.SIZE) {
-            temp[--j] = (byte) val;
+        putLong(val & 0xFFFFFFFFL, o, i);
+    }
+
+    /**
+     * Inserts into a byte array a long's minimal (without leading zeroes), big-endian two's complement representation,
+     * up to eight bytes in length. Zero always has length zero.
+     *
+     * @param val the long to be inserted
+     * @param o   the destination array
+     * @param i   the index into the destination for the output
+     */
+    public static void putLong(long val, byte[] o, int i) {
+        for (int shift = (len(val) - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            o[i++] = (byte) (val >>> shift);
         }
-        System.arraycopy(temp, j, o, i, Integer.BYTES - j);
     }
 
+    /** Like {@link #putInt(int, byte[], int)}, but at the buffer's position, advancing it. */
+    public static void putInt(int val, ByteBuffer o) {
+        putLong(val & 0xFFFFFFFFL, o);
+    }
+
+    /** Like {@link #putLong(long, byte[], int)}, but at the buffer's position, advancing it. */
     public static void putLong(long val, ByteBuffer o) {
-        final byte[] temp = new byte[Long.BYTES];
-        int j = Long.BYTES;
-        for ( ; val != 0; val >>>= Byte.SIZE) {
-            temp[--j] = (byte) val;
+        for (int shift = (len(val) - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            o.put((byte) (val >>> shift));
         }
-        o.put(temp, j, Long.BYTES - j);
     }
 
     /**
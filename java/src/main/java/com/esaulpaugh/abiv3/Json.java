@@ -0,0 +1,222 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull parser for JSON which reads from a {@link Reader} through a fixed-size buffer. The caller walks the
+ * input value by value, reading the strings it wants and skipping everything else, so no tree of the document is
+ * built and skipped values, however large, are scanned without being materialized.
+ */
+final class Json {
+
+    private final Reader reader;
+    private final char[] buf = new char[8192];
+    private int pos;
+    private int len;
+    private long offset; // of buf[0] within the input
+
+    Json(Reader reader) {
+        this.reader = reader;
+    }
+
+    /** Consumes the opening bracket of an array and returns whether it has a first element. */
+    boolean beginArray() throws IOException {
+        if (skipWhitespace() != '[') throw error("expected '['");
+        pos++;
+        if (skipWhitespace() == ']') {
+            pos++;
+            return false;
+        }
+        return true;
+    }
+
+    /** Following an element, consumes the comma and returns true if another follows, or the closing bracket. */
+    boolean nextElement() throws IOException {
+        final int c = skipWhitespace();
+        pos++;
+        if (c == ']') return false;
+        if (c != ',') throw error("expected ',' or ']'");
+        return true;
+    }
+
+    /** Consumes the opening brace of an object and returns its first key, or null if it is empty. */
+    String beginObject() throws IOException {
+        if (skipWhitespace() != '{') throw error("expected '{'");
+        pos++;
+        if (skipWhitespace() == '}') {
+            pos++;
+            return null;
+        }
+        return key();
+    }
+
+    /** Following a member's value, returns the next key, or null once the closing brace is consumed. */
+    String nextKey() throws IOException {
+        final int c = skipWhitespace();
+        pos++;
+        if (c == '}') return null;
+        if (c != ',') throw error("expected ',' or '}'");
+        return key();
+    }
+
+    /** Reads a string value, or skips any other value and returns null. */
+    String stringOrSkip() throws IOException {
+        if (skipWhitespace() != '"') {
+            skipValue();
+            return null;
+        }
+        pos++;
+        final StringBuilder sb = new StringBuilder();
+        string(sb);
+        return sb.toString();
+    }
+
+    /** Returns whether the next value is null, consuming it if so. */
+    boolean nullValue() throws IOException {
+        if (skipWhitespace() != 'n') return false;
+        expect("null");
+        return true;
+    }
+
+    void skipValue() throws IOException {
+        final int c = skipWhitespace();
+        switch (c) {
+        case '{':
+            for (String key = beginObject(); key != null; key = nextKey()) {
+                skipValue();
+            }
+            return;
+        case '[':
+            if (beginArray()) {
+                do {
+                    skipValue();
+                } while (nextElement());
+            }
+            return;
+        case '"': pos++; string(null); return;
+        case 't': expect("true"); return;
+        case 'f': expect("false"); return;
+        case 'n': expect("null"); return;
+        case -1: throw error("unexpected end of input");
+        default: skipNumber();
+        }
+    }
+
+    /** Checks that nothing but whitespace remains. */
+    void end() throws IOException {
+        if (skipWhitespace() != -1) throw error("trailing characters");
+    }
+
+    private String key() throws IOException {
+        if (skipWhitespace() != '"') throw error("expected string key");
+        pos++;
+        final StringBuilder sb = new StringBuilder();
+        string(sb);
+        if (skipWhitespace() != ':') throw error("expected ':'");
+        pos++;
+        return sb.toString();
+    }
+
+    /** Reads the rest of a string into {@code sb}, or just past it if {@code sb} is null. */
+    private void string(StringBuilder sb) throws IOException {
+        while (true) {
+            final int c = next();
+            switch (c) {
+            case -1: throw error("unterminated string");
+            case '"': return;
+            case '\\':
+                final int e = next();
+                final char ch;
+                switch (e) {
+                case '"': case '\\': case '/': ch = (char) e; break;
+                case 'b': ch = '\b'; break;
+                case 'f': ch = '\f'; break;
+                case 'n': ch = '\n'; break;
+                case 'r': ch = '\r'; break;
+                case 't': ch = '\t'; break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        final int d = Character.digit(next(), 16);
+                        if (d < 0) throw error("bad unicode escape");
+                        code = (code << 4) | d;
+                    }
+                    ch = (char) code;
+                    break;
+                default: throw error("bad escape");
+                }
+                if (sb != null) {
+                    sb.append(ch);
+                }
+                break;
+            default:
+                if (sb != null) {
+                    sb.append((char) c);
+                }
+            }
+        }
+    }
+
+    private void skipNumber() throws IOException {
+        final long start = offset + pos;
+        int c;
+        while ((c = peek()) != -1 && (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))) {
+            pos++;
+        }
+        if (offset + pos == start) throw error("unexpected character");
+    }
+
+    private void expect(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) throw error("expected " + literal);
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            pos++;
+        }
+        return c;
+    }
+
+    private int next() throws IOException {
+        final int c = peek();
+        if (c != -1) {
+            pos++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == len) {
+            offset += len;
+            pos = 0;
+            len = Math.max(0, reader.read(buf));
+            if (len == 0) {
+                return -1;
+            }
+        }
+        return buf[pos];
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(msg + " @ " + (offset + pos));
+    }
+}
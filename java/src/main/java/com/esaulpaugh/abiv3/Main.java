@@ -91,6 +91,9 @@ public final class Main {
         testSingle("string[]", new String[] { "abcd", "efg" });
         testSingle("string[][]", new String[][] { new String[] { "abcd", "efg" } });
         testSingle("function", new byte[] { 0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23 });
+        testSingle("bytes[]", new byte[][] { new byte[] { 1 }, new byte[0], new byte[] { -128, 127 } });
+        testSingle("bytes3[2]", new byte[][] { new byte[] { 1, 2, 3 }, new byte[] { 4, 5, 6 } });
+        testSingle("uint8[][2]", new BigInteger[][] { new BigInteger[] { BigInteger.ONE }, new BigInteger[0] });
 
         testSingle(
                 "(bool[])[]",
@@ -172,7 +175,7 @@ public final class Main {
 
     private static void test(final int fnNumber, final V3Type tupleType, final Object... values) {
         final byte[] encoding = V3.encodeFunction(fnNumber, tupleType, values, true);
-        final String calldataStr = slowHex(encoding); // new BigInteger(1, rlp).toString(16);
+        final String calldataStr = Hex.encode(encoding);
         System.out.println("case" + caseNumber++ + ":\t\t"
                 + fnNumber + "\t\t"
                 + "foo" + tupleType.canonicalType + " --> "
@@ -183,14 +186,13 @@ public final class Main {
         if (!eq) {
             throw new AssertionError(values + " != " + decoded);
         }
-//        System.out.println(value + " == " + decoded[0]);
-    }
-
-    private static String slowHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b & 0xff));
+        final byte[] internal = V3.encodeFunction(fnNumber, tupleType, values, false);
+        final byte[] auto = V3.encodeFunctionAuto(fnNumber, tupleType, values);
+        if (auto.length != Math.min(encoding.length, internal.length)
+                || !Arrays.deepEquals(values, V3.decodeFunction(tupleType, internal))
+                || !Arrays.deepEquals(values, V3.decodeFunction(tupleType, auto))) {
+            throw new AssertionError("internal/auto mismatch");
         }
-        return sb.toString();
+//        System.out.println(value + " == " + decoded[0]);
     }
 }
\ No newline at end of file
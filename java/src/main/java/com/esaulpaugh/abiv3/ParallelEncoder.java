@@ -0,0 +1,153 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Encodes calls with very large array arguments on a {@link ForkJoinPool}. Such an array is cut into chunks; a parallel
+ * size pass measures each chunk, the chunk lengths give each chunk's offset in the output, and the chunks are then
+ * encoded in parallel into their disjoint regions of one array. Everything else is encoded sequentially, so the output
+ * is identical to that of {@link V3#encodeFunction(int, V3Type, Object[], boolean)}.
+ */
+final class ParallelEncoder {
+
+    /** Top-level arrays of at least this many elements are encoded in parallel. */
+    static final int MIN_PARALLEL_LENGTH = 4096;
+
+    private static final int MIN_CHUNK = 1024;
+
+    private ParallelEncoder() {}
+
+    static byte[] encode(int functionNumber, V3Type tupleType, Object[] vals, boolean external, ForkJoinPool pool) {
+        if (functionNumber < 0) throw new IllegalArgumentException();
+        final V3Type[] types = tupleType.elementTypes;
+        V3.validateLength(types.length, vals.length);
+        final Plan[] plans = new Plan[types.length];
+        long len = V3.headerLength(functionNumber, external);
+        for (int i = 0; i < types.length; i++) {
+            if (isLarge(types[i], vals[i])) {
+                plans[i] = new Plan(types[i], (Object[]) vals[i], external, pool);
+                len += plans[i].length;
+            } else {
+                len += V3.measure(types[i], vals[i], external);
+            }
+        }
+        if (len >= Integer.MAX_VALUE) throw new IllegalArgumentException("encoding too long: " + len);
+        final byte[] out = new byte[V3.isPaddedLength((int) len) ? (int) len + 1 : (int) len]; // the padding byte is zero
+        final ByteBuffer dest = ByteBuffer.wrap(out);
+        V3.putHeader(functionNumber, external, dest);
+        for (int i = 0; i < types.length; i++) {
+            if (plans[i] != null) {
+                plans[i].encode(out, dest);
+            } else {
+                V3.encode(types[i], vals[i], external, dest);
+            }
+        }
+        return out;
+    }
+
+    private static boolean isLarge(V3Type t, Object val) {
+        if (t.typeCode != V3Type.TYPE_CODE_ARRAY) {
+            return false;
+        }
+        final int et = t.elementType.typeCode;
+        return et != V3Type.TYPE_CODE_BYTE
+                && et != V3Type.TYPE_CODE_BOOLEAN
+                && val instanceof Object[]
+                && ((Object[]) val).length >= MIN_PARALLEL_LENGTH;
+    }
+
+    /** An array cut into chunks, each measured. */
+    private static final class Plan {
+
+        private final V3Type type;
+        private final Object[] arr;
+        private final boolean external;
+        private final ForkJoinPool pool;
+        private final int chunkSize;
+        private final long[] chunkLengths;
+        final long length;
+
+        Plan(V3Type type, Object[] arr, boolean external, ForkJoinPool pool) {
+            V3.validateLength(type.arrayLen, arr.length);
+            this.type = type;
+            this.arr = arr;
+            this.external = external;
+            this.pool = pool;
+            this.chunkSize = Math.max(MIN_CHUNK, arr.length / (pool.getParallelism() * 4));
+            this.chunkLengths = new long[(arr.length + chunkSize - 1) / chunkSize];
+            final V3Type et = type.elementType;
+            runChunks(pool, chunkLengths.length, c -> {
+                long sum = 0L;
+                for (int i = c * chunkSize, end = Math.min(i + chunkSize, arr.length); i < end; i++) {
+                    sum += V3.measure(et, arr[i], external);
+                }
+                chunkLengths[c] = sum;
+            });
+            long len = V3.lengthPrefixLength(type, arr.length);
+            for (long chunkLength : chunkLengths) {
+                len += chunkLength;
+            }
+            this.length = len;
+        }
+
+        /** Writes the array at the position of {@code dest}, which wraps {@code out}, and advances it past the array. */
+        void encode(byte[] out, ByteBuffer dest) {
+            if (type.arrayLen == -1) {
+                V3.putRlp(arr.length, dest);
+            }
+            final int[] offsets = new int[chunkLengths.length];
+            int offset = dest.position();
+            for (int c = 0; c < offsets.length; c++) {
+                offsets[c] = offset;
+                offset += (int) chunkLengths[c];
+            }
+            final V3Type et = type.elementType;
+            runChunks(pool, offsets.length, c -> {
+                final ByteBuffer region = ByteBuffer.wrap(out, offsets[c], (int) chunkLengths[c]);
+                for (int i = c * chunkSize, end = Math.min(i + chunkSize, arr.length); i < end; i++) {
+                    V3.encode(et, arr[i], external, region);
+                }
+                if (region.hasRemaining()) throw new AssertionError();
+            });
+            dest.position(offset);
+        }
+    }
+
+    /** Runs {@code chunk} for each index below {@code n} in the pool, rethrowing the first failure. */
+    private static void runChunks(ForkJoinPool pool, int n, IntConsumer chunk) {
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                final List<ForkJoinTask<?>> tasks = new ArrayList<>(n);
+                for (int c = 0; c < n; c++) {
+                    final int index = c;
+                    tasks.add(ForkJoinTask.adapt(() -> chunk.accept(index)));
+                }
+                invokeAll(tasks);
+            }
+        });
+    }
+}
@@ -0,0 +1,231 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A call template in which some arguments are fixed. The header and the fixed arguments are encoded once, up front;
+ * each call then encodes only the variable arguments and splices them in between the constant segments.
+ * <p>
+ * When every variable argument is of fixed width in the chosen format (a {@code bool}, a {@code bytesN}, an integer in
+ * the internal format, or a fixed-length array or tuple of such), every argument sits at a known offset, and a buffer
+ * from {@link #newBuffer()} can be reused by patching just the variable fields in place.
+ */
+public final class PreparedCall {
+
+    private final V3Type tupleType;
+    private final boolean external;
+    private final int[] variables; // the indices in the tuple of the variable arguments
+    private final byte[][] segments; // segments[k] precedes variable argument k; the last follows the last argument
+    private final int constantLength; // of all segments, the header included
+    private final int[] slots; // the offset of each variable argument in a patchable buffer, or null if not patchable
+    private final int patchedLength;
+
+    private PreparedCall(V3Type tupleType, boolean external, int[] variables, byte[][] segments, int constantLength, int[] slots, int patchedLength) {
+        this.tupleType = tupleType;
+        this.external = external;
+        this.variables = variables;
+        this.segments = segments;
+        this.constantLength = constantLength;
+        this.slots = slots;
+        this.patchedLength = patchedLength;
+    }
+
+    /**
+     * @param fixed the arguments, one per element of the tuple, of which those given as null are variable
+     */
+    public static PreparedCall of(int functionNumber, V3Type tupleType, Object[] fixed, boolean external) {
+        if (functionNumber < 0) throw new IllegalArgumentException();
+        final V3Type[] types = tupleType.elementTypes;
+        V3.validateLength(types.length, fixed.length);
+        int n = 0;
+        int len = V3.headerLength(functionNumber, external);
+        for (int i = 0; i < types.length; i++) {
+            if (fixed[i] == null) {
+                n++;
+            } else {
+                len += V3.measure(types[i], fixed[i], external);
+            }
+        }
+        final ByteBuffer constants = ByteBuffer.allocate(len);
+        V3.putHeader(functionNumber, external, constants);
+        final int[] variables = new int[n];
+        final byte[][] segments = new byte[n + 1][];
+        int[] slots = new int[n];
+        int k = 0;
+        int from = 0;
+        int offset = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (fixed[i] == null) {
+                segments[k] = copy(constants, from);
+                offset += segments[k].length;
+                from = constants.position();
+                if (slots != null && isFixedWidth(types[i], external)) {
+                    slots[k] = offset;
+                    offset += types[i].minLength(external);
+                } else {
+                    slots = null;
+                }
+                variables[k++] = i;
+            } else {
+                V3.encode(types[i], fixed[i], external, constants);
+            }
+        }
+        segments[n] = copy(constants, from);
+        offset += segments[n].length;
+        return new PreparedCall(tupleType, external, variables, segments, len, slots, slots != null ? padded(offset) : -1);
+    }
+
+    private static byte[] copy(ByteBuffer bb, int from) {
+        final byte[] segment = new byte[bb.position() - from];
+        System.arraycopy(bb.array(), from, segment, 0, segment.length);
+        return segment;
+    }
+
+    private static boolean isFixedWidth(V3Type t, boolean external) {
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN: return true;
+        case V3Type.TYPE_CODE_BIG_INTEGER: return !external;
+        case V3Type.TYPE_CODE_ARRAY:
+            if (t.arrayLen == -1) {
+                return false;
+            }
+            final int et = t.elementType.typeCode;
+            return et == V3Type.TYPE_CODE_BYTE || et == V3Type.TYPE_CODE_BOOLEAN || isFixedWidth(t.elementType, external);
+        case V3Type.TYPE_CODE_TUPLE:
+            for (V3Type e : t.elementTypes) {
+                if (!isFixedWidth(e, external)) {
+                    return false;
+                }
+            }
+            return true;
+        default: throw new AssertionError();
+        }
+    }
+
+    private static int padded(int len) {
+        return V3.isPaddedLength(len) ? len + 1 : len;
+    }
+
+    /** Returns the number of variable arguments, which are expected in tuple order. */
+    public int variableCount() {
+        return variables.length;
+    }
+
+    /** Returns the length of the encoding for the given variable arguments, including any padding. */
+    public int measure(Object[] vals) {
+        V3.validateLength(variables.length, vals.length);
+        int len = constantLength;
+        for (int k = 0; k < vals.length; k++) {
+            len += V3.measure(tupleType.elementTypes[variables[k]], vals[k], external);
+        }
+        return padded(len);
+    }
+
+    public byte[] encode(Object[] vals) {
+        final ByteBuffer dest = ByteBuffer.allocate(measure(vals));
+        write(vals, dest);
+        return dest.array();
+    }
+
+    /**
+     * Writes the encoding into {@code dest} starting at its current position. {@code dest} must have at least
+     * {@link #measure(Object[])} bytes remaining.
+     */
+    public void encode(ByteBuffer dest, Object[] vals) {
+        V3.checkOrder(dest);
+        if (dest.remaining() < measure(vals)) throw new BufferOverflowException();
+        write(vals, dest);
+    }
+
+    private void write(Object[] vals, ByteBuffer dest) {
+        final int start = dest.position();
+        for (int k = 0; k < vals.length; k++) {
+            dest.put(segments[k]);
+            V3.encode(tupleType.elementTypes[variables[k]], vals[k], external, dest);
+        }
+        dest.put(segments[vals.length]);
+        if (V3.isPaddedLength(dest.position() - start)) {
+            dest.put((byte) 0x00);
+        }
+    }
+
+    /** Returns true if {@link #newBuffer()} and the patch methods are available. */
+    public boolean isPatchable() {
+        return slots != null;
+    }
+
+    /**
+     * Returns a complete encoding in which every variable argument is zero, false or all zero bytes, ready to be
+     * patched.
+     *
+     * @throws IllegalStateException if some variable argument is not of fixed width
+     */
+    public byte[] newBuffer() {
+        checkPatchable();
+        final byte[] buffer = new byte[patchedLength];
+        int pos = 0;
+        for (int k = 0; k < segments.length; k++) {
+            System.arraycopy(segments[k], 0, buffer, pos, segments[k].length);
+            pos += segments[k].length;
+            if (k < variables.length) {
+                pos += tupleType.elementTypes[variables[k]].minLength(external);
+            }
+        }
+        return buffer;
+    }
+
+    /** Overwrites variable argument {@code k} in a buffer from {@link #newBuffer()}. */
+    public void patch(byte[] buffer, int k, Object val) {
+        checkPatchable();
+        final V3Type t = tupleType.elementTypes[variables[k]];
+        final int width = t.minLength(external);
+        if (V3.measure(t, val, external) != width) throw new IllegalArgumentException("wrong length for " + t.canonicalType);
+        V3.encode(t, val, external, ByteBuffer.wrap(buffer, slots[k], width));
+    }
+
+    /**
+     * Overwrites variable argument {@code k}, an integer, without allocating. For an unsigned type wider than 64 bits,
+     * the value is taken as unsigned.
+     */
+    public void patchLong(byte[] buffer, int k, long val) {
+        checkPatchable();
+        final V3Type t = tupleType.elementTypes[variables[k]];
+        if (t.typeCode != V3Type.TYPE_CODE_BIG_INTEGER) throw new IllegalArgumentException("not an integer: " + t.canonicalType);
+        V3.checkRange(t, val);
+        final int slot = slots[k];
+        final int byteLen = t.bitLen / Byte.SIZE;
+        final long ext = t.unsigned ? 0L : val >> (Long.SIZE - 1);
+        for (int i = byteLen - 1; i >= 0; i--) {
+            buffer[slot + i] = (byte) val;
+            val = i > byteLen - Long.BYTES ? val >>> Byte.SIZE : ext;
+        }
+    }
+
+    /** Overwrites variable argument {@code k}, a {@code bool}. */
+    public void patchBoolean(byte[] buffer, int k, boolean val) {
+        checkPatchable();
+        final V3Type t = tupleType.elementTypes[variables[k]];
+        if (t.typeCode != V3Type.TYPE_CODE_BOOLEAN) throw new IllegalArgumentException("not a bool: " + t.canonicalType);
+        buffer[slots[k]] = val ? (byte) 0x01 : (byte) 0x00;
+    }
+
+    private void checkPatchable() {
+        if (slots == null) throw new IllegalStateException("a variable argument is not of fixed width");
+    }
+}
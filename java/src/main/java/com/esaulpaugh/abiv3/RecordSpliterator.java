@@ -0,0 +1,191 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits a run of length-prefixed records, as laid out in a {@link Corpus}, on record boundaries. The boundaries are
+ * the offsets of every {@code interval}th record, taken from a corpus index or found by a scan of the length prefixes,
+ * so every split is exact and sized.
+ */
+final class RecordSpliterator implements Spliterator<ByteBuffer> {
+
+    /** The interval at which records are marked for splitting when there is no index to go by. */
+    static final int SCAN_INTERVAL = 256;
+
+    /** Iterates over records, one of which begins at {@link #offset()}. */
+    interface Cursor extends Iterator<ByteBuffer> {
+        long offset();
+        void skip();
+    }
+
+    interface Source {
+        Cursor records(long from, long to);
+    }
+
+    private final Source source;
+    private final long[] bounds; // the offset of the first record of each interval, then the end
+    private final int interval;
+    private final long lastCount; // the number of records in the final interval
+    private int lo;
+    private final int hi; // this covers intervals [lo, hi)
+    private Cursor cursor;
+    private long consumed;
+
+    private RecordSpliterator(Source source, long[] bounds, int interval, long lastCount, int lo, int hi) {
+        this.source = source;
+        this.bounds = bounds;
+        this.interval = interval;
+        this.lastCount = lastCount;
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    /** Uses the given boundaries, which begin with {@code start} and end with {@code end}. */
+    static RecordSpliterator of(Source source, long[] bounds, int interval, long count) {
+        return new RecordSpliterator(source, bounds, interval, count - (long) (bounds.length - 2) * interval, 0, bounds.length - 1);
+    }
+
+    /** Finds the boundaries by skipping from record to record, which reads only the length prefixes. */
+    static RecordSpliterator scan(Source source, long start, long end) {
+        long[] bounds = new long[16];
+        int n = 0;
+        long count = 0;
+        final Cursor c = source.records(start, end);
+        while (c.hasNext()) {
+            if (count++ % SCAN_INTERVAL == 0) {
+                if (n == bounds.length - 1) {
+                    bounds = Arrays.copyOf(bounds, n * 2);
+                }
+                bounds[n++] = c.offset();
+            }
+            c.skip();
+        }
+        if (n == 0) {
+            bounds[n++] = start;
+        }
+        bounds[n++] = end;
+        return of(source, Arrays.copyOf(bounds, n), SCAN_INTERVAL, count);
+    }
+
+    /** Records laid out as in a corpus file, from the buffer's position to its limit. */
+    static RecordSpliterator of(ByteBuffer records) {
+        final ByteBuffer bb = records.slice();
+        return scan((from, to) -> new BufferCursor(bb, (int) from, (int) to), 0, bb.limit());
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+        final Cursor c = cursor();
+        if (!c.hasNext()) {
+            return false;
+        }
+        action.accept(c.next());
+        consumed++;
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super ByteBuffer> action) {
+        final Cursor c = cursor();
+        while (c.hasNext()) {
+            action.accept(c.next());
+            consumed++;
+        }
+    }
+
+    private Cursor cursor() {
+        if (cursor == null) {
+            cursor = source.records(bounds[lo], bounds[hi]);
+        }
+        return cursor;
+    }
+
+    @Override
+    public Spliterator<ByteBuffer> trySplit() {
+        if (cursor != null || hi - lo < 2) {
+            return null;
+        }
+        final int mid = (lo + hi) >>> 1;
+        final RecordSpliterator prefix = new RecordSpliterator(source, bounds, interval, lastCount, lo, mid);
+        lo = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        final long total = hi == bounds.length - 1
+                ? (long) (hi - lo - 1) * interval + lastCount
+                : (long) (hi - lo) * interval;
+        return total - consumed;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE | SIZED | SUBSIZED;
+    }
+
+    private static final class BufferCursor implements Cursor {
+
+        private final ByteBuffer bb;
+        private int offset;
+        private final int end;
+
+        BufferCursor(ByteBuffer bb, int offset, int end) {
+            this.bb = bb;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return offset < end;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            final int len = length();
+            final ByteBuffer record = bb.duplicate();
+            record.limit(offset + Integer.BYTES + len).position(offset + Integer.BYTES);
+            offset += Integer.BYTES + len;
+            return record.slice();
+        }
+
+        @Override
+        public void skip() {
+            offset += Integer.BYTES + length();
+        }
+
+        private int length() {
+            if (offset >= end) throw new NoSuchElementException();
+            if (end - offset < Integer.BYTES) throw new IllegalArgumentException("truncated record at " + offset);
+            final int len = bb.getInt(offset);
+            if (len < 0 || len > end - offset - Integer.BYTES) throw new IllegalArgumentException("truncated record at " + offset);
+            return len;
+        }
+    }
+}
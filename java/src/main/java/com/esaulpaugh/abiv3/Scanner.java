@@ -0,0 +1,164 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Filters encodings by function number and by predicates on their arguments, evaluated on the encoded bytes. Arguments
+ * are walked only as far as the last one constrained, and those not constrained are skipped over by length, never
+ * decoded. Only calls which match need be decoded, via {@link #decodeIfMatches(byte[])}. Immutable and thread-safe.
+ * <p>
+ * An encoding which is malformed up to the last constrained argument does not match.
+ */
+public final class Scanner {
+
+    /** A predicate on an argument's encoding. */
+    @FunctionalInterface
+    public interface FieldTest {
+        /**
+         * @param encoding the buffer holding the encoding
+         * @param offset   the absolute offset of the argument's encoding in the buffer
+         * @param length   the length of the argument's encoding
+         * @param external true if the encoding is in the external format
+         * @return true if the argument is acceptable
+         */
+        boolean test(ByteBuffer encoding, int offset, int length, boolean external);
+    }
+
+    private final V3Type tupleType;
+    private final long functionNumber; // -1 for any
+    private final FieldTest[] tests; // per argument; null where unconstrained
+    private final int last; // the index of the last constrained argument, or -1
+
+    private Scanner(V3Type tupleType, long functionNumber, FieldTest[] tests) {
+        this.tupleType = tupleType;
+        this.functionNumber = functionNumber;
+        this.tests = tests;
+        int last = tests.length - 1;
+        while (last >= 0 && tests[last] == null) {
+            last--;
+        }
+        this.last = last;
+    }
+
+    /** Returns a scanner which matches every well-formed call with arguments of the given type. */
+    public static Scanner of(V3Type tupleType) {
+        if (tupleType.typeCode != V3Type.TYPE_CODE_TUPLE) throw new IllegalArgumentException("not a tuple type: " + tupleType.canonicalType);
+        return new Scanner(tupleType, -1L, new FieldTest[tupleType.elementTypes.length]);
+    }
+
+    /** Returns a copy of this scanner which matches only calls to the given function. */
+    public Scanner function(int functionNumber) {
+        if (functionNumber < 0) throw new IllegalArgumentException();
+        return new Scanner(tupleType, functionNumber, tests);
+    }
+
+    /** Returns a copy of this scanner which also requires the argument at {@code index} to pass {@code test}. */
+    public Scanner where(int index, FieldTest test) {
+        final FieldTest[] copy = tests.clone();
+        final FieldTest existing = copy[index];
+        copy[index] = existing == null
+                ? test
+                : (bb, offset, length, external) -> existing.test(bb, offset, length, external) && test.test(bb, offset, length, external);
+        return new Scanner(tupleType, functionNumber, copy);
+    }
+
+    /**
+     * Returns a copy of this scanner which also requires the argument at {@code index} to equal {@code value}. The value
+     * is encoded once, here, in both formats; since encodings are canonical, the test is a comparison of bytes.
+     */
+    public Scanner whereEquals(int index, Object value) {
+        final V3Type t = tupleType.elementTypes[index];
+        final byte[] internal = encode(t, value, false);
+        final byte[] external = encode(t, value, true);
+        return where(index, (bb, offset, length, ext) -> equal(bb, offset, length, ext ? external : internal));
+    }
+
+    public boolean matches(byte[] encoding) {
+        return matches(ByteBuffer.wrap(encoding));
+    }
+
+    /** Tests the encoding from the buffer's position to its limit, which must be big-endian. The position is not changed. */
+    public boolean matches(ByteBuffer encoding) {
+        V3.checkOrder(encoding);
+        final int start = encoding.position();
+        final int end = encoding.limit();
+        if (start == end) {
+            return false;
+        }
+        final boolean external = (encoding.get(start) & V3.VERSION_MASK) == V3.VERSION_ID_EXTERNAL;
+        long pos = Validator.skipHeader(encoding, start, end);
+        if (pos < 0 || (functionNumber >= 0 && functionNumber(encoding, start, external) != functionNumber)) {
+            return false;
+        }
+        for (int i = 0; i <= last; i++) {
+            final long next = Validator.skip(tupleType.elementTypes[i], encoding, (int) pos, end, external);
+            if (next < 0) {
+                return false;
+            }
+            final FieldTest test = tests[i];
+            if (test != null && !test.test(encoding, (int) pos, (int) (next - pos), external)) {
+                return false;
+            }
+            pos = next;
+        }
+        return true;
+    }
+
+    /** Decodes the encoding if it matches, else returns null. */
+    public Object[] decodeIfMatches(byte[] encoding) {
+        return matches(encoding) ? V3.decodeFunction(tupleType, encoding) : null;
+    }
+
+    /** Reads the function number of a header already checked by {@link Validator#skipHeader}. */
+    private static long functionNumber(ByteBuffer bb, int pos, boolean external) {
+        if (!external) {
+            return bb.getInt(pos + 1);
+        }
+        final int id = bb.get(pos) & V3.ID_MASK;
+        if (id < V3.ID_MASK) {
+            return id;
+        }
+        final int lead = bb.get(pos + 1) & 0xFF;
+        if (lead < 0x80) {
+            return V3.ID_MASK + lead;
+        }
+        long val = 0;
+        for (int i = pos + 2; i < pos + 2 + lead - 0x80; i++) {
+            val = (val << Byte.SIZE) | (bb.get(i) & 0xFFL);
+        }
+        return V3.ID_MASK + val;
+    }
+
+    private static byte[] encode(V3Type t, Object value, boolean external) {
+        final ByteBuffer bb = ByteBuffer.allocate(V3.measure(t, value, external));
+        V3.encode(t, value, external, bb);
+        return bb.array();
+    }
+
+    private static boolean equal(ByteBuffer bb, int offset, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bb.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
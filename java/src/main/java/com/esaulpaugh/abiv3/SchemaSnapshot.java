@@ -0,0 +1,261 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary image of a list of {@link FunctionTable}s, for restarting without re-parsing. Each structurally
+ * distinct type is stored once and referenced by index, so subtrees shared before writing are shared again after
+ * loading. {@link #open(Path)} memory-maps the file and verifies its header and checksum; types and tables
+ * are then materialized lazily, on first use.
+ * <p>
+ * Layout, all integers big-endian: magic, version, payload length, CRC32 of payload; then the payload: type count,
+ * table count, type offsets, table offsets, type entries, table entries. A type entry is a kind byte followed by a
+ * canonical base type name (UTF-8, length-prefixed), an element type index and array length, or a tuple's element
+ * count and element type indices. A table entry is a function count followed by, per function, the index of its
+ * argument tuple type and its name. Element types always precede the types which reference them.
+ */
+public final class SchemaSnapshot {
+
+    private static final int MAGIC = 0x56335353; // "V3SS"
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = 4 * Integer.BYTES;
+    private static final int OFFSETS_START = 2 * Integer.BYTES; // within the payload, after the type and table counts
+
+    private static final byte KIND_BASE = 0;
+    private static final byte KIND_ARRAY = 1;
+    private static final byte KIND_PRIMITIVE_ARRAY = 2;
+    private static final byte KIND_TUPLE = 3;
+
+    private final ByteBuffer payload;
+    private final int typeCount;
+    private final int tableCount;
+    private final V3Type[] types;
+    private final FunctionTable[] tables;
+
+    private SchemaSnapshot(ByteBuffer payload) {
+        this.payload = payload;
+        this.typeCount = payload.getInt(0);
+        this.tableCount = payload.getInt(Integer.BYTES);
+        this.types = new V3Type[typeCount];
+        this.tables = new FunctionTable[tableCount];
+    }
+
+    /**
+     * Memory-maps a snapshot file and verifies its header and checksum. Nothing else is read until needed.
+     *
+     * @throws IllegalArgumentException if the file is not a snapshot of a supported version or is corrupt
+     */
+    public static SchemaSnapshot open(Path path) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            return wrap(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    static SchemaSnapshot wrap(ByteBuffer bb) {
+        if (bb.remaining() < HEADER_LEN || bb.getInt(0) != MAGIC) throw new IllegalArgumentException("not a schema snapshot");
+        if (bb.getInt(4) != VERSION) throw new IllegalArgumentException("unsupported snapshot version: " + bb.getInt(4));
+        final int len = bb.getInt(8);
+        if (len != bb.remaining() - HEADER_LEN) throw new IllegalArgumentException("truncated snapshot");
+        final ByteBuffer payload = ((ByteBuffer) bb.duplicate().position(HEADER_LEN)).slice();
+        final CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != bb.getInt(12)) throw new IllegalArgumentException("checksum mismatch");
+        return new SchemaSnapshot(payload);
+    }
+
+    public int tableCount() {
+        return tableCount;
+    }
+
+    /** Returns the table at the given index, materializing it (and any types it needs which are not yet) if necessary. */
+    public synchronized FunctionTable table(int index) {
+        FunctionTable t = tables[index];
+        if (t == null) {
+            final ByteBuffer bb = at(payload.getInt(OFFSETS_START + (typeCount + index) * Integer.BYTES));
+            final int n = bb.getInt();
+            final String[] names = new String[n];
+            final V3Type[] fnTypes = new V3Type[n];
+            for (int i = 0; i < n; i++) {
+                fnTypes[i] = type(bb.getInt());
+                names[i] = getString(bb);
+            }
+            t = tables[index] = new FunctionTable(names, fnTypes);
+        }
+        return t;
+    }
+
+    private V3Type type(int index) {
+        V3Type t = types[index];
+        if (t == null) {
+            final ByteBuffer bb = at(payload.getInt(OFFSETS_START + index * Integer.BYTES));
+            final byte kind = bb.get();
+            switch (kind) {
+            case KIND_BASE: t = TypeFactory.create(getString(bb)); break;
+            case KIND_ARRAY:
+            case KIND_PRIMITIVE_ARRAY:
+                final V3Type et = type(bb.getInt());
+                final int arrayLen = bb.getInt();
+                t = new V3Type(et.canonicalType + (arrayLen == -1 ? "[]" : "[" + arrayLen + "]"), arrayLen, et.arrayClass(), null, et, false);
+                if (kind == KIND_PRIMITIVE_ARRAY) {
+                    t = t.asPrimitive();
+                }
+                break;
+            case KIND_TUPLE:
+                final V3Type[] elements = new V3Type[bb.getInt()];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = type(bb.getInt());
+                }
+                t = new V3Type(elements);
+                break;
+            default: throw new IllegalArgumentException("bad type kind: " + kind);
+            }
+            types[index] = t;
+        }
+        return t;
+    }
+
+    private ByteBuffer at(int offset) {
+        return (ByteBuffer) payload.duplicate().position(offset);
+    }
+
+    private static String getString(ByteBuffer bb) {
+        final byte[] bytes = new byte[bb.getShort() & 0xffff];
+        bb.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes a snapshot of the given tables to {@code path}, replacing any existing file. */
+    public static void write(List<FunctionTable> tables, Path path) throws IOException {
+        final ByteBuffer bb = toBytes(tables);
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bb.hasRemaining()) {
+                fc.write(bb);
+            }
+        }
+    }
+
+    static ByteBuffer toBytes(List<FunctionTable> tables) {
+        final Writer w = new Writer();
+        final int[][] fnTypeIndices = new int[tables.size()][];
+        for (int i = 0; i < fnTypeIndices.length; i++) {
+            final FunctionTable t = tables.get(i);
+            fnTypeIndices[i] = new int[t.size()];
+            for (int j = 0; j < t.size(); j++) {
+                fnTypeIndices[i][j] = w.index(t.type(j));
+            }
+        }
+        final List<byte[]> tableEntries = new ArrayList<>(tables.size());
+        for (int i = 0; i < fnTypeIndices.length; i++) {
+            final FunctionTable t = tables.get(i);
+            final List<byte[]> names = new ArrayList<>(t.size());
+            int len = Integer.BYTES;
+            for (int j = 0; j < t.size(); j++) {
+                final byte[] name = t.name(j).getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                len += Integer.BYTES + Short.BYTES + name.length;
+            }
+            final ByteBuffer e = ByteBuffer.allocate(len).putInt(t.size());
+            for (int j = 0; j < t.size(); j++) {
+                e.putInt(fnTypeIndices[i][j]);
+                putString(names.get(j), e);
+            }
+            tableEntries.add(e.array());
+        }
+        int payloadLen = OFFSETS_START + (w.entries.size() + tableEntries.size()) * Integer.BYTES;
+        for (byte[] e : w.entries) payloadLen += e.length;
+        for (byte[] e : tableEntries) payloadLen += e.length;
+
+        final ByteBuffer payload = ByteBuffer.allocate(payloadLen);
+        payload.putInt(w.entries.size()).putInt(tableEntries.size());
+        int offset = payload.position() + (w.entries.size() + tableEntries.size()) * Integer.BYTES;
+        for (byte[] e : w.entries) {
+            payload.putInt(offset);
+            offset += e.length;
+        }
+        for (byte[] e : tableEntries) {
+            payload.putInt(offset);
+            offset += e.length;
+        }
+        for (byte[] e : w.entries) payload.put(e);
+        for (byte[] e : tableEntries) payload.put(e);
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        final ByteBuffer out = ByteBuffer.allocate(HEADER_LEN + payloadLen);
+        out.putInt(MAGIC).putInt(VERSION).putInt(payloadLen).putInt((int) crc.getValue()).put(payload.array());
+        out.flip();
+        return out;
+    }
+
+    private static void putString(byte[] utf8, ByteBuffer bb) {
+        if (utf8.length > 0xffff) throw new IllegalArgumentException("name too long");
+        bb.putShort((short) utf8.length).put(utf8);
+    }
+
+    /** Assigns indices to structurally distinct types, children first, and encodes an entry for each. */
+    private static final class Writer {
+        final Map<String, Integer> indices = new HashMap<>();
+        final List<byte[]> entries = new ArrayList<>();
+
+        int index(V3Type t) {
+            final String key;
+            final ByteBuffer e;
+            if (t.typeCode == V3Type.TYPE_CODE_TUPLE) {
+                final int[] children = new int[t.elementTypes.length];
+                final StringBuilder sb = new StringBuilder("(");
+                for (int i = 0; i < children.length; i++) {
+                    children[i] = index(t.elementTypes[i]);
+                    sb.append(children[i]).append(',');
+                }
+                key = sb.append(')').toString();
+                e = ByteBuffer.allocate(1 + Integer.BYTES * (1 + children.length)).put(KIND_TUPLE).putInt(children.length);
+                for (int c : children) {
+                    e.putInt(c);
+                }
+            } else if (t.typeCode == V3Type.TYPE_CODE_ARRAY && t.elementType.typeCode != V3Type.TYPE_CODE_BYTE) {
+                final int child = index(t.elementType);
+                final byte kind = t.primitiveBits != 0 ? KIND_PRIMITIVE_ARRAY : KIND_ARRAY;
+                key = kind + ":" + child + '[' + t.arrayLen + ']';
+                e = ByteBuffer.allocate(1 + 2 * Integer.BYTES).put(kind).putInt(child).putInt(t.arrayLen);
+            } else { // bool, integers, and byte strings are base types, resolved by name
+                key = t.canonicalType;
+                final byte[] name = key.getBytes(StandardCharsets.UTF_8);
+                e = ByteBuffer.allocate(1 + Short.BYTES + name.length).put(KIND_BASE);
+                putString(name, e);
+            }
+            final Integer existing = indices.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            final int index = entries.size();
+            entries.add(e.array());
+            indices.put(key, index);
+            return index;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Supplies threads for tasks which may block. On Java 21 and later, a multi-release JAR substitutes a version which
+ * gives each task its own virtual thread.
+ */
+final class Threads {
+
+    private Threads() {}
+
+    /** Returns a new executor with one daemon thread per processor. */
+    static ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            final Thread t = new Thread(r, "abiv3-batch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
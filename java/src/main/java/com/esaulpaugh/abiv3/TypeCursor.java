@@ -0,0 +1,131 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.util.Arrays;
+
+/**
+ * Tracks a position in a type tree during a depth-first walk of one value: the open containers, and for each the index
+ * of the next element and the number of elements. Shared by the streaming writer and reader.
+ */
+final class TypeCursor {
+
+    private V3Type[] containers = new V3Type[8];
+    private int[] indices = new int[8];
+    private int[] lengths = new int[8];
+    private int depth;
+
+    /** Positions the cursor at the first element of the given tuple. */
+    void reset(V3Type tupleType) {
+        Arrays.fill(containers, 0, depth, null);
+        depth = 0;
+        push(tupleType, tupleType.elementTypes.length);
+    }
+
+    /**
+     * Returns the type of the next element of the innermost open container.
+     *
+     * @throws IllegalStateException if that container is full, or none is open
+     */
+    V3Type peek() {
+        if (depth == 0) throw new IllegalStateException("no value in progress");
+        final int d = depth - 1;
+        final V3Type c = containers[d];
+        if (indices[d] == lengths[d]) throw new IllegalStateException("no more elements expected in " + c.canonicalType);
+        return c.typeCode == V3Type.TYPE_CODE_TUPLE ? c.elementTypes[indices[d]] : c.elementType;
+    }
+
+    /**
+     * Returns the next type, which must be of the given type code, without moving past it.
+     *
+     * @throws IllegalStateException if it is not
+     */
+    V3Type expect(int typeCode) {
+        final V3Type t = peek();
+        if (t.typeCode != typeCode) throw mismatch(t, typeName(typeCode));
+        return t;
+    }
+
+    /** Like {@link #expect(int)}, for an array of bytes: {@code bytes}, {@code bytesN} or {@code string}. */
+    V3Type expectByteString() {
+        final V3Type t = peek();
+        if (t.typeCode != V3Type.TYPE_CODE_ARRAY || t.elementType.typeCode != V3Type.TYPE_CODE_BYTE) throw mismatch(t, "byte string");
+        return t;
+    }
+
+    /** Moves past the element returned by {@link #peek()}. */
+    void advance() {
+        indices[depth - 1]++;
+    }
+
+    /** Opens a container of the given number of elements, whose first element becomes next. */
+    void push(V3Type container, int len) {
+        if (depth == containers.length) {
+            containers = Arrays.copyOf(containers, depth * 2);
+            indices = Arrays.copyOf(indices, depth * 2);
+            lengths = Arrays.copyOf(lengths, depth * 2);
+        }
+        containers[depth] = container;
+        indices[depth] = 0;
+        lengths[depth] = len;
+        depth++;
+    }
+
+    /**
+     * Closes the innermost container.
+     *
+     * @throws IllegalStateException if it is not of the given type code, or elements remain
+     */
+    void pop(int typeCode) {
+        if (depth == 0) throw new IllegalStateException("no value in progress");
+        final int d = depth - 1;
+        final V3Type c = containers[d];
+        if (c.typeCode != typeCode) throw new IllegalStateException("innermost container is " + c.canonicalType);
+        if (indices[d] != lengths[d]) throw new IllegalStateException((lengths[d] - indices[d]) + " more elements expected in " + c.canonicalType);
+        containers[d] = null;
+        depth = d;
+    }
+
+    /** The innermost open container, or null. */
+    V3Type container() {
+        return depth == 0 ? null : containers[depth - 1];
+    }
+
+    /** The number of elements of the innermost open container not yet passed. */
+    int remaining() {
+        final int d = depth - 1;
+        return lengths[d] - indices[d];
+    }
+
+    /** The number of open containers, including the outermost tuple. */
+    int depth() {
+        return depth;
+    }
+
+    static IllegalStateException mismatch(V3Type next, String requested) {
+        return new IllegalStateException("next value is " + next.canonicalType + ", not " + requested);
+    }
+
+    private static String typeName(int typeCode) {
+        switch (typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN: return "bool";
+        case V3Type.TYPE_CODE_BIG_INTEGER: return "integer";
+        case V3Type.TYPE_CODE_ARRAY: return "array";
+        case V3Type.TYPE_CODE_TUPLE: return "tuple";
+        default: throw new AssertionError();
+        }
+    }
+}
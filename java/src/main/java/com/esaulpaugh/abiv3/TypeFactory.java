@@ -62,13 +62,18 @@ public final class TypeFactory {
     }
 
     private static void mapByteArray(String type, int arrayLen) {
-        BASE_TYPE_MAP.put(type, new V3Type(type, arrayLen, Byte.class, Byte[].class, BYTE, false));
+        BASE_TYPE_MAP.put(type, new V3Type(type, arrayLen, byte[].class, byte[][].class, BYTE, false));
     }
 
     public static V3Type create(String rawType) {
         return build(rawType, null);
     }
 
+    /** Creates the type, using {@code baseType} in place of the base (e.g. "tuple" in "tuple[2][]"). */
+    static V3Type create(String rawType, V3Type baseType) {
+        return build(rawType, baseType);
+    }
+
     private static V3Type build(final String rawType, V3Type baseType) {
         try {
             final int lastCharIdx = rawType.length() - 1;
@@ -15,13 +15,14 @@
 */
 package com.esaulpaugh.abiv3;
 
-import java.lang.reflect.Array;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /** Serializes and deserializes tuples of values. */
 public final class V3 {
@@ -34,243 +35,822 @@ public final class V3 {
     static final byte ID_MASK = (byte) ~VERSION_MASK; // 0x3f (decimal 63), the complement of VERSION_MASK
 
     public static byte[] encodeFunction(int functionNumber, V3Type tupleType, Object[] vals, boolean external) {
+        final ByteBuffer encoding = ByteBuffer.allocate(measureFunction(functionNumber, tupleType, vals, external));
+        writeFunction(functionNumber, tupleType, vals, external, encoding);
+        return encoding.array();
+    }
+
+    /**
+     * Encodes in whichever format, internal or external, yields the shorter encoding. Both lengths are computed without
+     * materializing either encoding. Ties go to the external format. The decoder tells the two apart by the version bits.
+     *
+     * @param functionNumber the function number
+     * @param tupleType      the type of the arguments
+     * @param vals           the arguments
+     * @return the shorter of the two encodings
+     */
+    public static byte[] encodeFunctionAuto(int functionNumber, V3Type tupleType, Object[] vals) {
+        final int internalLen = measureFunction(functionNumber, tupleType, vals, false);
+        final int externalLen = measureFunction(functionNumber, tupleType, vals, true);
+        final boolean external = externalLen <= internalLen;
+        final ByteBuffer encoding = ByteBuffer.allocate(external ? externalLen : internalLen);
+        writeFunction(functionNumber, tupleType, vals, external, encoding);
+        return encoding.array();
+    }
+
+    /**
+     * Returns the length in bytes of the encoding which {@link #encodeFunction(int, V3Type, Object[], boolean)} would
+     * produce for the given arguments, including any padding.
+     */
+    public static int measureFunction(int functionNumber, V3Type tupleType, Object[] vals, boolean external) {
         if (functionNumber < 0) throw new IllegalArgumentException();
-        final List<byte[]> results = external ? headerExternal(functionNumber) : headerInternal(functionNumber);
-        encodeTuple(tupleType, vals, external, results);
-        int len = 0;
-        for (byte[] result : results) {
-            len += result.length;
+        return padded(headerLength(functionNumber, external) + measureTuple(tupleType, vals, external));
+    }
+
+    /**
+     * Writes the encoding into {@code dest} starting at its current position. {@code dest} must have at least
+     * {@link #measureFunction(int, V3Type, Object[], boolean)} bytes remaining.
+     */
+    public static void encodeFunction(int functionNumber, V3Type tupleType, Object[] vals, boolean external, ByteBuffer dest) {
+        checkOrder(dest);
+        if (dest.remaining() < measureFunction(functionNumber, tupleType, vals, external)) throw new BufferOverflowException();
+        writeFunction(functionNumber, tupleType, vals, external, dest);
+    }
+
+    /**
+     * Encodes into a buffer acquired from {@code pool}. The returned buffer is flipped, ready to be read or written to a
+     * channel, and should be given back via {@link BufferPool#release(ByteBuffer)} when no longer needed.
+     */
+    public static ByteBuffer encodeFunction(int functionNumber, V3Type tupleType, Object[] vals, boolean external, BufferPool pool) {
+        final ByteBuffer dest = pool.acquire(measureFunction(functionNumber, tupleType, vals, external));
+        try {
+            writeFunction(functionNumber, tupleType, vals, external, dest);
+        } catch (RuntimeException | Error e) {
+            pool.release(dest);
+            throw e;
         }
-        final ByteBuffer encoding = ByteBuffer.allocate(len);
-        for (byte[] result : results) {
-            encoding.put(result);
+        dest.flip();
+        return dest;
+    }
+
+    /**
+     * Encodes with the work for very large top-level array arguments split across {@code pool}: after a parallel size
+     * pass, chunks of such an array are encoded in parallel into their own regions of the output. The result is
+     * identical to that of {@link #encodeFunction(int, V3Type, Object[], boolean)}.
+     */
+    public static byte[] encodeFunctionParallel(int functionNumber, V3Type tupleType, Object[] vals, boolean external, ForkJoinPool pool) {
+        return ParallelEncoder.encode(functionNumber, tupleType, vals, external, pool);
+    }
+
+    /**
+     * Encodes as a gather list, for {@link GatheringByteChannel#write(ByteBuffer[])} or {@link #writeFully}. Byte
+     * strings of at least {@code threshold} bytes, other than strings, are not copied: the list references them through
+     * read-only buffers, so they must not be modified until the list has been written. Everything else is written into
+     * a single heap buffer, slices of which make up the rest of the list.
+     */
+    public static ByteBuffer[] encodeFunctionGathering(int functionNumber, V3Type tupleType, Object[] vals, boolean external, int threshold) {
+        return GatheringEncoder.encode(functionNumber, tupleType, vals, external, threshold);
+    }
+
+    /** Writes all of the buffers' remaining bytes to the channel and returns the number written. */
+    public static long writeFully(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        long total = 0L;
+        int first = 0;
+        while (first < buffers.length) {
+            total += channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+        return total;
+    }
+
+    private static void writeFunction(int functionNumber, V3Type tupleType, Object[] vals, boolean external, ByteBuffer dest) {
+        final int start = dest.position();
+        putHeader(functionNumber, external, dest);
+        encodeTuple(tupleType, vals, external, dest);
+        if (isPaddedLength(dest.position() - start)) {
+            dest.put((byte) 0x00);
+        }
+    }
+
+    /**
+     * Encodings may not be of length 4 mod 32, so as to be distinguishable from ABIv2 calldata. An encoding which would
+     * be is followed by a single zero byte.
+     */
+    static boolean isPaddedLength(int unpaddedLen) {
+        return unpaddedLen % 32 == 4;
+    }
+
+    private static int padded(int unpaddedLen) {
+        return isPaddedLength(unpaddedLen) ? unpaddedLen + 1 : unpaddedLen;
+    }
+
+    static void putHeader(int functionNumber, boolean external, ByteBuffer dest) {
+        if (external) {
+            putHeaderExternal(functionNumber, dest);
+        } else {
+            putHeaderInternal(functionNumber, dest);
         }
-        return encoding.array();
     }
 
+    /**
+     * Decodes an encoding which occupies the whole array.
+     *
+     * @throws IllegalArgumentException if bytes remain after the arguments other than the padding byte
+     */
     public static Object[] decodeFunction(V3Type tupleType, byte[] buffer) {
+        return decodeFunction(tupleType, buffer, DecodeBudget.UNLIMITED);
+    }
+
+    /**
+     * Decodes an encoding which occupies the whole array, within the given limits.
+     *
+     * @throws DecodeException if the encoding is malformed or would exceed the budget
+     */
+    public static Object[] decodeFunction(V3Type tupleType, byte[] buffer, DecodeBudget budget) {
         final ByteBuffer bb = ByteBuffer.wrap(buffer);
+        final Object[] args = decodeTuple(tupleType, bb, readHeader(bb), budget.meter());
+        readEnd(bb, 0);
+        return args;
+    }
+
+    /**
+     * Decodes an encoding starting at the buffer's position, which may be direct or a slice of a larger buffer. Bytes
+     * are read in place, not copied to the heap first. On return, the position is just past the last argument, or past
+     * the padding byte if there is one. Whatever follows is left unread.
+     */
+    public static Object[] decodeFunction(V3Type tupleType, ByteBuffer buffer) {
+        return decodeFunction(tupleType, buffer, DecodeBudget.UNLIMITED);
+    }
+
+    /** Like {@link #decodeFunction(V3Type, ByteBuffer)}, within the given limits. */
+    public static Object[] decodeFunction(V3Type tupleType, ByteBuffer buffer, DecodeBudget budget) {
+        checkOrder(buffer);
+        final int start = buffer.position();
+        final Object[] args = decodeTuple(tupleType, buffer, readHeader(buffer), budget.meter());
+        readPadding(buffer, start);
+        return args;
+    }
+
+    /**
+     * Decodes without throwing on malformed input. The encoding, which must occupy the whole array, is first checked
+     * by {@link Validator} without allocating; only if it is valid is it decoded.
+     *
+     * @return the arguments, or the result code and offset of the first problem found
+     */
+    public static DecodeResult tryDecodeFunction(V3Type tupleType, byte[] buffer) {
+        return tryDecodeFunction(tupleType, ByteBuffer.wrap(buffer), DecodeBudget.UNLIMITED);
+    }
+
+    /** Like {@link #tryDecodeFunction(V3Type, byte[])}, within the given limits. */
+    public static DecodeResult tryDecodeFunction(V3Type tupleType, byte[] buffer, DecodeBudget budget) {
+        return tryDecodeFunction(tupleType, ByteBuffer.wrap(buffer), budget);
+    }
+
+    /**
+     * Like {@link #tryDecodeFunction(V3Type, byte[])}, for an encoding which occupies the bytes from the buffer's
+     * position to its limit. On success, the position is advanced to the limit; on failure, it is unchanged.
+     */
+    public static DecodeResult tryDecodeFunction(V3Type tupleType, ByteBuffer buffer) {
+        return tryDecodeFunction(tupleType, buffer, DecodeBudget.UNLIMITED);
+    }
+
+    /**
+     * Like {@link #tryDecodeFunction(V3Type, ByteBuffer)}, within the given limits. Exceeding one is reported as a
+     * failure, the position left unchanged.
+     */
+    public static DecodeResult tryDecodeFunction(V3Type tupleType, ByteBuffer buffer, DecodeBudget budget) {
+        checkOrder(buffer);
+        final long check = Validator.check(tupleType, buffer);
+        if (check < 0) {
+            return DecodeResult.failure(Validator.code(check), Validator.offset(check));
+        }
+        final int start = buffer.position();
+        final Object[] args;
+        try {
+            args = decodeTuple(tupleType, buffer, readHeader(buffer), budget.meter());
+        } catch (DecodeException de) { // the input is valid, so only a budget is left to exceed
+            buffer.position(start);
+            return DecodeResult.failure(de.code(), de.offset());
+        }
+        buffer.position(buffer.limit()); // past any padding
+        return DecodeResult.success(args);
+    }
+
+    /**
+     * Encodes a user object according to the given {@link Binding}, reading its values through the bound getters.
+     */
+    public static <T> byte[] encodeFunction(int functionNumber, Binding<T> binding, T val, boolean external) {
+        if (functionNumber < 0) throw new IllegalArgumentException();
+        final ByteBuffer encoding = ByteBuffer.allocate(padded(headerLength(functionNumber, external) + binding.measure(val, external)));
+        putHeader(functionNumber, external, encoding);
+        binding.encode(val, external, encoding);
+        return encoding.array(); // any padding byte is already zero
+    }
+
+    /**
+     * Decodes directly into an instance of the bound class, without building an intermediate {@code Object[]}.
+     */
+    public static <T> T decodeFunction(Binding<T> binding, byte[] buffer) {
+        final ByteBuffer bb = ByteBuffer.wrap(buffer);
+        final T t = binding.decode(bb, readHeader(bb));
+        readEnd(bb, 0);
+        return t;
+    }
+
+    /**
+     * Counts the zero bytes in an encoding, which the chain prices differently from the rest. Uses SIMD instructions
+     * where available.
+     */
+    public static int countZeroBytes(byte[] encoding) {
+        return BitOps.get().countZeros(encoding, 0, encoding.length);
+    }
+
+    /** Counts the zero bytes from the buffer's position to its limit, without changing the position. */
+    public static int countZeroBytes(ByteBuffer bb) {
+        if (bb.hasArray()) {
+            final int from = bb.arrayOffset() + bb.position();
+            return BitOps.get().countZeros(bb.array(), from, from + bb.remaining());
+        }
+        int n = 0;
+        for (int i = bb.position(); i < bb.limit(); i++) {
+            if (bb.get(i) == 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes into a reusable target, overwriting the previous call's values, and returns the target. See
+     * {@link DecodeTarget}.
+     */
+    public static DecodeTarget decodeFunction(DecodeTarget target, byte[] buffer) {
+        final ByteBuffer bb = ByteBuffer.wrap(buffer);
+        decodeFunction(target, bb);
+        if (bb.hasRemaining()) throw new DecodeException(Validator.TRAILING_BYTES, bb.position());
+        return target;
+    }
+
+    /**
+     * Decodes one encoding, from the buffer's position, into a reusable target, leaving the position at the end of the
+     * encoding. Allocates nothing once the target has grown to fit.
+     */
+    public static DecodeTarget decodeFunction(DecodeTarget target, ByteBuffer buffer) {
+        checkOrder(buffer);
+        final int start = buffer.position();
+        target.decode(buffer, readHeader(buffer));
+        readPadding(buffer, start);
+        return target;
+    }
+
+    /**
+     * Decodes hex calldata, such as a JSON-RPC {@code 0x...} string, which must hold one whole encoding. The digits are
+     * converted into a buffer reused by the calling thread, not a new array.
+     *
+     * @throws IllegalArgumentException if the input is not hex or bytes remain after the arguments other than the
+     *                                  padding byte
+     */
+    public static Object[] decodeFunction(V3Type tupleType, CharSequence hex) {
+        final ByteBuffer bb = Hex.decodeToScratch(hex);
+        final Object[] args = decodeTuple(tupleType, bb, readHeader(bb), DecodeBudget.UNLIMITED.meter());
+        readEnd(bb, 0);
+        return args;
+    }
+
+    /** Like {@link #decodeFunction(V3Type, CharSequence)}, into a reusable target. Allocates nothing once warmed up. */
+    public static DecodeTarget decodeFunction(DecodeTarget target, CharSequence hex) {
+        final ByteBuffer bb = Hex.decodeToScratch(hex);
+        decodeFunction(target, bb);
+        if (bb.hasRemaining()) throw new DecodeException(Validator.TRAILING_BYTES, bb.position());
+        return target;
+    }
+
+    /** Consumes the padding byte, if the encoding which began at {@code start} and ends at the position requires one. */
+    static void readPadding(ByteBuffer bb, int start) {
+        if (isPaddedLength(bb.position() - start)) {
+            if (!bb.hasRemaining()) throw new DecodeException(Validator.LENGTH_4_MOD_32, bb.position());
+            if (bb.get(bb.position()) != 0x00) throw new DecodeException(Validator.TRAILING_BYTES, bb.position());
+            bb.get();
+        }
+    }
+
+    static void readEnd(ByteBuffer bb, int start) {
+        readPadding(bb, start);
+        if (bb.hasRemaining()) throw new DecodeException(Validator.TRAILING_BYTES, bb.position());
+    }
+
+    /** Consumes the version byte and function ID and returns true if the encoding is in the external format. */
+    static boolean readHeader(ByteBuffer bb) {
+        final int start = bb.position();
+        if (!bb.hasRemaining()) throw new DecodeException(Validator.TRUNCATED, start);
         final byte zeroth = bb.get();
         final int versionBits = zeroth & VERSION_MASK;
         if (versionBits == VERSION_ID_INTERNAL) {
-            long fnNumber = decodeInteger(4, true, bb, false).longValueExact();
-            if (fnNumber < 0) throw new AssertionError();
+            if (bb.remaining() < Integer.BYTES) throw new DecodeException(Validator.TRUNCATED, start);
+            if (bb.getInt() < 0) throw new DecodeException(Validator.MALFORMED, start);
         } else if (versionBits == VERSION_ID_EXTERNAL) {
-            long fnNumber = zeroth & ID_MASK;
-            if (fnNumber == ID_MASK) {
+            if ((zeroth & ID_MASK) == ID_MASK) { // the function number continues in an RLP string
+                if (!bb.hasRemaining()) throw new DecodeException(Validator.TRUNCATED, start + 1);
                 final int first = bb.get() & 0xff;
-                if (first > 0xb7) throw new IllegalArgumentException("invalid function ID format");
-                if (first < 0x80) {
-                    fnNumber = first;
-                } else {
-                    int len = first - 0x80;
-                    fnNumber = ID_MASK + Integers.getLong(readBytes(len, bb), 0, len);
+                if (first > 0xb7) throw new DecodeException(Validator.MALFORMED, start + 1);
+                if (first >= 0x80) {
+                    final int len = first - 0x80;
+                    if (len > Integer.BYTES) throw new DecodeException(Validator.MALFORMED, start + 1);
+                    if (len > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, start + 1);
+                    if (len > 0 && bb.get(bb.position()) == 0x00) throw new DecodeException(Validator.NON_CANONICAL, start + 1);
+                    bb.position(bb.position() + len);
                 }
-                if (fnNumber < 0) throw new AssertionError();
             }
         } else {
-            throw new IllegalArgumentException();
+            throw new DecodeException(Validator.BAD_VERSION, start);
         }
-        return decodeTuple(tupleType, bb, versionBits == VERSION_ID_EXTERNAL);
+        return versionBits == VERSION_ID_EXTERNAL;
     }
 
-    private static void encode(V3Type t, Object val, boolean external, List<byte[]> results) {
+    static int measure(V3Type t, Object val, boolean external) {
         switch (t.typeCode) {
-        case V3Type.TYPE_CODE_BOOLEAN: encodeBoolean((boolean) val, results); return;
-        case V3Type.TYPE_CODE_BIG_INTEGER: encodeInteger(t.bitLen / Byte.SIZE, (BigInteger) val, external, results); return;
-        case V3Type.TYPE_CODE_ARRAY: encodeArray(t, val, external, results); return;
-        case V3Type.TYPE_CODE_TUPLE: encodeTuple(t, (Object[]) val, external, results); return;
+        case V3Type.TYPE_CODE_BOOLEAN: return 1;
+        case V3Type.TYPE_CODE_BIG_INTEGER: return measureInteger(t.bitLen / Byte.SIZE, (BigInteger) val, external);
+        case V3Type.TYPE_CODE_ARRAY: return measureArray(t, val, external);
+        case V3Type.TYPE_CODE_TUPLE: return measureTuple(t, (Object[]) val, external);
         default: throw new Error();
         }
     }
 
-    private static Object decode(V3Type type, ByteBuffer bb, boolean external) {
+    static void encode(V3Type t, Object val, boolean external, ByteBuffer dest) {
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN: encodeBoolean((boolean) val, dest); return;
+        case V3Type.TYPE_CODE_BIG_INTEGER: encodeInteger(t.bitLen / Byte.SIZE, (BigInteger) val, external, dest); return;
+        case V3Type.TYPE_CODE_ARRAY: encodeArray(t, val, external, dest); return;
+        case V3Type.TYPE_CODE_TUPLE: encodeTuple(t, (Object[]) val, external, dest); return;
+        default: throw new Error();
+        }
+    }
+
+    static Object decode(V3Type type, ByteBuffer bb, boolean external) {
+        return decode(type, bb, external, null);
+    }
+
+    /** @param m the budget to charge, or null */
+    static Object decode(V3Type type, ByteBuffer bb, boolean external, DecodeBudget.Meter m) {
         switch (type.typeCode) {
         case V3Type.TYPE_CODE_BOOLEAN: return decodeBoolean(bb);
         case V3Type.TYPE_CODE_BIG_INTEGER: return decodeInteger(type.bitLen / Byte.SIZE, type.unsigned, bb, external);
-        case V3Type.TYPE_CODE_ARRAY: return decodeArray(type, bb, external);
-        case V3Type.TYPE_CODE_TUPLE: return decodeTuple(type, bb, external);
+        case V3Type.TYPE_CODE_ARRAY: return decodeArray(type, bb, external, m);
+        case V3Type.TYPE_CODE_TUPLE: return decodeTuple(type, bb, external, m);
         default: throw new AssertionError();
         }
     }
 
-    private static void encodeBoolean(boolean val, List<byte[]> results) {
-        results.add(single(val ? (byte) 0x01 : (byte) 0x00));
+    private static void encodeBoolean(boolean val, ByteBuffer dest) {
+        dest.put(val ? (byte) 0x01 : (byte) 0x00);
     }
 
     public static boolean decodeBoolean(ByteBuffer bb) {
         return bb.get() != 0;
     }
 
-    private static void encodeInteger(int byteLen, BigInteger val, boolean external, List<byte[]> results) {
-        if (external) {
-            encodeIntegerExternal(byteLen, val, results);
+    private static int measureInteger(int byteLen, BigInteger val, boolean external) {
+        if (!external) {
+            return byteLen;
+        }
+        final int signum = val.signum();
+        if (signum == 0) {
+            return 1;
+        }
+        if (signum < 0) {
+            return rlpLength(byteLen, (byte) 0xff);
+        }
+        final int dataLen = Integers.roundLengthUp(val.bitLength(), Byte.SIZE) / Byte.SIZE;
+        return dataLen == 1 ? rlpLength(1, val.byteValue()) : rlpLength(dataLen, (byte) 0);
+    }
+
+    private static void encodeInteger(int byteLen, BigInteger val, boolean external, ByteBuffer dest) {
+        final int signum = val.signum();
+        if (signum == 0) {
+            if (external) {
+                dest.put((byte) 0x80);
+            } else {
+                fill(dest, byteLen, (byte) 0x00);
+            }
             return;
         }
-        final byte[] destBytes = new byte[byteLen];
-        if (val.signum() != 0) {
-            final byte[] sourceBytes = val.toByteArray();
-            if (val.signum() < 0) {
-                results.add(signExtendNegative(sourceBytes, byteLen));
-                return;
+        final byte[] bytes = val.toByteArray();
+        if (signum < 0) {
+            if (val.bitLength() >= byteLen * Byte.SIZE) {
+                throw new IllegalArgumentException("out of range for int" + byteLen * Byte.SIZE + ": " + val);
             }
-            final int padLength = destBytes.length - sourceBytes.length;
-            if (sourceBytes[0] != 0) {
-                System.arraycopy(sourceBytes, 0, destBytes, padLength, sourceBytes.length);
-            } else {
-                System.arraycopy(sourceBytes, 1, destBytes, padLength + 1, sourceBytes.length - 1);
+            if (external) {
+                putRlpPrefix(byteLen, (byte) 0xff, dest);
             }
+            fill(dest, byteLen - bytes.length, (byte) 0xff);
+            dest.put(bytes);
+            return;
         }
-        results.add(destBytes);
-    }
-
-    private static void encodeIntegerExternal(int byteLen, BigInteger val, List<byte[]> results) {
-        if (val.signum() != 0) {
-            final byte[] bytes = val.toByteArray();
-            results.add(
-                    rlp(
-                        val.signum() < 0
-                            ? signExtendNegative(bytes, byteLen)
-                            : bytes[0] != 0
-                                ? bytes
-                                : Arrays.copyOfRange(bytes, 1, bytes.length)
-                    )
-            );
+        final int offset = bytes[0] != 0 ? 0 : 1;
+        final int dataLen = bytes.length - offset;
+        if (external) {
+            putRlpPrefix(dataLen, bytes[offset], dest);
         } else {
-            results.add(rlp(new byte[0]));
+            if (dataLen > byteLen) throw new IllegalArgumentException();
+            fill(dest, byteLen - dataLen, (byte) 0x00);
         }
+        dest.put(bytes, offset, dataLen);
     }
 
-    private static BigInteger decodeInteger(int byteLen, boolean unsigned, ByteBuffer bb, boolean external) {
+    static BigInteger decodeInteger(int byteLen, boolean unsigned, ByteBuffer bb, boolean external) {
         final byte[] bytes = external ? unrlp(bb) : readBytes(byteLen, bb);
-        return unsigned
+        return unsigned || bytes.length < byteLen // an external encoding shorter than the type is not sign-extended
                 ? new BigInteger(1, bytes)
                 : new BigInteger(bytes);
     }
 
-    private static void encodeTuple(V3Type tupleType, Object[] tuple, boolean external, List<byte[]> results) {
+    private static int measureLong(V3Type type, long val, boolean external) {
+        checkRange(type, val);
+        if (!external) {
+            return type.bitLen / Byte.SIZE;
+        }
+        if (val == 0) {
+            return 1;
+        }
+        if (val < 0 && !type.unsigned) {
+            return 1 + type.bitLen / Byte.SIZE;
+        }
+        final int dataLen = Integers.len(val);
+        return dataLen == 1 && val < 0x80 ? 1 : 1 + dataLen;
+    }
+
+    /**
+     * Encodes an integer of any width from a {@code long}, which is sign-extended for a signed type and taken as
+     * unsigned for an unsigned type.
+     */
+    static void encodeLong(int byteLen, boolean unsigned, long val, boolean external, ByteBuffer dest) {
+        if (external) {
+            if (val == 0) {
+                dest.put((byte) 0x80);
+                return;
+            }
+            if (val > 0 || unsigned) {
+                final int dataLen = Integers.len(val);
+                if (dataLen == 1 && val < 0x80) {
+                    dest.put((byte) val);
+                } else {
+                    dest.put((byte) (0x80 + dataLen));
+                    Integers.putLong(val, dest);
+                }
+                return;
+            }
+            dest.put((byte) (0x80 + byteLen));
+        }
+        int n = byteLen;
+        if (n > Long.BYTES) { // a shift distance is taken mod 64, so extend the value explicitly
+            fill(dest, n - Long.BYTES, unsigned ? (byte) 0x00 : (byte) (val >> (Long.SIZE - 1)));
+            n = Long.BYTES;
+        }
+        for (int shift = (n - 1) * Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            dest.put((byte) (val >>> shift));
+        }
+    }
+
+    /**
+     * Decodes an integer of up to 64 bits without going through {@link BigInteger}. Values of {@code uint64} which
+     * exceed {@link Long#MAX_VALUE} are returned as their two's complement bits.
+     */
+    static long decodeLong(int byteLen, boolean unsigned, ByteBuffer bb, boolean external) {
+        int n = byteLen;
+        if (external) {
+            final int lead = bb.get() & 0xFF;
+            if (lead < 0x80) {
+                return lead;
+            }
+            n = lead - 0x80;
+            if (n > byteLen) throw new DecodeException(Validator.MALFORMED, bb.position() - 1);
+        }
+        long val = 0L;
+        final int pos = bb.position();
+        if (n != 0 && bb.limit() - pos >= Long.BYTES) {
+            val = bb.getLong(pos) >>> (Long.SIZE - n * Byte.SIZE); // one big-endian word read
+            bb.position(pos + n);
+        } else {
+            for (int i = 0; i < n; i++) {
+                val = (val << Byte.SIZE) | (bb.get() & 0xFFL);
+            }
+        }
+        if (!unsigned && n == byteLen && n < Long.BYTES) {
+            final int shift = Long.SIZE - n * Byte.SIZE;
+            val = (val << shift) >> shift; // sign-extend
+        }
+        return val;
+    }
+
+    /**
+     * Checks the integer of up to eight bytes at the position as strictly as {@link Validator} would, without consuming
+     * it, so that {@link #decodeLong(int, boolean, ByteBuffer, boolean)} can then read it safely.
+     *
+     * @throws DecodeException if it is truncated, too long or not in canonical form
+     */
+    static void checkLong(int byteLen, ByteBuffer bb, boolean external) {
+        final int pos = bb.position();
+        final int avail = bb.limit() - pos;
+        if (!external) {
+            if (byteLen > avail) throw new DecodeException(Validator.TRUNCATED, pos);
+            return;
+        }
+        if (avail == 0) throw new DecodeException(Validator.TRUNCATED, pos);
+        final int lead = bb.get(pos) & 0xFF;
+        if (lead < 0x80) {
+            if (lead == 0x00) throw new DecodeException(Validator.NON_CANONICAL, pos); // zero is the empty string
+            return;
+        }
+        final int dataLen = lead - 0x80;
+        if (dataLen > byteLen) throw new DecodeException(Validator.MALFORMED, pos);
+        if (dataLen >= avail) throw new DecodeException(Validator.TRUNCATED, pos);
+        if (dataLen > 0) {
+            final int first = bb.get(pos + 1) & 0xFF;
+            if (first == 0x00 || dataLen == 1 && first < 0x80) throw new DecodeException(Validator.NON_CANONICAL, pos);
+        }
+    }
+
+    static void checkRange(V3Type type, long val) {
+        final int bitLen = type.bitLen;
+        if (bitLen < Long.SIZE) {
+            final long high = type.unsigned ? val >>> bitLen : val >> (bitLen - 1);
+            if (high != 0 && (type.unsigned || high != -1L)) {
+                throw new IllegalArgumentException("out of range for " + type.canonicalType + ": " + val);
+            }
+        }
+    }
+
+    private static int measureTuple(V3Type tupleType, Object[] tuple, boolean external) {
         validateLength(tupleType.elementTypes.length, tuple.length);
-        final Object[] out = new Object[tupleType.elementTypes.length];
-        for(int i = 0; i < out.length; i++) {
-            encode(tupleType.elementTypes[i], tuple[i], external, results);
+        int len = 0;
+        for (int i = 0; i < tuple.length; i++) {
+            len += measure(tupleType.elementTypes[i], tuple[i], external);
         }
+        return len;
     }
 
-    private static Object[] decodeTuple(V3Type tupleType, ByteBuffer bb, boolean external) {
+    private static void encodeTuple(V3Type tupleType, Object[] tuple, boolean external, ByteBuffer dest) {
+        for (int i = 0; i < tuple.length; i++) {
+            encode(tupleType.elementTypes[i], tuple[i], external, dest);
+        }
+    }
+
+    private static Object[] decodeTuple(V3Type tupleType, ByteBuffer bb, boolean external, DecodeBudget.Meter m) {
+        if (m != null) m.enter(bb.position());
         final Object[] out = new Object[tupleType.elementTypes.length];
         for(int i = 0; i < out.length; i++) {
-            out[i] = decode(tupleType.elementTypes[i], bb, external);
+            out[i] = decode(tupleType.elementTypes[i], bb, external, m);
         }
+        if (m != null) m.exit();
         return out;
     }
 
-    private static void encodeArray(V3Type type, Object arr, boolean external, List<byte[]> results) {
+    private static int measureArray(V3Type type, Object arr, boolean external) {
         final V3Type et = type.elementType;
         switch (et.typeCode) {
-        case V3Type.TYPE_CODE_BOOLEAN: encodeBooleanArray(type, (boolean[]) arr, results); return;
-        case V3Type.TYPE_CODE_BYTE: encodeByteArray(type, arr, results); return;
-        case V3Type.TYPE_CODE_BIG_INTEGER: encodeIntegerArray(type, (BigInteger[]) arr, external, results); return;
+        case V3Type.TYPE_CODE_BOOLEAN: return measureBooleanArray(type, (boolean[]) arr);
+        case V3Type.TYPE_CODE_BYTE: return measureByteArray(type, arr);
+        case V3Type.TYPE_CODE_BIG_INTEGER:
+            return arr instanceof BigInteger[]
+                    ? measureIntegerArray(type, (BigInteger[]) arr, external)
+                    : measurePrimitiveArray(type, arr, external);
         case V3Type.TYPE_CODE_ARRAY:
-        case V3Type.TYPE_CODE_TUPLE: encodeObjectArray(type, (Object[]) arr, external, results); return;
+        case V3Type.TYPE_CODE_TUPLE: return measureObjectArray(type, (Object[]) arr, external);
         default: throw new AssertionError();
         }
     }
 
-    private static Object decodeArray(V3Type type, ByteBuffer bb, boolean external) {
+    private static void encodeArray(V3Type type, Object arr, boolean external, ByteBuffer dest) {
         final V3Type et = type.elementType;
         switch (et.typeCode) {
-        case V3Type.TYPE_CODE_BOOLEAN: return decodeBooleanArray(type, bb);
-        case V3Type.TYPE_CODE_BYTE: return decodeByteArray(type, bb);
-        case V3Type.TYPE_CODE_BIG_INTEGER: return decodeIntegerArray(type, bb, external);
+        case V3Type.TYPE_CODE_BOOLEAN: encodeBooleanArray(type, (boolean[]) arr, dest); return;
+        case V3Type.TYPE_CODE_BYTE: encodeByteArray(type, arr, dest); return;
+        case V3Type.TYPE_CODE_BIG_INTEGER:
+            if (arr instanceof BigInteger[]) {
+                encodeIntegerArray(type, (BigInteger[]) arr, external, dest);
+            } else {
+                encodePrimitiveArray(type, arr, external, dest);
+            }
+            return;
+        case V3Type.TYPE_CODE_ARRAY:
+        case V3Type.TYPE_CODE_TUPLE: encodeObjectArray(type, (Object[]) arr, external, dest); return;
+        default: throw new AssertionError();
+        }
+    }
+
+    private static Object decodeArray(V3Type type, ByteBuffer bb, boolean external, DecodeBudget.Meter m) {
+        if (type.elementType.typeCode == V3Type.TYPE_CODE_BYTE) {
+            return decodeByteArray(type, bb, m); // a byte string is a leaf, not a level of nesting
+        }
+        if (m != null) m.enter(bb.position());
+        final Object arr;
+        switch (type.elementType.typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN: arr = decodeBooleanArray(type, bb, m); break;
+        case V3Type.TYPE_CODE_BIG_INTEGER:
+            arr = type.primitiveBits != 0
+                    ? decodePrimitiveArray(type, bb, external, m)
+                    : decodeIntegerArray(type, bb, external, m);
+            break;
         case V3Type.TYPE_CODE_ARRAY:
-        case V3Type.TYPE_CODE_TUPLE: return decodeObjectArray(type, bb, external);
+        case V3Type.TYPE_CODE_TUPLE: arr = decodeObjectArray(type, bb, external, m); break;
         default: throw new AssertionError();
         }
+        if (m != null) m.exit();
+        return arr;
     }
 
-    private static void encodeBooleanArray(V3Type type, boolean[] booleans, List<byte[]> results) {
+    private static int measureBooleanArray(V3Type type, boolean[] booleans) {
         validateLength(type.arrayLen, booleans.length);
+        return lengthPrefixLength(type, booleans.length)
+                + BitOps.packedLength(booleans.length);
+    }
+
+    private static void encodeBooleanArray(V3Type type, boolean[] booleans, ByteBuffer dest) {
         if (type.arrayLen == -1) {
-            results.add(rlp(booleans.length));
-        }
-        if (booleans.length > 0) {
-            final byte[] bits = new byte[Integers.roundLengthUp(booleans.length, Byte.SIZE) / Byte.SIZE];
-            for (int k = 0; k < booleans.length; k++) {
-                if (booleans[booleans.length - 1 - k]) {
-                    final int idx = bits.length - 1 - (k / Byte.SIZE);
-                    bits[idx] |= 0b0000_0001 << (k % 8);
-                }
-            }
-            results.add(bits);
+            putRlp(booleans.length, dest);
+        }
+        final int n = BitOps.packedLength(booleans.length);
+        if (dest.hasArray() && n <= dest.remaining()) {
+            BitOps.get().pack(booleans, dest.array(), dest.arrayOffset() + dest.position());
+            dest.position(dest.position() + n);
+        } else {
+            final byte[] packed = new byte[n];
+            BitOps.get().pack(booleans, packed, 0);
+            dest.put(packed);
         }
     }
 
-    private static boolean[] decodeBooleanArray(final V3Type type, ByteBuffer bb) {
+    private static boolean[] decodeBooleanArray(final V3Type type, ByteBuffer bb, DecodeBudget.Meter m) {
         final int len;
-        if (type.arrayLen == 0 || (len = getLength(type, bb)) == 0) return new boolean[0];
-        final int byteLen = Integers.roundLengthUp(len, Byte.SIZE) / Byte.SIZE;
-        final String binaryStr = new BigInteger(1, readBytes(byteLen, bb)).toString(2);
-        final int numChars = binaryStr.length();
-        final int impliedZeros = len - numChars;
-        final boolean[] booleans = new boolean[len];
-        for (int c = 0; c < numChars; c++) {
-            if (binaryStr.charAt(c) == '1') {
-                booleans[impliedZeros + c] = true;
-            }
+        if (type.arrayLen == 0 || (len = getLength(type, bb, false, m)) == 0) return new boolean[0];
+        final int start = bb.position();
+        final int n = BitOps.packedLength(len);
+        if (n > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, start);
+        final byte[] src;
+        final int offset;
+        if (bb.hasArray()) {
+            src = bb.array();
+            offset = bb.arrayOffset() + start;
+        } else {
+            src = readBytes(n, bb);
+            offset = 0;
         }
+        final int usedBits = len % Byte.SIZE;
+        if (usedBits != 0 && (src[offset] & 0xFF) >>> usedBits != 0) throw new DecodeException(Validator.NON_CANONICAL, start);
+        final boolean[] booleans = new boolean[len];
+        BitOps.get().unpack(src, offset, booleans);
+        bb.position(start + n);
         return booleans;
     }
 
-    private static void encodeByteArray(V3Type type, Object arr, List<byte[]> results) {
+    private static int measureByteArray(V3Type type, Object arr) {
+        final int len = type.isString ? utf8Length((String) arr) : ((byte[]) arr).length;
+        validateLength(type.arrayLen, len);
+        if (type.arrayLen == -1) {
+            return rlpLength(len, len == 1 ? firstByte(type, arr) : 0);
+        }
+        return len;
+    }
+
+    private static void encodeByteArray(V3Type type, Object arr, ByteBuffer dest) {
         final byte[] bytes = type.isString ? ((String) arr).getBytes(StandardCharsets.UTF_8) : (byte[]) arr;
-        validateLength(type.arrayLen, bytes.length);
         if (type.arrayLen == -1) {
-            results.add(rlp(bytes));
+            putRlp(bytes, dest);
         } else {
-            results.add(bytes);
+            dest.put(bytes);
         }
     }
 
-    private static Object decodeByteArray(V3Type type, ByteBuffer bb) {
-        final byte[] raw = type.arrayLen == -1 ? unrlp(bb) : readBytes(type.arrayLen, bb);
+    private static Object decodeByteArray(V3Type type, ByteBuffer bb, DecodeBudget.Meter m) {
+        if (m != null && type.arrayLen != -1) m.bytes(type.arrayLen, bb.position());
+        final byte[] raw = type.arrayLen == -1 ? unrlp(bb, m) : readBytes(type.arrayLen, bb);
         return type.isString
                 ? new String(raw, StandardCharsets.UTF_8)
                 : raw;
     }
 
-    private static void encodeIntegerArray(V3Type type, BigInteger[] arr, boolean external, List<byte[]> results) {
+    private static int measureIntegerArray(V3Type type, BigInteger[] arr, boolean external) {
         validateLength(type.arrayLen, arr.length);
+        final int byteLen = type.elementType.bitLen / Byte.SIZE;
+        int len = lengthPrefixLength(type, arr.length);
+        for (BigInteger bigInteger : arr) {
+            len += measureInteger(byteLen, bigInteger, external);
+        }
+        return len;
+    }
+
+    private static void encodeIntegerArray(V3Type type, BigInteger[] arr, boolean external, ByteBuffer dest) {
         if (type.arrayLen == -1) {
-            results.add(rlp(arr.length));
+            putRlp(arr.length, dest);
         }
+        final int byteLen = type.elementType.bitLen / Byte.SIZE;
         for (BigInteger bigInteger : arr) {
-            encodeInteger(type.elementType.bitLen / Byte.SIZE, bigInteger, external, results);
+            encodeInteger(byteLen, bigInteger, external, dest);
         }
     }
 
-    private static BigInteger[] decodeIntegerArray(V3Type type, ByteBuffer bb, boolean external) {
-        final BigInteger[] bigInts = new BigInteger[getLength(type, bb)];
+    private static BigInteger[] decodeIntegerArray(V3Type type, ByteBuffer bb, boolean external, DecodeBudget.Meter m) {
+        final BigInteger[] bigInts = new BigInteger[getLength(type, bb, external, m)];
         for (int i = 0; i < bigInts.length; i++) {
             bigInts[i] = decodeInteger(type.elementType.bitLen / Byte.SIZE, type.elementType.unsigned, bb, external);
         }
         return bigInts;
     }
 
-    private static void encodeObjectArray(V3Type type, Object[] objects, boolean external, List<byte[]> results) {
+    private static int measurePrimitiveArray(V3Type type, Object arr, boolean external) {
+        final int len = primitiveLength(arr);
+        validateLength(type.arrayLen, len);
+        int n = lengthPrefixLength(type, len);
+        for (int i = 0; i < len; i++) {
+            n += measureLong(type.elementType, primitiveAt(arr, i), external);
+        }
+        return n;
+    }
+
+    private static void encodePrimitiveArray(V3Type type, Object arr, boolean external, ByteBuffer dest) {
+        final int len = primitiveLength(arr);
+        if (type.arrayLen == -1) {
+            putRlp(len, dest);
+        }
+        final int byteLen = type.elementType.bitLen / Byte.SIZE;
+        final boolean unsigned = type.elementType.unsigned;
+        for (int i = 0; i < len; i++) {
+            encodeLong(byteLen, unsigned, primitiveAt(arr, i), external, dest);
+        }
+    }
+
+    private static Object decodePrimitiveArray(V3Type type, ByteBuffer bb, boolean external, DecodeBudget.Meter m) {
+        final int len = getLength(type, bb, external, m);
+        final int byteLen = type.elementType.bitLen / Byte.SIZE;
+        final boolean unsigned = type.elementType.unsigned;
+        if (type.primitiveBits == Long.SIZE) {
+            final long[] longs = new long[len];
+            for (int i = 0; i < len; i++) {
+                longs[i] = decodeLong(byteLen, unsigned, bb, external);
+            }
+            return longs;
+        }
+        if (type.primitiveBits == Integer.SIZE) {
+            final int[] ints = new int[len];
+            for (int i = 0; i < len; i++) {
+                ints[i] = (int) decodeLong(byteLen, unsigned, bb, external);
+            }
+            return ints;
+        }
+        if (type.primitiveBits == Short.SIZE) {
+            final short[] shorts = new short[len];
+            for (int i = 0; i < len; i++) {
+                shorts[i] = (short) decodeLong(byteLen, unsigned, bb, external);
+            }
+            return shorts;
+        }
+        final byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = (byte) decodeLong(byteLen, unsigned, bb, external);
+        }
+        return bytes;
+    }
+
+    private static int primitiveLength(Object arr) {
+        if (arr instanceof long[]) return ((long[]) arr).length;
+        if (arr instanceof int[]) return ((int[]) arr).length;
+        if (arr instanceof short[]) return ((short[]) arr).length;
+        return ((byte[]) arr).length;
+    }
+
+    private static long primitiveAt(Object arr, int i) {
+        if (arr instanceof long[]) return ((long[]) arr)[i];
+        if (arr instanceof int[]) return ((int[]) arr)[i];
+        if (arr instanceof short[]) return ((short[]) arr)[i];
+        return ((byte[]) arr)[i];
+    }
+
+    private static int measureObjectArray(V3Type type, Object[] objects, boolean external) {
         validateLength(type.arrayLen, objects.length);
+        int len = lengthPrefixLength(type, objects.length);
+        for (Object object : objects) {
+            len += measure(type.elementType, object, external);
+        }
+        return len;
+    }
+
+    private static void encodeObjectArray(V3Type type, Object[] objects, boolean external, ByteBuffer dest) {
         if (type.arrayLen == -1) {
-            results.add(rlp(objects.length));
+            putRlp(objects.length, dest);
         }
         for (Object object : objects) {
-            encode(type.elementType, object, external, results);
+            encode(type.elementType, object, external, dest);
         }
     }
 
-    private static Object decodeObjectArray(V3Type type, ByteBuffer bb, boolean external) {
-        final int len = getLength(type, bb);
-        final Object[] in = (Object[]) Array.newInstance(type.elementType.clazz, len); // reflection
+    private static Object decodeObjectArray(V3Type type, ByteBuffer bb, boolean external, DecodeBudget.Meter m) {
+        final int len = getLength(type, bb, external, m);
+        final Object[] in = type.elementType.arrayFactory.apply(len);
         for (int i = 0; i < in.length; i++) {
-            in[i] = decode(type.elementType, bb, external);
+            in[i] = decode(type.elementType, bb, external, m);
         }
         return in;
     }
@@ -286,91 +866,222 @@ public final class V3 {
      */
     public static byte[] rlp(byte[] byteString) {
         final int dataLen = byteString.length;
-        final ByteBuffer bb;
+        final ByteBuffer bb = ByteBuffer.allocate(rlpLength(dataLen, dataLen == 1 ? byteString[0] : 0));
+        putRlp(byteString, bb);
+        return bb.array();
+    }
+
+    static void putRlp(int value, ByteBuffer dest) {
+        final int dataLen = Integers.len(value);
+        if (dataLen == 1 && value < 0x80) {
+            dest.put((byte) value);
+            return;
+        }
+        dest.put((byte) (0x80 + dataLen));
+        Integers.putLong(value, dest);
+    }
+
+    private static void putRlp(byte[] byteString, ByteBuffer dest) {
+        final int dataLen = byteString.length;
+        putRlpPrefix(dataLen, dataLen == 1 ? byteString[0] : 0, dest);
+        dest.put(byteString);
+    }
+
+    /** Writes the RLP prefix for a byte string of the given length whose first byte is {@code first}. */
+    static void putRlpPrefix(int dataLen, byte first, ByteBuffer dest) {
         if (dataLen < 56) {
-            if (dataLen == 1) {
-                final byte first = byteString[0];
-                return first < 0x00
-                        ? new byte[] { (byte) 0x81, first }
-                        : single(first);
+            if (dataLen != 1 || first < 0x00) {
+                dest.put((byte) (0x80 + dataLen));
             }
-            bb = ByteBuffer.allocate(1 + byteString.length);
-            bb.put((byte) (0x80 + dataLen));
-            bb.put(byteString);
         } else {
-            final int lenOfLen = Integers.len(dataLen);
-            bb = ByteBuffer.allocate(1 + lenOfLen + byteString.length);
-            bb.put((byte) (0xb7 + lenOfLen));
-            Integers.putLong(dataLen, bb);
-            bb.put(byteString);
+            dest.put((byte) (0xb7 + Integers.len(dataLen)));
+            Integers.putLong(dataLen, dest);
         }
-        return bb.array();
+    }
+
+    /** Returns the length of the RLP encoding of a byte string of the given length whose first byte is {@code first}. */
+    private static int rlpLength(int dataLen, byte first) {
+        if (dataLen < 56) {
+            return dataLen == 1 && first >= 0x00 ? 1 : 1 + dataLen;
+        }
+        return 1 + Integers.len(dataLen) + dataLen;
+    }
+
+    static int lengthPrefixLength(V3Type type, int len) {
+        return type.arrayLen == -1
+                ? len < 0x80 ? 1 : 1 + Integers.len(len)
+                : 0;
     }
 
     private static byte[] unrlp(ByteBuffer bb) {
+        return unrlp(bb, null);
+    }
+
+    private static byte[] unrlp(ByteBuffer bb, DecodeBudget.Meter m) {
+        final int start = bb.position();
         final int lead = bb.get() & 0xFF;
         if (lead < 0x80) {
+            if (m != null) m.bytes(1, start);
             return single((byte) lead);
         }
         if (lead < 0xB8) {
+            if (m != null) m.bytes(lead - 0x80, start);
             return readBytes(lead - 0x80, bb);
         }
         if (lead < 0xC0) {
             final int lengthOfLength = lead - 0xB7;
-            final int dataLength = Integers.getInt(readBytes(lengthOfLength, bb), 0, lengthOfLength);
+            if (lengthOfLength > Integer.BYTES) throw new DecodeException(Validator.MALFORMED, start);
+            final int dataLength = readLength(lengthOfLength, bb, start);
             if (dataLength >= 56) {
+                if (m != null) m.bytes(dataLength, start);
                 return readBytes(dataLength, bb);
             }
+            throw new DecodeException(Validator.NON_CANONICAL, start);
         }
-        throw new Error();
+        throw new DecodeException(Validator.MALFORMED, start);
     }
 
-    private static List<byte[]> headerExternal(int functionNumber) {
-        final List<byte[]> results = new ArrayList<>(2);
+    /**
+     * Consumes an RLP string's prefix and returns the length of its data, which then begins at the position. A single
+     * byte below {@code 0x80} is its own encoding, so nothing is consumed for it.
+     */
+    static int readStringPrefix(ByteBuffer bb) {
+        final int start = bb.position();
+        if (!bb.hasRemaining()) throw new DecodeException(Validator.TRUNCATED, start);
+        final int lead = bb.get(start) & 0xFF;
+        if (lead < 0x80) {
+            return 1;
+        }
+        bb.get();
+        if (lead < 0xB8) {
+            return lead - 0x80;
+        }
+        if (lead < 0xC0) {
+            final int lengthOfLength = lead - 0xB7;
+            if (lengthOfLength > Integer.BYTES) throw new DecodeException(Validator.MALFORMED, start);
+            final int dataLength = readLength(lengthOfLength, bb, start);
+            if (dataLength < 56) throw new DecodeException(Validator.NON_CANONICAL, start);
+            return dataLength;
+        }
+        throw new DecodeException(Validator.MALFORMED, start);
+    }
+
+    /** Reads the big-endian length of an RLP string whose prefix began at {@code start}. */
+    private static int readLength(int lengthOfLength, ByteBuffer bb, int start) {
+        if (lengthOfLength > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, start);
+        if (bb.get(bb.position()) == 0x00) throw new DecodeException(Validator.NON_CANONICAL, start);
+        final int len = Integers.getInt(bb, lengthOfLength);
+        if (len < 0) throw new DecodeException(Validator.MALFORMED, start);
+        return len;
+    }
+
+    static int headerLength(int functionNumber, boolean external) {
+        return external ? headerLengthExternal(functionNumber) : 1 + Integer.BYTES;
+    }
+
+    private static int headerLengthExternal(int functionNumber) {
         if (functionNumber < ID_MASK) {
-            results.add(
-                    functionNumber == 0
-                            ? single(VERSION_ID_EXTERNAL)
-                            : single((byte) (VERSION_ID_EXTERNAL | Integers.toBytes(functionNumber)[0]))
-            );
+            return 1;
+        }
+        final int n = functionNumber - ID_MASK;
+        return 1 + (n < 0x80 ? 1 : 1 + Integers.len(n));
+    }
+
+    private static void putHeaderExternal(int functionNumber, ByteBuffer dest) {
+        if (functionNumber < ID_MASK) {
+            dest.put((byte) (VERSION_ID_EXTERNAL | functionNumber));
         } else {
-            results.add(single((byte) (VERSION_ID_EXTERNAL | ID_MASK)));
-            results.add(rlp(functionNumber - ID_MASK));
+            dest.put((byte) (VERSION_ID_EXTERNAL | ID_MASK));
+            putRlp(functionNumber - ID_MASK, dest);
         }
-        return results;
     }
 
-    private static List<byte[]> headerInternal(int functionNumber) {
-        final List<byte[]> results = new ArrayList<>(2);
-        results.add(single(VERSION_ID_INTERNAL));
-        encodeInteger(4, BigInteger.valueOf(functionNumber), false, results);
-        return results;
+    private static void putHeaderInternal(int functionNumber, ByteBuffer dest) {
+        dest.put(VERSION_ID_INTERNAL);
+        dest.putInt(functionNumber);
     }
 
     private static byte[] single(byte val) {
         return new byte[] { val };
     }
 
-    private static byte[] signExtendNegative(final byte[] negative, final int newWidth) {
-        final byte[] extended = new byte[newWidth];
-        Arrays.fill(extended, (byte) 0xff);
-        System.arraycopy(negative, 0, extended, newWidth - negative.length, negative.length);
-        return extended;
+    private static void fill(ByteBuffer dest, int n, byte val) {
+        for (int i = 0; i < n; i++) {
+            dest.put(val);
+        }
     }
 
-    private static void validateLength(int expected, int actual) {
+    private static byte firstByte(V3Type type, Object arr) {
+        return type.isString ? (byte) ((String) arr).charAt(0) : ((byte[]) arr)[0];
+    }
+
+    /** Returns the length of the string's UTF-8 encoding. Unpaired surrogates count as one byte each ('?'). */
+    static int utf8Length(String str) {
+        final int len = str.length();
+        int count = len;
+        for (int i = 0; i < len; i++) {
+            final char c = str.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    count++;
+                } else if (!Character.isSurrogate(c)) {
+                    count += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                    count += 2;
+                    i++;
+                }
+            }
+        }
+        return count;
+    }
+
+    static void checkOrder(ByteBuffer bb) {
+        if (bb.order() != ByteOrder.BIG_ENDIAN) throw new IllegalArgumentException("buffer must be big-endian");
+    }
+
+    static void validateLength(int expected, int actual) {
         if (expected != actual && expected != -1) throw new IllegalArgumentException();
     }
 
-    private static int getLength(V3Type type, ByteBuffer bb) {
+    /**
+     * Reads an array's length and, before anything is allocated for it, checks that the remaining input could hold
+     * that many elements and charges them to the budget, if any.
+     */
+    static int getLength(V3Type type, ByteBuffer bb, boolean external, DecodeBudget.Meter m) {
+        final int start = bb.position();
+        final int len = getLength(type, bb);
+        final V3Type et = type.elementType;
+        final long minLen = et.typeCode == V3Type.TYPE_CODE_BOOLEAN
+                ? (len + (Byte.SIZE - 1L)) / Byte.SIZE
+                : (long) len * et.minLength(external);
+        if (minLen > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, start);
+        if (m != null) m.array(type, len, start);
+        return len;
+    }
+
+    /**
+     * Reads an array's length without checking it against the remaining input, except that an array of zero-width
+     * elements, which no amount of input can bound, may be no longer than {@link Validator#MAX_ZERO_WIDTH_LENGTH}.
+     */
+    static int getLength(V3Type type, ByteBuffer bb) {
         if (type.arrayLen == -1) {
-            final byte[] prefix = unrlp(bb);
-            return Integers.getInt(prefix, 0, prefix.length);
+            final int start = bb.position();
+            final int n = readStringPrefix(bb);
+            if (n > Integer.BYTES) throw new DecodeException(Validator.MALFORMED, start);
+            if (n > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, start);
+            if (n > 0 && bb.get(bb.position()) == 0x00) throw new DecodeException(Validator.NON_CANONICAL, start);
+            final int len = Integers.getInt(bb, n);
+            if (len < 0) throw new DecodeException(Validator.MALFORMED, start);
+            if (len > Validator.MAX_ZERO_WIDTH_LENGTH && type.elementType.minLength(false) == 0) {
+                throw new DecodeException(Validator.ARRAY_TOO_LONG, start);
+            }
+            return len;
         }
         return type.arrayLen;
     }
 
     private static byte[] readBytes(int n, ByteBuffer bb) {
+        if (n > bb.remaining()) throw new DecodeException(Validator.TRUNCATED, bb.position());
         final byte[] bytes = new byte[n];
         bb.get(bytes);
         return bytes;
@@ -15,12 +15,13 @@
 */
 package com.esaulpaugh.abiv3;
 
+import java.lang.reflect.Array;
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.function.IntFunction;
 
 public final class V3Type {
 
-    private static final ClassLoader CLASS_LOADER = Thread.currentThread().getContextClassLoader();
-
     public static final int TYPE_CODE_BOOLEAN = 0;
     public static final int TYPE_CODE_BIG_INTEGER = 1;
     public static final int TYPE_CODE_ARRAY = 2;
@@ -36,57 +37,160 @@ public final class V3Type {
     final Class<?> clazz;
     final V3Type elementType;
     final Class<?> arrayClass;
+    final IntFunction<Object[]> arrayFactory; // creates arrays of clazz, for decoding arrays of this type
     final boolean isString;
+    final int primitiveBits; // if an integer array type which decodes to long[], int[], short[] or byte[], the element width
 
     final Boolean unsigned; // if a number type
     final Integer bitLen;
 
     final V3Type[] elementTypes; // if a tuple type
 
+    final int minLength; // the fewest bytes a value of this type can occupy in the internal format
+    final int minLengthExternal; // likewise in the external format
+
     public Class<?> arrayClass() {
-        if (arrayClass != null) {
-            return arrayClass;
-        }
-        try {
-            return Class.forName('[' + clazz.getName(), false, CLASS_LOADER);
-        } catch (ClassNotFoundException cnfe) {
-            throw new AssertionError(cnfe);
-        }
+        return arrayClass;
     }
 
     V3Type(String canonicalType, Integer arrayLen, Class<?> clazz, Class<?> arrayClass, V3Type elementType, boolean isString) {
-        this(canonicalType, TYPE_CODE_ARRAY, arrayLen, clazz, arrayClass, elementType, isString, null, null, null);
+        this(canonicalType, TYPE_CODE_ARRAY, arrayLen, clazz, arrayClass, elementType, isString, null, null, null, 0);
     }
 
     V3Type(String canonicalType, Boolean unsigned, Integer bitLen) {
-        this(canonicalType, TYPE_CODE_BIG_INTEGER, null, BigInteger.class, BigInteger[].class, null, null, unsigned, bitLen, null);
+        this(canonicalType, TYPE_CODE_BIG_INTEGER, null, BigInteger.class, BigInteger[].class, null, null, unsigned, bitLen, null, 0);
     }
 
     V3Type(V3Type[] elementTypes) {
-        this(createSignature(elementTypes), V3Type.TYPE_CODE_TUPLE, null, Object[].class, Object[][].class, null, null, null, null, elementTypes);
+        this(createSignature(elementTypes), V3Type.TYPE_CODE_TUPLE, null, Object[].class, Object[][].class, null, null, null, null, elementTypes, 0);
     }
 
     private V3Type(String canonicalType, int typeCode, Integer arrayLen, Class<?> clazz, Class<?> arrayClass, V3Type elementType,
-                   Boolean isString, Boolean unsigned, Integer bitLen, V3Type[] elementTypes) {
+                   Boolean isString, Boolean unsigned, Integer bitLen, V3Type[] elementTypes, int primitiveBits) {
         this.canonicalType = canonicalType;
         this.typeCode = typeCode;
         this.arrayLen = arrayLen;
         this.clazz = clazz;
-        this.arrayClass = arrayClass;
+        this.arrayFactory = arrayFactory(clazz);
+        this.arrayClass = arrayClass != null ? arrayClass : arrayFactory.apply(0).getClass();
         this.elementType = elementType;
         this.isString = isString != null && isString;
+        this.primitiveBits = primitiveBits;
         this.unsigned = unsigned;
         this.bitLen = bitLen;
         this.elementTypes = elementTypes;
+        this.minLength = (int) computeMinLength(false);
+        this.minLengthExternal = (int) computeMinLength(true);
+    }
+
+    int minLength(boolean external) {
+        return external ? minLengthExternal : minLength;
+    }
+
+    private long computeMinLength(boolean external) {
+        switch (typeCode) {
+        case TYPE_CODE_BOOLEAN:
+        case TYPE_CODE_BYTE: return 1;
+        case TYPE_CODE_BIG_INTEGER: return external ? 1 : bitLen / Byte.SIZE;
+        case TYPE_CODE_ARRAY:
+            if (arrayLen == -1) {
+                return 1; // the length prefix
+            }
+            switch (elementType.typeCode) {
+            case TYPE_CODE_BYTE: return arrayLen;
+            case TYPE_CODE_BOOLEAN: return (arrayLen + (Byte.SIZE - 1L)) / Byte.SIZE;
+            default: return Math.min((long) arrayLen * elementType.minLength(external), Integer.MAX_VALUE);
+            }
+        case TYPE_CODE_TUPLE:
+            long sum = 0;
+            for (V3Type et : elementTypes) {
+                sum += et.minLength(external);
+            }
+            return Math.min(sum, Integer.MAX_VALUE);
+        default: throw new AssertionError();
+        }
+    }
+
+    /**
+     * Returns an equivalent type under which every array of integers up to 64 bits wide decodes to the narrowest
+     * primitive array able to hold its values instead of to {@code BigInteger[]}: {@code int8[]} to {@code byte[]},
+     * {@code uint8[]} and {@code int16[]} to {@code short[]}, up through {@code int32[]} to {@code int[]}, and the rest to
+     * {@code long[]}. Elements of {@code uint64[]} are stored as their two's complement bits, to be read with e.g.
+     * {@link Long#toUnsignedString(long)}. The encoder accepts either representation under either type.
+     *
+     * @return the primitive-decoding equivalent of this type
+     */
+    public V3Type asPrimitive() {
+        switch (typeCode) {
+        case TYPE_CODE_ARRAY:
+            if (elementType.typeCode == TYPE_CODE_BIG_INTEGER) {
+                if (primitiveBits != 0 || elementType.bitLen > Long.SIZE) {
+                    return this;
+                }
+                final int bits = primitiveBits(elementType.bitLen, elementType.unsigned);
+                final Class<?> c = bits == Byte.SIZE ? byte[].class
+                        : bits == Short.SIZE ? short[].class
+                        : bits == Integer.SIZE ? int[].class
+                        : long[].class;
+                return new V3Type(canonicalType, TYPE_CODE_ARRAY, arrayLen, c, null, elementType, false, null, null, null, bits);
+            }
+            if (elementType.typeCode == TYPE_CODE_ARRAY || elementType.typeCode == TYPE_CODE_TUPLE) {
+                final V3Type et = elementType.asPrimitive();
+                return et == elementType
+                        ? this
+                        : new V3Type(canonicalType, arrayLen, et.arrayClass(), null, et, false);
+            }
+            return this;
+        case TYPE_CODE_TUPLE:
+            final V3Type[] elements = new V3Type[elementTypes.length];
+            boolean changed = false;
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = elementTypes[i].asPrimitive();
+                changed |= elements[i] != elementTypes[i];
+            }
+            return changed ? new V3Type(elements) : this;
+        default: return this;
+        }
+    }
+
+    /**
+     * Returns a function which creates arrays with the given component type. Common component types map to array
+     * constructor references, which allocate directly. Any other (i.e. deeply nested) type falls back to
+     * {@link Arrays#copyOf(Object[], int)} of a zero-length prototype created once, here. That saves a class lookup per
+     * array but still goes through {@link Array#newInstance(Class, int)}, which the JIT usually, not always, intrinsifies.
+     */
+    static IntFunction<Object[]> arrayFactory(Class<?> componentType) {
+        if (componentType == Object[].class) return Object[][]::new;
+        if (componentType == String.class) return String[]::new;
+        if (componentType == BigInteger.class) return BigInteger[]::new;
+        if (componentType == byte[].class) return byte[][]::new;
+        if (componentType == boolean[].class) return boolean[][]::new;
+        if (componentType == String[].class) return String[][]::new;
+        if (componentType == BigInteger[].class) return BigInteger[][]::new;
+        if (componentType == byte[][].class) return byte[][][]::new;
+        if (componentType == Object[][].class) return Object[][][]::new;
+        if (componentType == long[].class) return long[][]::new;
+        if (componentType == int[].class) return int[][]::new;
+        if (componentType == short[].class) return short[][]::new;
+        final Object[] prototype = (Object[]) Array.newInstance(componentType, 0);
+        return len -> Arrays.copyOf(prototype, len);
+    }
+
+    private static int primitiveBits(int bitLen, boolean unsigned) {
+        final int width = unsigned && bitLen < Long.SIZE ? bitLen + 1 : bitLen; // room for the sign bit
+        return width <= Byte.SIZE ? Byte.SIZE
+                : width <= Short.SIZE ? Short.SIZE
+                : width <= Integer.SIZE ? Integer.SIZE
+                : Long.SIZE;
     }
 
     static final V3Type BYTE = new V3Type("-BYTE-", TYPE_CODE_BYTE,
             null, Byte.class, Byte[].class, null, null,
-            false, 8, null);
+            false, 8, null, 0);
 
     static final V3Type BOOL = new V3Type("bool", TYPE_CODE_BOOLEAN,
             null, Boolean.class, boolean[].class, null, null,
-            true, 1, null);
+            true, 1, null, 0);
 
     private static String createSignature(V3Type[] elementTypes) {
         if (elementTypes.length == 0) {
@@ -0,0 +1,273 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that an encoding is well-formed for a given type without decoding it. Nothing is allocated and nothing is
+ * thrown; the result is one of the codes below. Internally, each step returns either the offset just past what it
+ * checked or, negated, the code and offset of the first problem found.
+ */
+public final class Validator {
+
+    private Validator() {}
+
+    public static final int VALID = 0;
+    /** The input ends before the last argument does. */
+    public static final int TRUNCATED = 1;
+    /** The version bits are not those of the internal or external format. */
+    public static final int BAD_VERSION = 2;
+    /** Something other than an RLP string where one is required, or an integer or length wider than its type. */
+    public static final int MALFORMED = 3;
+    /** An RLP string, integer or length not in minimal form, or a boolean array with nonzero unused bits. */
+    public static final int NON_CANONICAL = 4;
+    /** A boolean other than {@code 0x00} or {@code 0x01}. */
+    public static final int BAD_BOOLEAN = 5;
+    /** Bytes remain after the last argument, other than a permitted padding byte. */
+    public static final int TRAILING_BYTES = 6;
+    /** The encoding's length is 4 mod 32, which would make it indistinguishable from ABIv2 calldata. */
+    public static final int LENGTH_4_MOD_32 = 7;
+    /** Tuples and arrays nested more deeply than {@link DecodeBudget#maxDepth()}. Reported only under a budget. */
+    public static final int TOO_DEEP = 8;
+    /**
+     * An array longer than {@link DecodeBudget#maxArrayLength()}, or a dynamic array of zero-width elements, such as
+     * {@code ()[]}, longer than {@link #MAX_ZERO_WIDTH_LENGTH}.
+     */
+    public static final int ARRAY_TOO_LONG = 9;
+    // the rest are reported only by decoding under a DecodeBudget
+    /** More array elements in total than {@link DecodeBudget#maxElements()}. */
+    public static final int TOO_MANY_ELEMENTS = 10;
+    /** More bytes allocated in total than {@link DecodeBudget#maxBytes()}. */
+    public static final int TOO_MANY_BYTES = 11;
+
+    private static final String[] NAMES = {
+            "valid", "truncated", "bad version", "malformed", "non-canonical", "bad boolean", "trailing bytes", "length is 4 mod 32",
+            "too deep", "array too long", "too many elements", "too many bytes"
+    };
+
+    private static final int CODE_BITS = 8;
+
+    /** The most elements a dynamic array of zero-width elements may declare, since its length costs no input. */
+    public static final int MAX_ZERO_WIDTH_LENGTH = 1 << 16;
+
+    public static int validate(V3Type tupleType, byte[] encoding) {
+        return validate(tupleType, ByteBuffer.wrap(encoding));
+    }
+
+    /**
+     * Validates the bytes from the buffer's position to its limit, which must hold exactly one encoding. The position
+     * is not changed.
+     */
+    public static int validate(V3Type tupleType, ByteBuffer bb) {
+        final long result = check(tupleType, bb);
+        return result < 0 ? code(result) : VALID;
+    }
+
+    /** Returns a short description of a result code. */
+    public static String describe(int code) {
+        return code >= 0 && code < NAMES.length ? NAMES[code] : "code " + code;
+    }
+
+    /**
+     * Like {@link #validate(V3Type, ByteBuffer)}, but on failure also reports where: returns the buffer's limit if the
+     * encoding is valid, otherwise a negative value from which {@link #code(long)} and {@link #offset(long)} extract the
+     * result code and the absolute offset of the offending item.
+     */
+    static long check(V3Type tupleType, ByteBuffer bb) {
+        final int start = bb.position();
+        final int end = bb.limit();
+        if (start == end) {
+            return fail(TRUNCATED, start);
+        }
+        final boolean external = (bb.get(start) & V3.VERSION_MASK) == V3.VERSION_ID_EXTERNAL;
+        long pos = header(bb, start, end);
+        if (pos >= 0) {
+            pos = tuple(tupleType, bb, (int) pos, end, external);
+        }
+        if (pos < 0) {
+            return pos;
+        }
+        final int len = end - start;
+        if (pos == end) {
+            return len % 32 == 4 ? fail(LENGTH_4_MOD_32, end) : end;
+        }
+        return pos == end - 1 && len % 32 == 5 && bb.get(end - 1) == 0x00 ? end : fail(TRAILING_BYTES, (int) pos);
+    }
+
+    static int code(long failure) {
+        return (int) (-failure & ((1 << CODE_BITS) - 1));
+    }
+
+    static int offset(long failure) {
+        return (int) (-failure >>> CODE_BITS);
+    }
+
+    private static long fail(int code, int offset) {
+        return -(((long) offset << CODE_BITS) | code);
+    }
+
+    /** Returns the offset just past the header at {@code pos}, checking it on the way, or a failure. */
+    static long skipHeader(ByteBuffer bb, int pos, int end) {
+        return header(bb, pos, end);
+    }
+
+    /** Returns the offset just past the value at {@code pos}, checking it on the way, or a failure. */
+    static long skip(V3Type t, ByteBuffer bb, int pos, int end, boolean external) {
+        return value(t, bb, pos, end, external);
+    }
+
+    private static long header(ByteBuffer bb, int pos, int end) {
+        final byte zeroth = bb.get(pos);
+        final int versionBits = zeroth & V3.VERSION_MASK;
+        if (versionBits == V3.VERSION_ID_INTERNAL) {
+            if (zeroth != V3.VERSION_ID_INTERNAL) return fail(MALFORMED, pos);
+            if (Integer.BYTES > end - pos - 1) return fail(TRUNCATED, pos);
+            return bb.get(pos + 1) < 0 ? fail(MALFORMED, pos) : pos + 1 + Integer.BYTES;
+        }
+        if (versionBits == V3.VERSION_ID_EXTERNAL) {
+            return (zeroth & V3.ID_MASK) == V3.ID_MASK
+                    ? integer(Integer.BYTES, bb, pos + 1, end, true)
+                    : pos + 1;
+        }
+        return fail(BAD_VERSION, pos);
+    }
+
+    private static long value(V3Type t, ByteBuffer bb, int pos, int end, boolean external) {
+        switch (t.typeCode) {
+        case V3Type.TYPE_CODE_BOOLEAN:
+            if (pos == end) return fail(TRUNCATED, pos);
+            final byte b = bb.get(pos);
+            return b == 0x00 || b == 0x01 ? pos + 1 : fail(BAD_BOOLEAN, pos);
+        case V3Type.TYPE_CODE_BIG_INTEGER: return integer(t.bitLen / Byte.SIZE, bb, pos, end, external);
+        case V3Type.TYPE_CODE_ARRAY: return array(t, bb, pos, end, external);
+        case V3Type.TYPE_CODE_TUPLE: return tuple(t, bb, pos, end, external);
+        default: throw new AssertionError();
+        }
+    }
+
+    private static long tuple(V3Type tupleType, ByteBuffer bb, int pos, int end, boolean external) {
+        for (V3Type et : tupleType.elementTypes) {
+            final long next = value(et, bb, pos, end, external);
+            if (next < 0) {
+                return next;
+            }
+            pos = (int) next;
+        }
+        return pos;
+    }
+
+    private static long integer(int byteLen, ByteBuffer bb, int pos, int end, boolean external) {
+        if (!external) {
+            return byteLen > end - pos ? fail(TRUNCATED, pos) : pos + byteLen;
+        }
+        final long next = string(bb, pos, end);
+        if (next < 0) {
+            return next;
+        }
+        final int lead = bb.get(pos) & 0xFF;
+        if (lead < 0x80) {
+            return lead == 0x00 ? fail(NON_CANONICAL, pos) : next; // zero is the empty string
+        }
+        final long dataLen = next - pos - 1;
+        if (lead >= 0xB8 || dataLen > byteLen) return fail(MALFORMED, pos);
+        return dataLen > 0 && bb.get(pos + 1) == 0x00 ? fail(NON_CANONICAL, pos) : next;
+    }
+
+    private static long array(V3Type type, ByteBuffer bb, int pos, int end, boolean external) {
+        final V3Type et = type.elementType;
+        if (et.typeCode == V3Type.TYPE_CODE_BYTE) {
+            if (type.arrayLen == -1) {
+                return string(bb, pos, end);
+            }
+            return type.arrayLen > end - pos ? fail(TRUNCATED, pos) : pos + type.arrayLen;
+        }
+        int len = type.arrayLen;
+        if (len == -1) {
+            final long next = integer(Integer.BYTES, bb, pos, end, true);
+            if (next < 0) {
+                return next;
+            }
+            len = lengthValue(bb, pos, (int) next);
+            if (len < 0) return fail(MALFORMED, pos);
+            if (len > MAX_ZERO_WIDTH_LENGTH && et.minLength(false) == 0) return fail(ARRAY_TOO_LONG, pos);
+            pos = (int) next;
+        }
+        if (et.minLength(false) == 0) {
+            return pos; // zero-width elements, e.g. () or uint8[0], consume nothing and cannot be malformed
+        }
+        if (et.typeCode == V3Type.TYPE_CODE_BOOLEAN) {
+            final int n = packedLength(len);
+            if (n > end - pos) return fail(TRUNCATED, pos);
+            final int usedBits = len % Byte.SIZE;
+            return usedBits != 0 && (bb.get(pos) & 0xFF) >>> usedBits != 0 ? fail(NON_CANONICAL, pos) : pos + n;
+        }
+        if ((long) len * et.minLength(external) > end - pos) return fail(TRUNCATED, pos); // before iterating over a bogus length
+        for (int i = 0; i < len; i++) {
+            final long next = value(et, bb, pos, end, external);
+            if (next < 0) {
+                return next;
+            }
+            pos = (int) next;
+        }
+        return pos;
+    }
+
+    /** Checks an RLP string's prefix and length, but not its contents. */
+    private static long string(ByteBuffer bb, int pos, int end) {
+        if (pos == end) return fail(TRUNCATED, pos);
+        final int lead = bb.get(pos) & 0xFF;
+        if (lead < 0x80) {
+            return pos + 1;
+        }
+        if (lead < 0xB8) {
+            final int dataLen = lead - 0x80;
+            if (dataLen > end - pos - 1) return fail(TRUNCATED, pos);
+            return dataLen == 1 && (bb.get(pos + 1) & 0xFF) < 0x80 ? fail(NON_CANONICAL, pos) : pos + 1 + dataLen;
+        }
+        if (lead < 0xC0) {
+            final int lengthOfLength = lead - 0xB7;
+            if (lengthOfLength > Integer.BYTES) return fail(MALFORMED, pos);
+            if (lengthOfLength > end - pos - 1) return fail(TRUNCATED, pos);
+            if (bb.get(pos + 1) == 0x00) return fail(NON_CANONICAL, pos);
+            long dataLen = 0;
+            for (int i = 1; i <= lengthOfLength; i++) {
+                dataLen = (dataLen << Byte.SIZE) | (bb.get(pos + i) & 0xFFL);
+            }
+            if (dataLen < 56) return fail(NON_CANONICAL, pos);
+            if (dataLen > end - pos - 1 - lengthOfLength) return fail(TRUNCATED, pos);
+            return pos + 1 + lengthOfLength + dataLen;
+        }
+        return fail(MALFORMED, pos);
+    }
+
+    /** Returns the value of a length already checked by {@link #integer}, negative if it exceeds int range. */
+    private static int lengthValue(ByteBuffer bb, int pos, int next) {
+        final int lead = bb.get(pos) & 0xFF;
+        if (lead < 0x80) {
+            return lead;
+        }
+        int val = 0;
+        for (int i = pos + 1; i < next; i++) {
+            val = (val << Byte.SIZE) | (bb.get(i) & 0xFF);
+        }
+        return val;
+    }
+
+    private static int packedLength(int numBooleans) {
+        return (int) ((numBooleans + (Byte.SIZE - 1L)) / Byte.SIZE); // no overflow near Integer.MAX_VALUE
+    }
+}
@@ -0,0 +1,34 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+/**
+ * Big-endian reads of integers up to a word wide. On Java 11 and later, a multi-release JAR substitutes a version which
+ * reads whole words at once through a {@code VarHandle}.
+ */
+final class Words {
+
+    private Words() {}
+
+    /** Returns the {@code len} bytes, zero through eight, at {@code offset} as an unsigned big-endian integer. */
+    static long getLong(byte[] buffer, int offset, int len) {
+        long val = 0L;
+        for (int i = 0; i < len; i++) {
+            val = (val << Byte.SIZE) | (buffer[offset + i] & 0xFFL);
+        }
+        return val;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Big-endian reads of integers up to a word wide, each a single eight-byte load unless the array is shorter than
+ * eight bytes.
+ */
+final class Words {
+
+    private Words() {}
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /** Returns the {@code len} bytes, zero through eight, at {@code offset} as an unsigned big-endian integer. */
+    static long getLong(byte[] buffer, int offset, int len) {
+        if (len > 0) {
+            if (buffer.length - offset >= Long.BYTES) {
+                return (long) LONG.get(buffer, offset) >>> (Long.SIZE - Byte.SIZE * len); // the word starting here
+            }
+            final int end = offset + len;
+            if (end >= Long.BYTES && end <= buffer.length && offset >= 0) {
+                return (long) LONG.get(buffer, end - Long.BYTES) & (-1L >>> (Long.SIZE - Byte.SIZE * len)); // the word ending here
+            }
+        }
+        long val = 0L;
+        for (int i = 0; i < len; i++) {
+            val = (val << Byte.SIZE) | (buffer[offset + i] & 0xFFL);
+        }
+        return val;
+    }
+}
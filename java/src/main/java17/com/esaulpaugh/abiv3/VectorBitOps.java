@@ -0,0 +1,43 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link BitOps} on the incubating Vector API. Loaded reflectively, and only if the JVM resolves
+ * {@code jdk.incubator.vector}.
+ * <p>
+ * Packing and unpacking stay scalar: a {@code boolean[]} can reach a vector only by way of a {@code VectorMask}, and on
+ * Java 17 converting masks to and from bits is not intrinsified, which measured slower than the scalar loops and
+ * allocated on every call.
+ */
+final class VectorBitOps extends BitOps.Scalar {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    @Override
+    int countZeros(byte[] a, int from, int to) {
+        int n = 0;
+        int i = from;
+        for (final int bound = to - SPECIES.length(); i <= bound; i += SPECIES.length()) {
+            n += ByteVector.fromArray(SPECIES, a, i).compare(VectorOperators.EQ, (byte) 0).trueCount();
+        }
+        return n + super.countZeros(a, i, to);
+    }
+}
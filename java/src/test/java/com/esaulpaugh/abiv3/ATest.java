@@ -16,6 +16,40 @@
 package com.esaulpaugh.abiv3;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.Spliterator;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ATest {
 
@@ -25,4 +59,1417 @@ class ATest {
 
         Main.main(new String[0]);
     }
+
+    public static final class Leg {
+        private final BigInteger amount;
+        private final BigInteger recipient;
+
+        public Leg(BigInteger amount, BigInteger recipient) {
+            this.amount = amount;
+            this.recipient = recipient;
+        }
+
+        public BigInteger amount() { return amount; }
+        public BigInteger recipient() { return recipient; }
+    }
+
+    public static final class Order {
+        private final long deadline;
+        private final boolean partial;
+        private final String memo;
+        private final Leg[] legs;
+
+        public Order(long deadline, boolean partial, String memo, Leg[] legs) {
+            this.deadline = deadline;
+            this.partial = partial;
+            this.memo = memo;
+            this.legs = legs;
+        }
+
+        public long deadline() { return deadline; }
+        public boolean partial() { return partial; }
+        public String memo() { return memo; }
+        public Leg[] legs() { return legs; }
+    }
+
+    public static final class Limits {
+        private final long max;
+        private final int count;
+
+        public Limits(long max, int count) {
+            this.max = max;
+            this.count = count;
+        }
+
+        public long max() { return max; }
+        public int count() { return count; }
+    }
+
+    @Test
+    void binding() {
+        final V3Type type = TypeFactory.create("(uint64,bool,string,(uint256,address)[])");
+        final Binding<Order> binding = Binding.of(type, Order.class, "deadline", "partial", "memo", "legs")
+                .withNested(3, Binding.of(type.elementTypes[3].elementType, Leg.class, "amount", "recipient"));
+        final Order order = new Order(1671760117L, true, "gm", new Leg[] {
+                new Leg(new BigInteger("1400000000000000"), new BigInteger("0000b26b00c1f0df003000390027140000faa610", 16)),
+                new Leg(BigInteger.ONE, BigInteger.TEN)
+        });
+        final Object[] values = new Object[] {
+                BigInteger.valueOf(order.deadline), true, "gm", new Object[] {
+                        new Object[] { order.legs[0].amount, order.legs[0].recipient },
+                        new Object[] { BigInteger.ONE, BigInteger.TEN }
+                }
+        };
+        for (boolean external : new boolean[] { false, true }) {
+            final byte[] encoding = V3.encodeFunction(70, binding, order, external);
+            assertArrayEquals(V3.encodeFunction(70, type, values, external), encoding);
+            final Order decoded = V3.decodeFunction(binding, encoding);
+            assertEquals(order.deadline, decoded.deadline);
+            assertEquals(order.partial, decoded.partial);
+            assertEquals(order.memo, decoded.memo);
+            assertEquals(2, decoded.legs.length);
+            assertEquals(order.legs[0].recipient, decoded.legs[0].recipient);
+            assertEquals(order.legs[1].amount, decoded.legs[1].amount);
+        }
+        final Binding<Order> decodeOnly = Binding.of(type, Order.class);
+        assertThrows(IllegalStateException.class, () -> V3.encodeFunction(0, decodeOnly, order, true));
+
+        final V3Type limitsType = TypeFactory.create("(uint64,uint32)");
+        final Binding<Limits> limits = Binding.of(limitsType, Limits.class, "max", "count");
+        final Object[] limitsValues = new Object[] { new BigInteger("ffffffffffffffff", 16), BigInteger.valueOf(0xFFFFFFFFL) };
+        for (boolean external : new boolean[] { false, true }) {
+            final byte[] encoding = V3.encodeFunction(1, limits, new Limits(-1L, -1), external);
+            assertArrayEquals(V3.encodeFunction(1, limitsType, limitsValues, external), encoding);
+            final Limits decoded = V3.decodeFunction(limits, encoding);
+            assertEquals(-1L, decoded.max);
+            assertEquals(-1, decoded.count);
+            assertThrows(DecodeException.class, () -> V3.decodeFunction(limits, Arrays.copyOf(encoding, encoding.length - 1)));
+        }
+        assertThrows(IllegalArgumentException.class, () -> Binding.of(TypeFactory.create("(uint256,uint32)"), Limits.class));
+        assertThrows(IllegalArgumentException.class, () -> Binding.of(TypeFactory.create("(uint64,int40)"), Limits.class));
+    }
+
+    @Test
+    void primitiveArrays() {
+        final Random r = new Random(0x5eed);
+        final String[] types = { "int8[]", "uint8[4]", "int16[]", "uint16[]", "int24[]", "uint32[]", "int40[]", "int64[]", "uint64[]" };
+        for (String typeStr : types) {
+            final V3Type type = TypeFactory.create("(" + typeStr + ",uint8[][])");
+            final V3Type primitiveType = type.asPrimitive();
+            final V3Type et = type.elementTypes[0].elementType;
+            final int len = typeStr.endsWith("[4]") ? 4 : r.nextInt(40);
+            final BigInteger[] bigInts = new BigInteger[len];
+            for (int i = 0; i < len; i++) {
+                final BigInteger val = new BigInteger(et.bitLen, r);
+                bigInts[i] = et.unsigned ? val : val.subtract(BigInteger.ONE.shiftLeft(et.bitLen - 1));
+            }
+            final Object[] values = new Object[] { bigInts, new BigInteger[][] { { BigInteger.valueOf(255L) }, {} } };
+            for (boolean external : new boolean[] { false, true }) {
+                final byte[] encoding = V3.encodeFunction(1, type, values, external);
+                final Object[] decoded = V3.decodeFunction(primitiveType, encoding);
+                assertArrayEquals(encoding, V3.encodeFunction(1, type, decoded, external));
+                assertArrayEquals(values, V3.decodeFunction(type, V3.encodeFunction(1, primitiveType, decoded, external)));
+                final int width = et.unsigned && et.bitLen < 64 ? et.bitLen + 1 : et.bitLen;
+                assertEquals(width <= 8 ? byte[].class
+                        : width <= 16 ? short[].class
+                        : width <= 32 ? int[].class
+                        : long[].class, decoded[0].getClass());
+                assertTrue(decoded[1] instanceof short[][]);
+            }
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> V3.encodeFunction(0, TypeFactory.create("(uint8[])"), new Object[] { new short[] { 256 } }, true));
+        final V3Type int8 = TypeFactory.create("(int8,bytes30)");
+        for (boolean external : new boolean[] { false, true }) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> V3.encodeFunction(0, int8, new Object[] { BigInteger.valueOf(-129L), new byte[30] }, external));
+            final Object[] min = new Object[] { BigInteger.valueOf(-128L), new byte[30] };
+            assertTrue(Arrays.deepEquals(min, V3.decodeFunction(int8, V3.encodeFunction(0, int8, min, external))));
+        }
+        final V3Type wide = TypeFactory.create("(int72[],uint256[])"); // wider than a long, so extended, not repeated
+        final long[] longs = { 5L, -1L, Long.MIN_VALUE, 0L };
+        final BigInteger[] signed = { BigInteger.valueOf(5L), BigInteger.valueOf(-1L), BigInteger.valueOf(Long.MIN_VALUE), BigInteger.ZERO };
+        final BigInteger[] unsigned = { BigInteger.valueOf(5L), new BigInteger("ffffffffffffffff", 16), new BigInteger("8000000000000000", 16), BigInteger.ZERO };
+        for (boolean external : new boolean[] { false, true }) {
+            final byte[] expected = V3.encodeFunction(0, wide, new Object[] { signed, unsigned }, external);
+            assertArrayEquals(expected, V3.encodeFunction(0, wide, new Object[] { longs, longs }, external));
+            final Object[] decoded = V3.decodeFunction(wide, expected);
+            assertArrayEquals(signed, (BigInteger[]) decoded[0]);
+            assertArrayEquals(unsigned, (BigInteger[]) decoded[1]);
+        }
+        final V3Type int16 = TypeFactory.create("(int16)");
+        final Object[] positive = new Object[] { BigInteger.valueOf(128L) };
+        assertArrayEquals(positive, V3.decodeFunction(int16, V3.encodeFunction(0, int16, positive, true)));
+    }
+
+    @Test
+    void bufferPool() {
+        final BufferPool pool = new BufferPool(2, 2);
+        final V3Type type = TypeFactory.create("(uint32[],bool,string)").asPrimitive();
+        final Object[] values = new Object[] { new long[] { 1L, 0xffffffffL, 7L }, true, "pooled" };
+        for (boolean external : new boolean[] { false, true }) {
+            for (int i = 0; i < 3; i++) {
+                final ByteBuffer encoding = V3.encodeFunction(77, type, values, external, pool);
+                assertTrue(encoding.isDirect());
+                final byte[] copy = new byte[encoding.remaining()];
+                encoding.duplicate().get(copy);
+                assertArrayEquals(V3.encodeFunction(77, type, values, external), copy);
+                assertArrayEquals(values, V3.decodeFunction(type, encoding));
+                assertEquals(0, encoding.remaining());
+                pool.release(encoding);
+            }
+        }
+        assertEquals(6, pool.acquireCount());
+        assertEquals(6, pool.releaseCount());
+        assertEquals(5, pool.localHitCount());
+        assertEquals(64, pool.allocatedBytes());
+        assertEquals(0, pool.outstandingBytes());
+
+        final ByteBuffer big = pool.acquire(1000);
+        assertEquals(1024, big.capacity());
+        assertEquals(1000, big.limit());
+        assertEquals(1024, pool.outstandingBytes());
+        pool.release(big);
+        assertThrows(IllegalStateException.class, () -> pool.release(big));
+        final ByteBuffer live = pool.acquire(64);
+        assertThrows(IllegalArgumentException.class, () -> pool.release(live.duplicate()));
+        assertThrows(IllegalArgumentException.class, () -> pool.release(live.slice()));
+        assertThrows(IllegalArgumentException.class, () -> pool.release(ByteBuffer.allocateDirect(64)));
+        assertThrows(IllegalArgumentException.class, () -> pool.release(ByteBuffer.allocate(64)));
+        assertEquals(64, pool.outstandingBytes());
+        pool.release(live);
+        assertThrows(IllegalStateException.class, () -> pool.release(live));
+        assertEquals(0, pool.outstandingBytes());
+        assertNotSame(pool.acquire(64), pool.acquire(64));
+
+        final BufferPool many = new BufferPool(1, 1);
+        final List<ByteBuffer> loans = new ArrayList<>();
+        for (int i = 0; i < 500; i++) { // grows the registry several times over
+            loans.add(many.acquire(64 << (i % 3)));
+        }
+        for (ByteBuffer loan : loans) {
+            many.release(loan);
+        }
+        assertEquals(0, many.outstandingBytes());
+        assertThrows(IllegalStateException.class, () -> many.release(loans.get(250)));
+        final V3Type int8 = TypeFactory.create("(int8)"); // measured without a range check, so fails only when written
+        assertThrows(IllegalArgumentException.class, () -> V3.encodeFunction(0, int8, new Object[] { BigInteger.valueOf(-129L) }, false, many));
+        assertEquals(0, many.outstandingBytes());
+        assertThrows(IllegalArgumentException.class,
+                () -> V3.decodeFunction(type, ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)));
+    }
+
+    static final String ABI_JSON = "[" +
+            "{\"type\":\"constructor\",\"inputs\":[{\"name\":\"owner\",\"type\":\"address\"}]}," +
+            "{\"type\":\"function\",\"name\":\"transfer\",\"inputs\":[{\"name\":\"to\",\"type\":\"address\"},{\"name\":\"amount\",\"type\":\"uint256\"}],\"outputs\":[{\"type\":\"bool\"}]}," +
+            "{\"type\":\"event\",\"name\":\"Transfer\",\"inputs\":[{\"indexed\":true,\"type\":\"address\"}],\"anonymous\":false}," +
+            "{\"name\":\"swap\",\"stateMutability\":\"payable\",\"inputs\":[" +
+                "{\"type\":\"tuple[]\",\"components\":[{\"type\":\"uint256\"},{\"type\":\"tuple\",\"components\":[{\"type\":\"bytes32[2]\"},{\"type\":\"string\"}]}]}," +
+                "{\"type\":\"tuple\",\"components\":[]}," +
+                "{\"type\":\"fixed128x18\",\"name\":\"p\\u00e9\"}]}," +
+            "{\"type\":\"function\",\"name\":\"ping\",\"inputs\":[]}" +
+            "]";
+
+    @Test
+    void abiLoader(@TempDir Path dir) throws IOException {
+        final FunctionTable table = AbiLoader.load(new StringReader(ABI_JSON));
+        assertEquals(3, table.size());
+        assertEquals("transfer(address,uint256)", table.signature(0));
+        assertEquals("swap((uint256,(bytes32[2],string))[],(),fixed128x18)", table.signature(1));
+        assertEquals("ping()", table.signature(2));
+        assertEquals(1, table.functionNumber("swap((uint256,(bytes32[2],string))[],(),fixed128x18)"));
+        assertEquals(-1, table.functionNumber("swap()"));
+
+        final V3Type swap = table.type(1);
+        final Object[] args = new Object[] {
+                new Object[] { new Object[] { BigInteger.ONE, new Object[] { new byte[][] { new byte[32], new byte[32] }, "x" } } },
+                new Object[0],
+                BigInteger.TEN
+        };
+        assertArrayEquals(V3.encodeFunction(1, TypeFactory.create(swap.canonicalType), args, true), V3.encodeFunction(1, swap, args, true));
+
+        final List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            paths.add(Files.write(dir.resolve(i + ".json"), ABI_JSON.getBytes(StandardCharsets.UTF_8)));
+        }
+        for (FunctionTable t : AbiLoader.loadAll(paths)) {
+            assertEquals(table.signature(1), t.signature(1));
+        }
+        assertThrows(IllegalArgumentException.class, () -> AbiLoader.load(new StringReader("[{\"type\":\"function\",\"inputs\":[{}]}")));
+        assertThrows(IllegalArgumentException.class, () -> AbiLoader.load(new StringReader("[{\"name\":\"x\"} 5")));
+        for (String bad : new String[] { "tuplegarbage", "tuple[", "tuple[2]x", "tuple[-1]" }) {
+            final String abi = "[{\"name\":\"f\",\"inputs\":[{\"type\":\"" + bad + "\",\"components\":[]}]}]";
+            assertThrows(IllegalArgumentException.class, () -> AbiLoader.load(new StringReader(abi)));
+        }
+        assertEquals("f((bool)[][3])", AbiLoader.load(new StringReader(
+                "[{\"components\":null,\"inputs\":[{\"components\":[{\"type\":\"bool\"}],\"type\":\"tuple[][3]\"}],\"name\":\"f\"}]")).signature(0));
+        final StringBuilder skipped = new StringBuilder("[{\"outputs\":[");
+        for (int i = 0; i < 5_000; i++) { // spans many reads of the parser's buffer
+            skipped.append(i == 0 ? "" : ",").append("{\"n\":-1.5e3,\"s\":\"\\u00e9\\\"x\",\"a\":[true,false,null,{}]}");
+        }
+        skipped.append("],\"name\":\"g\",\"inputs\":null}]");
+        assertEquals("g()", AbiLoader.load(new StringReader(skipped.toString())).signature(0));
+    }
+
+    @Test
+    void schemaSnapshot(@TempDir Path dir) throws IOException {
+        final FunctionTable abi = AbiLoader.load(new StringReader(ABI_JSON));
+        final V3Type shared = TypeFactory.create("(uint8[][],(bool,string)[2])");
+        final FunctionTable other = new FunctionTable(
+                new String[] { "a", "b", "c" },
+                new V3Type[] { shared, shared.asPrimitive(), TypeFactory.create("(uint8[][],(bool,string)[2])") }
+        );
+        final Path file = dir.resolve("schema.bin");
+        SchemaSnapshot.write(Arrays.asList(abi, other), file);
+
+        final SchemaSnapshot snapshot = SchemaSnapshot.open(file);
+        assertEquals(2, snapshot.tableCount());
+        final FunctionTable abi2 = snapshot.table(0);
+        for (int i = 0; i < abi.size(); i++) {
+            assertEquals(abi.signature(i), abi2.signature(i));
+        }
+        final FunctionTable other2 = snapshot.table(1);
+        assertSame(other2, snapshot.table(1));
+        assertSame(other2.type(0), other2.type(2));
+        assertSame(other2.type(0).elementTypes[1], other2.type(1).elementTypes[1]);
+        assertEquals(0, other2.type(0).elementTypes[0].elementType.primitiveBits);
+        assertEquals(16, other2.type(1).elementTypes[0].elementType.primitiveBits);
+
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file, bytes);
+        assertThrows(IllegalArgumentException.class, () -> SchemaSnapshot.open(file));
+    }
+
+    @Test
+    void incrementalDecoder() {
+        final Random r = new Random(0xc0ffee);
+        final V3Type type = TypeFactory.create("(address,(string,bool[],int24)[],bytes,uint16[2][],bool[3],())");
+        final char[] chars = new char[300];
+        Arrays.fill(chars, 'x');
+        final Object[] values = new Object[] {
+                new BigInteger("e102030405060708090a0b0c0d0e0f0f0f0f0f0d", 16),
+                new Object[] {
+                        new Object[] { new String(chars), new boolean[] { true, false, true, true, false, false, true, false, true }, BigInteger.valueOf(-70000L) },
+                        new Object[] { "", new boolean[0], BigInteger.ONE }
+                },
+                new byte[] { 0, -1, 2 },
+                new BigInteger[][] { { BigInteger.ONE, BigInteger.valueOf(65535L) }, { BigInteger.ZERO, BigInteger.TEN } },
+                new boolean[] { false, true, true },
+                new Object[0]
+        };
+        for (V3Type t : new V3Type[] { type, type.asPrimitive() }) {
+            final IncrementalDecoder decoder = new IncrementalDecoder(t);
+            for (int fn : new int[] { 5, 70_000 }) {
+                for (boolean external : new boolean[] { false, true }) {
+                    final byte[] encoding = V3.encodeFunction(fn, t, values, external);
+                    final byte[] stream = Arrays.copyOf(encoding, encoding.length + 3); // followed by the next message
+                    final Object[] expected = V3.decodeFunction(t, encoding);
+                    for (int trial = 0; trial < 20; trial++) {
+                        decoder.reset();
+                        int pos = 0;
+                        int need = -1;
+                        while (need != 0) {
+                            final int n = Math.min(trial == 0 ? 1 : r.nextInt(12), stream.length - pos);
+                            final ByteBuffer chunk = ByteBuffer.wrap(stream, pos, n);
+                            need = decoder.feed(chunk);
+                            assertTrue(need >= 0);
+                            pos = chunk.position();
+                        }
+                        assertEquals(encoding.length, pos);
+                        assertEquals(external, decoder.isExternal());
+                        assertTrue(Arrays.deepEquals(expected, decoder.result()));
+                    }
+                }
+            }
+        }
+        final IncrementalDecoder decoder = new IncrementalDecoder(TypeFactory.create("(uint64)"));
+        assertEquals(1, decoder.feed(ByteBuffer.allocate(0)));
+        assertEquals(4, decoder.feed(ByteBuffer.wrap(new byte[] { 0 })));
+        assertEquals(8, decoder.feed(ByteBuffer.wrap(new byte[4])));
+        assertEquals(0, decoder.feed(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0, 0, 0, 0, 9 })));
+        assertArrayEquals(new Object[] { BigInteger.valueOf(9L) }, decoder.result());
+    }
+
+    @Test
+    void validator() {
+        final V3Type type = TypeFactory.create("(uint16,bool,string,uint8[],bool[3])");
+        final byte[] valid = new byte[] { 0x41, 0x05, 0x01, 0x61, 0x01, 0x01, 0x05 };
+        assertArrayEquals(valid, V3.encodeFunction(1, type,
+                new Object[] { BigInteger.valueOf(5L), true, "a", new BigInteger[] { BigInteger.ONE }, new boolean[] { true, false, true } }, true));
+        assertEquals(Validator.VALID, Validator.validate(type, valid));
+        for (int i = 0; i < valid.length; i++) {
+            assertEquals(Validator.TRUNCATED, Validator.validate(type, Arrays.copyOf(valid, i)));
+        }
+        assertEquals(Validator.BAD_VERSION, Validator.validate(type, new byte[] { (byte) 0x81, 0x05, 0x01, 0x61, 0x01, 0x01, 0x05 }));
+        assertEquals(Validator.NON_CANONICAL, Validator.validate(type, new byte[] { 0x41, (byte) 0x81, 0x05, 0x01, 0x61, 0x01, 0x01, 0x05 }));
+        assertEquals(Validator.NON_CANONICAL, Validator.validate(type, new byte[] { 0x41, 0x00, 0x01, 0x61, 0x01, 0x01, 0x05 }));
+        assertEquals(Validator.NON_CANONICAL, Validator.validate(type, new byte[] { 0x41, (byte) 0x82, 0x00, 0x05, 0x01, 0x61, 0x01, 0x01, 0x05 }));
+        assertEquals(Validator.NON_CANONICAL, Validator.validate(type, new byte[] { 0x41, 0x05, 0x01, 0x61, 0x01, 0x01, 0x0d }));
+        assertEquals(Validator.MALFORMED, Validator.validate(type, new byte[] { 0x41, (byte) 0x83, 0x01, 0x02, 0x03, 0x01, 0x61, 0x01, 0x01, 0x05 }));
+        assertEquals(Validator.MALFORMED, Validator.validate(type, new byte[] { 0x41, 0x05, 0x01, (byte) 0xc0, 0x01, 0x01, 0x05 }));
+        assertEquals(Validator.BAD_BOOLEAN, Validator.validate(type, new byte[] { 0x41, 0x05, 0x02, 0x61, 0x01, 0x01, 0x05 }));
+        assertEquals(Validator.TRAILING_BYTES, Validator.validate(type, Arrays.copyOf(valid, valid.length + 1)));
+        assertEquals(Validator.TRUNCATED, Validator.validate(type, new byte[] { 0x41, 0x05, 0x01, 0x61, (byte) 0x84, 0x7f, -1, -1, -1, 0x01, 0x05 }));
+        final byte[] hugeZeroWidth = new byte[] { 0x40, (byte) 0x84, 0x7f, -1, -1, -1 };
+        for (String zeroWidth : new String[] { "(()[])", "(uint8[0][])" }) {
+            final V3Type t = TypeFactory.create(zeroWidth);
+            assertEquals(Validator.ARRAY_TOO_LONG, Validator.validate(t, hugeZeroWidth));
+            assertEquals(Validator.ARRAY_TOO_LONG, assertThrows(DecodeException.class, () -> V3.decodeFunction(t, hugeZeroWidth)).code());
+            final byte[] most = new byte[] { 0x40, (byte) 0x83, 0x01, 0x00, 0x00 }; // exactly MAX_ZERO_WIDTH_LENGTH
+            assertEquals(Validator.VALID, Validator.validate(t, most));
+            assertEquals(Validator.MAX_ZERO_WIDTH_LENGTH, ((Object[]) V3.decodeFunction(t, most)[0]).length);
+        }
+
+        final V3Type bools = TypeFactory.create("(bool,bool,bool)");
+        final byte[] padded = V3.encodeFunction(2, bools, new Object[] { true, false, true }, true);
+        assertArrayEquals(new byte[] { 0x42, 0x01, 0x00, 0x01, 0x00 }, padded);
+        assertEquals(Validator.VALID, Validator.validate(bools, padded));
+        final byte[] unpadded = Arrays.copyOf(padded, 4);
+        assertEquals(Validator.LENGTH_4_MOD_32, Validator.validate(bools, unpadded));
+        assertThrows(IllegalArgumentException.class, () -> V3.decodeFunction(bools, unpadded));
+        padded[4] = 0x01;
+        assertEquals(Validator.TRAILING_BYTES, Validator.validate(bools, padded));
+
+        final Random r = new Random(0xabcL);
+        for (int i = 0; i < 100; i++) {
+            final V3Type t = TypeFactory.create("(uint8[],string,bytes,int64)");
+            final BigInteger[] uint8s = new BigInteger[r.nextInt(40)];
+            Arrays.fill(uint8s, BigInteger.valueOf(r.nextInt(256)));
+            final byte[] bytes = new byte[r.nextInt(70)];
+            r.nextBytes(bytes);
+            final Object[] values = new Object[] { uint8s, new String(new char[r.nextInt(70)]).replace('\0', 'z'), bytes, BigInteger.valueOf(r.nextLong()) };
+            for (boolean external : new boolean[] { false, true }) {
+                final byte[] encoding = V3.encodeFunction(r.nextInt(100), t, values, external);
+                assertTrue(encoding.length % 32 != 4);
+                assertEquals(Validator.VALID, Validator.validate(t, encoding));
+                assertTrue(Validator.validate(t, Arrays.copyOf(encoding, encoding.length - 1)) != Validator.VALID);
+            }
+        }
+    }
+
+    @Test
+    void tryDecode() {
+        final V3Type type = TypeFactory.create("(uint16,bool,string,uint8[],bool[3])");
+        final byte[] valid = new byte[] { 0x41, 0x05, 0x01, 0x61, 0x01, 0x01, 0x05 };
+        final DecodeResult ok = V3.tryDecodeFunction(type, valid);
+        assertTrue(ok.isSuccess());
+        assertTrue(Arrays.deepEquals(V3.decodeFunction(type, valid), ok.values()));
+
+        final byte[] badString = new byte[] { 0x41, 0x05, 0x01, (byte) 0xc0, 0x01, 0x01, 0x05 };
+        final DecodeResult bad = V3.tryDecodeFunction(type, badString);
+        assertEquals(Validator.MALFORMED, bad.code());
+        assertEquals(3, bad.offset());
+        assertEquals("malformed @ 3", bad.toString());
+        assertEquals(null, bad.values());
+        final DecodeException de = assertThrows(DecodeException.class, () -> V3.decodeFunction(type, badString));
+        assertEquals(Validator.MALFORMED, de.code());
+        assertEquals(3, de.offset());
+        assertEquals(0, de.getStackTrace().length);
+
+        final DecodeResult truncated = V3.tryDecodeFunction(type, Arrays.copyOf(valid, 5));
+        assertEquals(Validator.TRUNCATED, truncated.code());
+        assertEquals(5, truncated.offset());
+        assertEquals(Validator.BAD_VERSION, V3.tryDecodeFunction(type, new byte[] { (byte) 0xc1 }).code());
+        assertEquals(Validator.TRUNCATED, V3.tryDecodeFunction(type, new byte[0]).code());
+        final DecodeResult noFunctionNumber = V3.tryDecodeFunction(type, new byte[] { 0x7f }); // the number continues past the end
+        assertEquals(Validator.TRUNCATED, noFunctionNumber.code());
+        assertEquals(1, noFunctionNumber.offset());
+        assertEquals(Validator.TRUNCATED, assertThrows(DecodeException.class, () -> CallReader.of(type, ByteBuffer.allocate(0))).code());
+        assertEquals(Validator.TRAILING_BYTES, V3.tryDecodeFunction(type, Arrays.copyOf(valid, 8)).code());
+        assertEquals(Validator.TRAILING_BYTES, assertThrows(DecodeException.class, () -> V3.decodeFunction(type, Arrays.copyOf(valid, 8))).code());
+
+        final ByteBuffer bb = ByteBuffer.wrap(Arrays.copyOf(badString, 10), 0, badString.length);
+        assertEquals(Validator.MALFORMED, V3.tryDecodeFunction(type, bb).code());
+        assertEquals(0, bb.position());
+        bb.put(3, (byte) 0x61);
+        assertTrue(V3.tryDecodeFunction(type, bb).isSuccess());
+        assertEquals(badString.length, bb.position());
+
+        final byte[] hugeZeroWidth = new byte[] { 0x40, (byte) 0x84, 0x7f, -1, -1, -1 }; // 2^31 - 1 elements of no bytes each
+        for (String zeroWidth : new String[] { "(()[])", "(uint8[0][])" }) {
+            final DecodeResult huge = V3.tryDecodeFunction(TypeFactory.create(zeroWidth), hugeZeroWidth);
+            assertEquals(Validator.ARRAY_TOO_LONG, huge.code());
+            assertEquals(1, huge.offset());
+        }
+    }
+
+    @Test
+    void decodeBudget() {
+        final byte[] hugeLength = new byte[] { 0, 0, 0, 0, 1, (byte) 0x84, 0x7f, -1, -1, -1, 0 };
+        final V3Type[] hugeLengthTypes = {
+                TypeFactory.create("(uint8[])"), // BigInteger[]
+                TypeFactory.create("(bool[])"),
+                TypeFactory.create("(string[])"),
+                TypeFactory.create("((bool,bool)[])"),
+                TypeFactory.create("(uint8[])").asPrimitive(), // short[]
+                TypeFactory.create("(()[])"), // zero-width elements, which no input length can bound
+                TypeFactory.create("(uint8[0][])")
+        };
+        for (V3Type t : hugeLengthTypes) {
+            final int expected = t.elementTypes[0].elementType.minLength(false) == 0 ? Validator.ARRAY_TOO_LONG : Validator.TRUNCATED;
+            final DecodeException e = assertThrows(DecodeException.class, () -> V3.decodeFunction(t, hugeLength));
+            assertEquals(expected, e.code());
+            assertEquals(Validator.describe(expected) + " @ " + e.offset(), e.getMessage());
+        }
+        final V3Type empties = TypeFactory.create("(()[])");
+        final Object[] most = new Object[Validator.MAX_ZERO_WIDTH_LENGTH];
+        Arrays.fill(most, new Object[0]);
+        assertEquals(most.length, ((Object[]) V3.decodeFunction(empties, V3.encodeFunction(0, empties, new Object[] { most }, true))[0]).length);
+        final Object[] tooMany = Arrays.copyOf(most, most.length + 1);
+        tooMany[most.length] = new Object[0];
+        assertEquals(Validator.ARRAY_TOO_LONG, assertThrows(DecodeException.class,
+                () -> V3.decodeFunction(empties, V3.encodeFunction(0, empties, new Object[] { tooMany }, true))).code());
+
+        final V3Type nested = TypeFactory.create("((((uint8))))");
+        final byte[] nestedEncoding = V3.encodeFunction(0, nested, new Object[] { new Object[] { new Object[] { new Object[] { BigInteger.ONE } } } }, true);
+        assertEquals(Validator.TOO_DEEP,
+                assertThrows(DecodeException.class, () -> V3.decodeFunction(nested, nestedEncoding, new DecodeBudget(3, 10, 10, 10))).code());
+        V3.decodeFunction(nested, nestedEncoding, new DecodeBudget(4, 10, 10, 10));
+
+        final V3Type arrays = TypeFactory.create("(uint8[][],bytes)");
+        final BigInteger[] three = new BigInteger[] { BigInteger.ONE, BigInteger.TEN, BigInteger.ZERO };
+        final byte[] encoding = V3.encodeFunction(0, arrays, new Object[] { new BigInteger[][] { three, three }, new byte[40] }, false);
+        V3.decodeFunction(arrays, encoding, new DecodeBudget(3, 3, 8, 2 * 8 + 6 * 8 + 40));
+        assertEquals(Validator.ARRAY_TOO_LONG,
+                assertThrows(DecodeException.class, () -> V3.decodeFunction(arrays, encoding, new DecodeBudget(3, 2, 8, 1000))).code());
+        assertEquals(Validator.TOO_MANY_ELEMENTS,
+                assertThrows(DecodeException.class, () -> V3.decodeFunction(arrays, encoding, new DecodeBudget(3, 3, 7, 1000))).code());
+        final DecodeResult tooManyBytes = V3.tryDecodeFunction(arrays, encoding, new DecodeBudget(3, 3, 8, 2 * 8 + 6 * 8 + 39));
+        assertEquals(Validator.TOO_MANY_BYTES, tooManyBytes.code());
+        assertEquals(1 + Integer.BYTES + 1 + 2 * 4, tooManyBytes.offset());
+
+        final IncrementalDecoder decoder = new IncrementalDecoder(TypeFactory.create("(uint8[])"), new DecodeBudget(2, 1000, 1000, 1000));
+        assertEquals(Validator.ARRAY_TOO_LONG, assertThrows(DecodeException.class, () -> decoder.feed(ByteBuffer.wrap(hugeLength))).code());
+    }
+
+    @Test
+    void scanner() {
+        final V3Type type = TypeFactory.create("(uint256,bytes,address,bool,string)");
+        final BigInteger x = new BigInteger("e102030405060708090a0b0c0d0e0f0f0f0f0f0d", 16);
+        final BigInteger y = x.add(BigInteger.ONE);
+        final Scanner scanner = Scanner.of(type).function(70).whereEquals(2, x);
+        final Scanner trueOnly = scanner.where(3, (bb, offset, length, external) -> bb.get(offset) == 1);
+        for (boolean external : new boolean[] { false, true }) {
+            for (int fn : new int[] { 7, 70 }) {
+                for (BigInteger addr : new BigInteger[] { x, y }) {
+                    for (boolean flag : new boolean[] { false, true }) {
+                        final Object[] values = new Object[] { BigInteger.TEN, new byte[fn], addr, flag, "s" };
+                        final byte[] encoding = V3.encodeFunction(fn, type, values, external);
+                        final boolean expected = fn == 70 && addr.equals(x);
+                        assertEquals(expected, scanner.matches(encoding));
+                        assertEquals(expected && flag, trueOnly.matches(encoding));
+                        final Object[] decoded = trueOnly.decodeIfMatches(encoding);
+                        assertTrue(expected && flag ? Arrays.deepEquals(values, decoded) : decoded == null);
+                        if (expected) {
+                            encoding[encoding.length - 2] ^= (byte) 0xff; // corrupt the unconstrained string
+                            assertTrue(scanner.matches(encoding));
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(Scanner.of(type).matches(V3.encodeFunction(1, type, new Object[] { BigInteger.ONE, new byte[0], y, true, "" }, true)));
+        assertTrue(!scanner.matches(new byte[] { 0x7f, (byte) 0x81 }));
+    }
+
+    @Test
+    void columnarBatch() {
+        final V3Type type = TypeFactory.create("(uint64,int32,bool,bytes,string,bytes3,address,uint8[])");
+        final Random r = new Random(38L);
+        final List<Object[]> rows = new ArrayList<>();
+        final List<byte[]> encodings = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            final byte[] data = new byte[r.nextInt(i % 7 == 0 ? 100 : 3)];
+            r.nextBytes(data);
+            final byte[] three = new byte[3];
+            r.nextBytes(three);
+            final Object[] row = new Object[] { new BigInteger(64, r), BigInteger.valueOf(r.nextInt()), r.nextBoolean(), data,
+                    "row " + i + (i % 5 == 0 ? "\u00e9" : ""), three, new BigInteger(160, r), new BigInteger[] { BigInteger.valueOf(i % 256) } };
+            rows.add(row);
+            encodings.add(V3.encodeFunction(i, type, row, i % 2 == 0));
+        }
+        final ColumnarBatch batch = ColumnarBatch.decode(type, encodings);
+        assertEquals(rows.size(), batch.size());
+        assertEquals(ColumnarBatch.LONGS, batch.kind(0));
+        assertEquals(ColumnarBatch.BOOLEANS, batch.kind(2));
+        assertEquals(ColumnarBatch.BYTES, batch.kind(5));
+        assertEquals(ColumnarBatch.OBJECTS, batch.kind(6));
+        for (int i = 0; i < rows.size(); i++) {
+            final Object[] row = rows.get(i);
+            assertEquals(((BigInteger) row[0]).longValue(), batch.longs(0)[i]);
+            assertEquals(((BigInteger) row[1]).longValue(), batch.longs(1)[i]);
+            assertEquals(row[2], batch.booleans(2).get(i));
+            final int[] offsets = batch.offsets(3);
+            assertArrayEquals((byte[]) row[3], Arrays.copyOfRange(batch.bytes(3), offsets[i], offsets[i + 1]));
+            assertEquals(row[4], batch.string(4, i));
+            assertArrayEquals((byte[]) row[5], Arrays.copyOfRange(batch.bytes(5), 3 * i, 3 * i + 3));
+            assertEquals(row[6], batch.objects(6)[i]);
+            assertArrayEquals((Object[]) row[7], (Object[]) batch.objects(7)[i]);
+        }
+        assertThrows(IllegalArgumentException.class, () -> batch.longs(2));
+        final List<byte[]> truncated = new ArrayList<>(encodings);
+        truncated.set(9, Arrays.copyOf(encodings.get(9), encodings.get(9).length - 3));
+        assertThrows(DecodeException.class, () -> ColumnarBatch.decode(type, truncated));
+
+        final V3Type pair = TypeFactory.create("(uint64,bool)");
+        for (boolean external : new boolean[] { false, true }) {
+            final byte[] good = V3.encodeFunction(2, pair, new Object[] { new BigInteger("ffffffffffffffff", 16), true }, external);
+            assertEquals(-1L, ColumnarBatch.decode(pair, Collections.singletonList(good)).longs(0)[0]);
+            final byte[] badBool = good.clone();
+            badBool[badBool.length - 1] = 0x02;
+            assertEquals(Validator.BAD_BOOLEAN, assertThrows(DecodeException.class, () -> ColumnarBatch.decode(pair, Collections.singletonList(badBool))).code());
+            final List<byte[]> cutInt = Collections.singletonList(Arrays.copyOf(good, good.length - 5));
+            assertEquals(Validator.TRUNCATED, assertThrows(DecodeException.class, () -> ColumnarBatch.decode(pair, cutInt)).code());
+            final List<byte[]> cutBool = Collections.singletonList(Arrays.copyOf(good, good.length - 1));
+            assertEquals(Validator.TRUNCATED, assertThrows(DecodeException.class, () -> ColumnarBatch.decode(pair, cutBool)).code());
+        }
+    }
+
+    @Test
+    void corpus(@TempDir Path dir) throws IOException {
+        final V3Type type = TypeFactory.create("(uint32,string,bytes)");
+        final List<Object[]> rows = new ArrayList<>();
+        final List<byte[]> encodings = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            final Object[] row = new Object[] { BigInteger.valueOf(i), "record " + i, new byte[i * 3] };
+            rows.add(row);
+            encodings.add(V3.encodeFunction(i, type, row, i % 3 == 0));
+        }
+        final Path path = dir.resolve("calls.v3c");
+        try (Corpus.Writer w = Corpus.create(path, 4)) {
+            w.writeAll(encodings.subList(0, 10));
+            w.write(ByteBuffer.wrap(encodings.get(10)));
+        }
+        try (Corpus.Writer w = Corpus.append(path)) {
+            assertEquals(11, w.recordCount());
+            w.writeAll(encodings.subList(11, 30));
+        }
+        try (Corpus c = Corpus.open(path, 100)) { // small regions, so that records straddle them
+            assertEquals(30, c.recordCount());
+            int i = 0;
+            for (ByteBuffer record : c) {
+                assertTrue(Arrays.deepEquals(rows.get(i++), V3.decodeFunction(type, record)));
+            }
+            assertEquals(30, i);
+            for (int from : new int[] { 0, 3, 4, 9, 29, 30, 31 }) {
+                final Iterator<ByteBuffer> it = c.iterator(from);
+                for (i = from; it.hasNext(); i++) {
+                    assertTrue(Arrays.deepEquals(rows.get(i), V3.decodeFunction(type, it.next())));
+                }
+                assertEquals(Math.max(from, 30), i);
+            }
+        }
+
+        final Corpus.Writer unclosed = Corpus.append(path); // never closed, as if the process died
+        unclosed.writeAll(encodings.subList(30, 40));
+        unclosed.flush();
+        try (Corpus c = Corpus.open(path)) {
+            assertEquals(-1, c.recordCount());
+            int i = 0;
+            for (ByteBuffer record : c) {
+                assertTrue(Arrays.deepEquals(rows.get(i++), V3.decodeFunction(type, record)));
+            }
+            assertEquals(40, i);
+        }
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            fc.truncate(fc.size() - 1); // a partial last record, as if the process died mid-write
+        }
+        try (Corpus c = Corpus.open(path)) { // readers stop at the last whole record
+            int i = 0;
+            for (ByteBuffer record : c) {
+                assertTrue(Arrays.deepEquals(rows.get(i++), V3.decodeFunction(type, record)));
+            }
+            assertEquals(39, i);
+            assertEquals(39, c.stream(true).count());
+        }
+        try (Corpus.Writer w = Corpus.append(path)) {
+            assertEquals(39, w.recordCount());
+        }
+        try (Corpus c = Corpus.open(path)) {
+            assertEquals(39, c.recordCount());
+            assertTrue(Arrays.deepEquals(rows.get(38), V3.decodeFunction(type, c.iterator(38).next())));
+        }
+    }
+
+    @Test
+    void recordStreams(@TempDir Path dir) throws IOException {
+        final V3Type type = TypeFactory.create("(uint32,bytes)");
+        final List<byte[]> encodings = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            encodings.add(V3.encodeFunction(i % 9, type, new Object[] { BigInteger.valueOf(i), new byte[i % 50] }, i % 2 == 0));
+        }
+        final ByteBuffer framed = ByteBuffer.allocate(Integer.BYTES * 1_001 + encodings.stream().mapToInt(e -> e.length).sum());
+        framed.putInt(0xbadc0de); // the buffer's position need not be 0
+        for (byte[] e : encodings) {
+            framed.putInt(e.length).put(e);
+        }
+        framed.flip().position(Integer.BYTES);
+        final List<Long> expected = new ArrayList<>();
+        for (long i = 0; i < 1_000; i++) {
+            expected.add(i);
+        }
+        for (int interval : new int[] { 0, 7 }) {
+            final Path path = dir.resolve("calls" + interval);
+            try (Corpus.Writer w = Corpus.create(path, interval)) {
+                w.writeAll(encodings);
+            }
+            try (Corpus c = Corpus.open(path)) {
+                final List<Long> decoded = c.stream(true)
+                        .map(record -> ((BigInteger) V3.decodeFunction(type, record)[0]).longValue())
+                        .collect(Collectors.toList());
+                assertEquals(expected, decoded);
+                assertSplitsExactly(c.spliterator(), 1_000);
+            }
+        }
+        assertEquals(expected, Corpus.stream(framed, true)
+                .map(record -> ((BigInteger) V3.decodeFunction(type, record)[0]).longValue())
+                .collect(Collectors.toList()));
+        assertSplitsExactly(Corpus.stream(framed, false).spliterator(), 1_000);
+        assertEquals(0, Corpus.stream(ByteBuffer.allocate(0), true).count());
+        framed.limit(framed.limit() - 1);
+        assertThrows(IllegalArgumentException.class, () -> Corpus.stream(framed, true).count());
+    }
+
+    private static void assertSplitsExactly(Spliterator<ByteBuffer> s, long size) {
+        assertEquals(size, s.estimateSize());
+        final Spliterator<ByteBuffer> prefix = s.trySplit();
+        if (prefix == null) {
+            final long[] n = new long[1];
+            s.forEachRemaining(record -> n[0]++);
+            assertEquals(size, n[0]);
+            return;
+        }
+        final long prefixSize = prefix.estimateSize();
+        assertSplitsExactly(prefix, prefixSize);
+        assertSplitsExactly(s, size - prefixSize);
+    }
+
+    @Test
+    void multiReleaseParity() throws Exception {
+        final Path classes = Paths.get(Words.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        final List<URL> path = new ArrayList<>();
+        path.add(classes.toUri().toURL());
+        final V3Type type = TypeFactory.create("(uint64,string)");
+        final List<byte[]> calls = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            calls.add(V3.encodeFunction(i, type, new Object[] { BigInteger.valueOf(i), "call " + i }, i % 2 == 0));
+        }
+        final List<String> expected = Batch.decodeEach(type, calls, Arrays::deepToString);
+        assertEquals("[99, call 99]", expected.get(99));
+        final String spec = System.getProperty("java.specification.version");
+        final int feature = spec.startsWith("1.") ? 8 : Integer.parseInt(spec);
+        final Random r = new Random(41L);
+        int versions = 0;
+        for (int version = 9; version <= feature; version++) { // as a multi-release JAR would, newest first
+            final Path dir = classes.resolve("META-INF/versions/" + version);
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            versions++;
+            path.add(0, dir.toUri().toURL());
+            try (URLClassLoader loader = new URLClassLoader(path.toArray(new URL[0]), null)) {
+                final Method getLong = loader.loadClass(Words.class.getName()).getDeclaredMethod("getLong", byte[].class, int.class, int.class);
+                getLong.setAccessible(true);
+                for (int length = 0; length <= 20; length++) {
+                    final byte[] buffer = new byte[length];
+                    r.nextBytes(buffer);
+                    for (int offset = 0; offset < length; offset++) {
+                        for (int len = 0; len <= Math.min(Long.BYTES, length - offset); len++) {
+                            assertEquals(Words.getLong(buffer, offset, len), (long) getLong.invoke(null, buffer, offset, len));
+                        }
+                    }
+                }
+                final Object bitOps = invoke(loader.loadClass(BitOps.class.getName()), "get");
+                if (version == 17 && vectorApiResolved()) {
+                    assertEquals("VectorBitOps", bitOps.getClass().getSimpleName());
+                }
+                final BitOps scalar = new BitOps.Scalar();
+                for (int len = 0; len < 300; len++) {
+                    final boolean[] booleans = new boolean[len];
+                    for (int i = 0; i < len; i++) {
+                        booleans[i] = r.nextBoolean();
+                    }
+                    final byte[] packed = new byte[BitOps.packedLength(len) + 1];
+                    scalar.pack(booleans, packed, 1);
+                    final byte[] versionedPacked = new byte[packed.length];
+                    invoke(bitOps, "pack", booleans, versionedPacked, 1);
+                    assertArrayEquals(packed, versionedPacked);
+                    final boolean[] unpacked = new boolean[len];
+                    invoke(bitOps, "unpack", packed, 1, unpacked);
+                    assertArrayEquals(booleans, unpacked);
+                    packed[r.nextInt(packed.length)] = 0;
+                    assertEquals(scalar.countZeros(packed, 0, packed.length), invoke(bitOps, "countZeros", packed, 0, packed.length));
+                }
+                final Object versionedType = loader.loadClass(TypeFactory.class.getName()).getMethod("create", String.class).invoke(null, "(uint64,string)");
+                final Function<Object[], String> handler = Arrays::deepToString;
+                assertEquals(expected, loader.loadClass(Batch.class.getName())
+                        .getMethod("decodeEach", versionedType.getClass(), List.class, Function.class)
+                        .invoke(null, versionedType, calls, handler));
+            }
+        }
+        assertTrue(versions > 0 || feature < 11);
+    }
+
+    /** Invokes a method declared by the class, or by the object's class or its superclass, by name. */
+    private static Object invoke(Object target, String name, Object... args) throws ReflectiveOperationException {
+        final Class<?> c = target instanceof Class ? (Class<?>) target : target.getClass();
+        for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+            for (Method m : k.getDeclaredMethods()) {
+                if (m.getName().equals(name) && m.getParameterCount() == args.length) {
+                    m.setAccessible(true);
+                    return m.invoke(target instanceof Class ? null : target, args);
+                }
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    private static boolean vectorApiResolved() {
+        try {
+            Class.forName("jdk.incubator.vector.ByteVector");
+            return true;
+        } catch (ClassNotFoundException cnfe) {
+            return false;
+        }
+    }
+
+    @Test
+    void booleanArrays() {
+        final V3Type type = TypeFactory.create("(bool[],bool[3])");
+        final V3Type single = TypeFactory.create("(bool[])");
+        final Random r = new Random(42L);
+        for (int len = 0; len < 200; len++) {
+            final boolean[] booleans = new boolean[len];
+            for (int i = 0; i < len; i++) {
+                booleans[i] = r.nextBoolean();
+            }
+            final Object[] values = new Object[] { booleans, new boolean[] { true, false, true } };
+            final byte[] encoding = V3.encodeFunction(1, type, values, false);
+            assertTrue(Arrays.deepEquals(values, V3.decodeFunction(type, encoding)));
+            assertTrue(Arrays.deepEquals(values, V3.decodeFunction(type, (ByteBuffer) ByteBuffer.allocateDirect(encoding.length).put(encoding).flip())));
+            final byte[] singleEncoding = V3.encodeFunction(1, single, new Object[] { booleans }, false);
+            final int end = singleEncoding.length - (singleEncoding.length % 32 == 5 ? 1 : 0);
+            final BigInteger bits = new BigInteger(1, Arrays.copyOfRange(singleEncoding, end - BitOps.packedLength(len), end));
+            assertTrue(bits.bitLength() <= len);
+            for (int i = 0; i < len; i++) {
+                assertEquals(booleans[i], bits.testBit(len - 1 - i)); // the last boolean is the least significant bit
+            }
+        }
+        final byte[] nonCanonical = V3.encodeFunction(1, type, new Object[] { new boolean[] { true }, new boolean[3] }, false);
+        nonCanonical[nonCanonical.length - 2] |= 0b10;
+        assertEquals(Validator.NON_CANONICAL, assertThrows(DecodeException.class, () -> V3.decodeFunction(type, nonCanonical)).code());
+        assertEquals(3, V3.countZeroBytes(new byte[] { 0, 1, 0, 2, 0 }));
+        assertEquals(1, V3.countZeroBytes((ByteBuffer) ByteBuffer.allocateDirect(5).put(new byte[] { 0, 1, 0, 2, 3 }).position(1)));
+    }
+
+    @Test
+    void integers() {
+        final List<Long> values = new ArrayList<>();
+        for (int bit = 0; bit < Long.SIZE; bit++) {
+            final long p = 1L << bit;
+            for (long v : new long[] { p - 1, p, p + 1, -p, -p - 1, -p + 1, ~p }) {
+                values.add(v);
+            }
+        }
+        for (long v = -1_000; v <= 70_000; v++) {
+            values.add(v);
+        }
+        final byte[] buffer = new byte[Long.BYTES + 4];
+        for (long val : values) {
+            final int intVal = (int) val;
+            assertEquals(referenceLen(intVal & 0xFFFFFFFFL), Integers.len(intVal));
+            assertEquals(referenceLen(val), Integers.len(val));
+            final byte[] expected = referenceBytes(val);
+            for (int offset : new int[] { 0, 1, 3 }) {
+                Arrays.fill(buffer, (byte) 0x55);
+                Integers.putLong(val, buffer, offset);
+                assertArrayEquals(expected, Arrays.copyOfRange(buffer, offset, offset + expected.length));
+                assertEquals(0x55, buffer[offset + expected.length] & 0xFF);
+                if (expected.length > 0) {
+                    assertEquals(val, Integers.getLong(buffer, offset, expected.length));
+                }
+                final ByteBuffer bb = ByteBuffer.wrap(buffer, offset, buffer.length - offset).slice();
+                Integers.putLong(val, bb);
+                assertEquals(expected.length, bb.position());
+                bb.flip();
+                assertEquals(val, Integers.getLong(bb, expected.length));
+                for (int limit = expected.length; limit < Math.min(bb.capacity(), expected.length + 9); limit++) { // word and byte reads
+                    bb.limit(limit).position(0);
+                    assertEquals(val, Integers.getLong(bb, expected.length));
+                }
+            }
+            final byte[] expectedInt = referenceBytes(intVal & 0xFFFFFFFFL);
+            assertArrayEquals(expectedInt, Integers.toBytes(intVal));
+            final ByteBuffer bb = ByteBuffer.allocate(Integer.BYTES);
+            Integers.putInt(intVal, bb);
+            assertArrayEquals(expectedInt, Arrays.copyOf(bb.array(), bb.position()));
+            bb.flip();
+            assertEquals(intVal, Integers.getInt(bb, expectedInt.length));
+        }
+        assertThrows(IllegalArgumentException.class, () -> Integers.getLong(ByteBuffer.wrap(new byte[] { 0, 1 }), 2));
+        assertThrows(IllegalArgumentException.class, () -> Integers.getInt(ByteBuffer.wrap(new byte[] { 1, 1, 1, 1, 1 }), 5));
+    }
+
+    /** {@link Integers#len(long)} as first written, a byte at a time. */
+    private static int referenceLen(long val) {
+        int len = 0;
+        while (val != 0) {
+            len++;
+            val >>>= Byte.SIZE;
+        }
+        return len;
+    }
+
+    private static byte[] referenceBytes(long val) {
+        final byte[] temp = new byte[Long.BYTES];
+        int j = Long.BYTES;
+        for ( ; val != 0; val >>>= Byte.SIZE) {
+            temp[--j] = (byte) val;
+        }
+        return Arrays.copyOfRange(temp, j, Long.BYTES);
+    }
+
+    /**
+     * The type of the random calls shared by the tests of the streaming and target APIs: integers of 64 bits and
+     * narrower and wider, an address, byte strings and a string, and arrays of tuples, of packed bools and of arrays.
+     */
+    static final V3Type CALL_TYPE = TypeFactory.create("(uint64,int16,bool,bytes,string,bytes3,uint256,int72,address,(uint32,bytes)[],bool[],int8[][2],uint8)");
+
+    /** A random call of {@link #CALL_TYPE}, encoded. */
+    static final class Call {
+        final int fn;
+        final boolean external;
+        final Object[] values;
+        final byte[] encoding;
+
+        Call(int fn, boolean external, Object[] values) {
+            this.fn = fn;
+            this.external = external;
+            this.values = values;
+            this.encoding = V3.encodeFunction(fn, CALL_TYPE, values, external);
+        }
+
+        BigInteger integer(int i) {
+            return (BigInteger) values[i];
+        }
+
+        Object[] tuples() {
+            return (Object[]) values[9];
+        }
+
+        boolean[] booleans() {
+            return (boolean[]) values[10];
+        }
+
+        BigInteger[][] int8s() {
+            return (BigInteger[][]) values[11];
+        }
+    }
+
+    /** Returns {@code n} random calls of {@link #CALL_TYPE}, in both formats, including empty strings and arrays. */
+    static List<Call> randomCalls(long seed, int n) {
+        final Random r = new Random(seed);
+        final List<Call> calls = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            final byte[] data = new byte[i % 5 == 0 ? 0 : r.nextInt(100)];
+            r.nextBytes(data);
+            final byte[] three = new byte[3];
+            r.nextBytes(three);
+            final Object[] tuples = new Object[r.nextInt(4)];
+            for (int j = 0; j < tuples.length; j++) {
+                final byte[] bytes = new byte[r.nextInt(70)];
+                r.nextBytes(bytes);
+                tuples[j] = new Object[] { BigInteger.valueOf(r.nextInt() >>> 1), bytes };
+            }
+            final boolean[] booleans = new boolean[r.nextInt(20)];
+            for (int j = 0; j < booleans.length; j++) {
+                booleans[j] = r.nextBoolean();
+            }
+            final BigInteger[][] int8s = { new BigInteger[r.nextInt(4)], new BigInteger[r.nextInt(4)] };
+            for (BigInteger[] inner : int8s) {
+                for (int j = 0; j < inner.length; j++) {
+                    inner[j] = BigInteger.valueOf(r.nextInt(256) - 128);
+                }
+            }
+            final BigInteger i72 = new BigInteger(r.nextInt(72), r);
+            final Object[] values = {
+                    new BigInteger(64, r), BigInteger.valueOf(r.nextInt(65536) - 32768), r.nextBoolean(), data,
+                    i % 3 == 0 ? "\u00e9\u4e2d\ud83d\ude00" : i % 3 == 1 ? "" : "call " + i, three,
+                    new BigInteger(r.nextInt(257), r), r.nextBoolean() ? i72 : i72.negate(), new BigInteger(r.nextInt(161), r),
+                    tuples, booleans, int8s, BigInteger.valueOf(r.nextInt(256))
+            };
+            calls.add(new Call(i, r.nextBoolean(), values));
+        }
+        return calls;
+    }
+
+    /** The big-endian two's complement of {@code val} in exactly {@code len} bytes. */
+    static byte[] toBytes(BigInteger val, int len) {
+        final byte[] bytes = new byte[len];
+        final byte[] minimal = val.toByteArray();
+        Arrays.fill(bytes, 0, Math.max(0, len - minimal.length), (byte) (val.signum() < 0 ? -1 : 0));
+        final int n = Math.min(len, minimal.length);
+        System.arraycopy(minimal, minimal.length - n, bytes, len - n, n);
+        return bytes;
+    }
+
+
+    @Test
+    void decodeTarget() {
+        final DecodeTarget target = DecodeTarget.of(CALL_TYPE);
+        for (Call c : randomCalls(44L, 50)) {
+            assertSame(target, V3.decodeFunction(target, c.encoding));
+            assertEquals(c.integer(0), target.bigInteger(0));
+            assertEquals(c.integer(1).longValue(), target.getLong(1));
+            assertEquals(c.values[2], target.getBoolean(2));
+            assertArrayEquals((byte[]) c.values[3], Arrays.copyOf(target.bytes(3), target.length(3)));
+            assertEquals(c.values[4], target.string(4));
+            assertArrayEquals((byte[]) c.values[5], Arrays.copyOf(target.bytes(5), target.length(5)));
+            assertEquals(c.integer(6), target.bigInteger(6));
+            assertEquals(c.integer(7), target.bigInteger(7));
+            assertEquals(c.integer(8), target.bigInteger(8));
+            final DecodeTarget tuples = target.get(9);
+            assertEquals(c.tuples().length, tuples.size());
+            for (int i = 0; i < tuples.size(); i++) {
+                final Object[] tuple = (Object[]) c.tuples()[i];
+                assertEquals(((BigInteger) tuple[0]).longValue(), tuples.get(i).getLong(0));
+                assertArrayEquals((byte[]) tuple[1], Arrays.copyOf(tuples.get(i).bytes(1), tuples.get(i).length(1)));
+            }
+            assertEquals(c.booleans().length, target.get(10).size());
+            for (int i = 0; i < c.booleans().length; i++) {
+                assertEquals(c.booleans()[i], target.get(10).getBoolean(i));
+            }
+            for (int i = 0; i < 2; i++) {
+                final DecodeTarget inner = target.get(11).get(i);
+                assertEquals(c.int8s()[i].length, inner.size());
+                for (int j = 0; j < inner.size(); j++) {
+                    assertEquals(c.int8s()[i][j].longValue(), inner.getLong(j));
+                }
+            }
+            assertEquals(c.integer(12).longValue(), target.getLong(12));
+        }
+        assertThrows(IllegalArgumentException.class, () -> target.getLong(3));
+        assertThrows(IndexOutOfBoundsException.class, () -> target.get(9).get(target.get(9).size()));
+        assertThrows(IllegalArgumentException.class, () -> DecodeTarget.of(TypeFactory.create("uint8[]")));
+
+        final byte[] whole = randomCalls(144L, 1).get(0).encoding;
+        for (int len = 0; len < whole.length - 1; len++) { // a last byte may be padding
+            final byte[] truncated = Arrays.copyOf(whole, len);
+            assertThrows(DecodeException.class, () -> V3.decodeFunction(target, truncated));
+        }
+        final DecodeTarget uint64 = DecodeTarget.of(TypeFactory.create("(uint64)"));
+        assertEquals(Validator.TRUNCATED, assertThrows(DecodeException.class, () -> V3.decodeFunction(uint64, new byte[] { 0, 0, 0, 0, 1, 1, 2 })).code());
+        assertEquals(Validator.TRUNCATED, assertThrows(DecodeException.class, () -> V3.decodeFunction(uint64, new byte[] { 0x41, (byte) 0x88, 1 })).code());
+        final DecodeTarget bool = DecodeTarget.of(TypeFactory.create("(bool)"));
+        assertEquals(Validator.BAD_BOOLEAN, assertThrows(DecodeException.class, () -> V3.decodeFunction(bool, new byte[] { 0x41, 0x02 })).code());
+        final DecodeTarget bools = DecodeTarget.of(TypeFactory.create("(bool[])"));
+        assertEquals(3, V3.decodeFunction(bools, new byte[] { 0x41, 0x03, 0x05 }).get(0).size());
+        assertEquals(Validator.NON_CANONICAL, assertThrows(DecodeException.class, () -> V3.decodeFunction(bools, new byte[] { 0x41, 0x03, 0x0d })).code());
+        final DecodeTarget empties = DecodeTarget.of(TypeFactory.create("(()[])"));
+        assertEquals(3, V3.decodeFunction(empties, new byte[] { 0x40, 0x03 }).get(0).size());
+        assertEquals(Validator.ARRAY_TOO_LONG,
+                assertThrows(DecodeException.class, () -> V3.decodeFunction(empties, new byte[] { 0x40, (byte) 0x84, 0x7f, -1, -1, -1 })).code());
+    }
+
+    @Test
+    void callWriter() {
+        final CallWriter writer = new CallWriter(CALL_TYPE);
+        final ByteBuffer dest = ByteBuffer.allocate(2048);
+        for (Call c : randomCalls(45L, 100)) {
+            dest.clear();
+            final BigInteger u256 = c.integer(6);
+            final BigInteger i72 = c.integer(7);
+            writer.start(c.fn, c.external, dest)
+                    .putUint(c.integer(0).longValue())
+                    .putInt(c.integer(1).longValue())
+                    .putBool((Boolean) c.values[2])
+                    .putBytes(ByteBuffer.wrap((byte[]) c.values[3]))
+                    .putString((String) c.values[4])
+                    .putBytes((byte[]) c.values[5])
+                    .putUint256(u256.shiftRight(192).longValue(), u256.shiftRight(128).longValue(), u256.shiftRight(64).longValue(), u256.longValue())
+                    .putInt256(i72.shiftRight(192).longValue(), i72.shiftRight(128).longValue(), i72.shiftRight(64).longValue(), i72.longValue())
+                    .putAddress(toBytes(c.integer(8), 20), 0)
+                    .beginArray(c.tuples().length);
+            for (Object t : c.tuples()) {
+                final Object[] tuple = (Object[]) t;
+                writer.beginTuple()
+                        .putUint(((BigInteger) tuple[0]).longValue())
+                        .putBytes((byte[]) tuple[1])
+                        .endTuple();
+            }
+            writer.endArray().beginArray(c.booleans().length);
+            for (boolean b : c.booleans()) {
+                writer.putBool(b);
+            }
+            writer.endArray().beginArray(2);
+            for (BigInteger[] inner : c.int8s()) {
+                writer.beginArray(inner.length);
+                for (BigInteger v : inner) {
+                    writer.putInt(v.longValue());
+                }
+                writer.endArray();
+            }
+            final int len = writer.endArray().putUint(c.integer(12).longValue()).finish();
+            assertArrayEquals(c.encoding, Arrays.copyOf(dest.array(), len));
+        }
+
+        final V3Type strings = TypeFactory.create("(string)");
+        for (String s : new String[] { "\ud800", "a\udc00b", "\ude00\ud83d" }) { // unpaired surrogates
+            dest.clear();
+            final int n = CallWriter.of(1, strings, true, dest).putString(s).finish();
+            assertArrayEquals(V3.encodeFunction(1, strings, new Object[] { s }, true), Arrays.copyOf(dest.array(), n));
+        }
+        final V3Type empties = TypeFactory.create("(()[],uint8)");
+        for (boolean external : new boolean[] { false, true }) {
+            dest.clear();
+            final CallWriter e = CallWriter.of(2, empties, external, dest).beginArray(3);
+            for (int i = 0; i < 3; i++) {
+                e.beginTuple().endTuple();
+            }
+            final int n = e.endArray().putUint(7L).finish();
+            assertArrayEquals(V3.encodeFunction(2, empties, new Object[] { new Object[] { new Object[0], new Object[0], new Object[0] }, BigInteger.valueOf(7) }, external),
+                    Arrays.copyOf(dest.array(), n));
+        }
+
+        final CallWriter w = CallWriter.of(0, TypeFactory.create("(uint8,bytes2,bool[],(int16))"), false, ByteBuffer.allocate(64));
+        assertThrows(IllegalStateException.class, () -> w.putInt(1L));
+        assertThrows(IllegalStateException.class, () -> w.putBool(true));
+        assertThrows(IllegalArgumentException.class, () -> w.putUint(256L));
+        w.putUint(255L);
+        assertThrows(IllegalArgumentException.class, () -> w.putBytes(new byte[3]));
+        w.putBytes(new byte[2]);
+        assertThrows(IllegalStateException.class, w::finish);
+        w.beginArray(2).putBool(true);
+        assertThrows(IllegalStateException.class, w::endArray);
+        w.putBool(false);
+        assertThrows(IllegalStateException.class, () -> w.putBool(true));
+        assertThrows(IllegalStateException.class, w::endTuple);
+        w.endArray().beginTuple().putInt(-32768L).endTuple();
+        assertEquals(1 + 4 + 1 + 2 + 1 + 1 + 2, w.finish());
+        assertThrows(IllegalStateException.class, w::finish);
+    }
+
+    @Test
+    void callReader() {
+        final CallReader reader = new CallReader(CALL_TYPE);
+        final byte[] wide = new byte[32];
+        final byte[] address = new byte[20];
+        for (Call c : randomCalls(46L, 100)) {
+            final ByteBuffer bb = ByteBuffer.wrap(c.encoding);
+            assertEquals(c.external, reader.start(bb).isExternal());
+            assertEquals(c.integer(0).longValue(), reader.nextUint64());
+            assertEquals(c.integer(1).longValue(), reader.nextInt64());
+            assertEquals(c.values[2], reader.nextBool());
+            assertEquals(ByteBuffer.wrap((byte[]) c.values[3]), reader.nextBytes());
+            assertEquals(c.values[4], reader.nextString());
+            assertEquals(3, reader.nextBytesInto(wide, 0));
+            assertArrayEquals((byte[]) c.values[5], Arrays.copyOf(wide, 3));
+            assertEquals(32, reader.nextIntegerInto(wide, 0));
+            assertEquals(c.integer(6), new BigInteger(1, wide));
+            assertEquals(9, reader.nextIntegerInto(wide, 0));
+            assertEquals(c.integer(7), new BigInteger(Arrays.copyOf(wide, 9)));
+            reader.nextAddressInto(address, 0);
+            assertEquals(c.integer(8), new BigInteger(1, address));
+            assertEquals(c.tuples().length, reader.enterArray());
+            for (Object t : c.tuples()) {
+                reader.enterTuple();
+                assertEquals(((BigInteger) ((Object[]) t)[0]).longValue(), reader.nextUint64());
+                if (c.fn % 2 == 0) {
+                    reader.skip();
+                } else {
+                    assertEquals(ByteBuffer.wrap((byte[]) ((Object[]) t)[1]), reader.nextBytes());
+                }
+                assertFalse(reader.hasNext());
+                reader.exitTuple();
+            }
+            reader.exitArray();
+            assertEquals(c.booleans().length, reader.enterArray());
+            for (int i = 0; i < c.booleans().length; i++) {
+                if (i % 3 == 2) {
+                    reader.skip();
+                } else {
+                    assertEquals(c.booleans()[i], reader.nextBool());
+                }
+            }
+            reader.exitArray();
+            if (c.fn % 2 == 0) {
+                reader.skip();
+            } else {
+                assertEquals(2, reader.enterArray());
+                for (BigInteger[] inner : c.int8s()) {
+                    assertEquals(inner.length, reader.enterArray());
+                    for (BigInteger v : inner) {
+                        assertEquals(v.longValue(), reader.nextInt64());
+                    }
+                    reader.exitArray();
+                }
+                reader.exitArray();
+            }
+            assertEquals(c.integer(12).longValue(), reader.nextUint64());
+            assertEquals(bb.limit(), reader.finish());
+            assertFalse(bb.hasRemaining());
+        }
+
+        final byte[] whole = randomCalls(146L, 1).get(0).encoding;
+        for (int len = 1; len < whole.length - 1; len++) { // a last byte may be padding
+            final ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(whole, len));
+            assertThrows(DecodeException.class, () -> {
+                final CallReader cr = reader.start(truncated);
+                while (cr.hasNext()) {
+                    cr.skip();
+                }
+                cr.finish();
+            });
+        }
+
+        final V3Type t = TypeFactory.create("(uint8,bool[],int16,int72,(bytes))");
+        final byte[] encoding = V3.encodeFunction(1, t, new Object[] { BigInteger.valueOf(200), new boolean[] { true, false, true }, BigInteger.ONE,
+                BigInteger.TEN, new Object[] { new byte[0] } }, true);
+        final CallReader cr = CallReader.of(t, ByteBuffer.wrap(encoding));
+        assertThrows(IllegalStateException.class, cr::nextInt64);
+        assertThrows(IllegalStateException.class, cr::nextBool);
+        assertThrows(IllegalStateException.class, cr::enterArray);
+        assertEquals(200L, cr.nextUint64());
+        assertThrows(IllegalStateException.class, cr::finish);
+        assertThrows(IllegalStateException.class, cr::enterTuple);
+        assertEquals(3, cr.enterArray());
+        assertTrue(cr.nextBool());
+        assertThrows(IllegalStateException.class, cr::exitArray);
+        cr.skip();
+        assertTrue(cr.nextBool());
+        assertThrows(IllegalStateException.class, cr::nextBool);
+        cr.exitArray();
+        assertThrows(IllegalStateException.class, cr::nextUint64); // int16 is signed
+        assertEquals(1L, cr.nextInt64());
+        assertThrows(IllegalStateException.class, cr::nextInt64); // int72 is wider than a long
+        assertEquals(9, cr.nextIntegerInto(wide, 0));
+        assertThrows(IllegalStateException.class, cr::nextBytes);
+        cr.enterTuple();
+        assertThrows(IllegalStateException.class, cr::exitTuple);
+        assertEquals(0, cr.nextBytes().remaining());
+        cr.exitTuple();
+        assertEquals(encoding.length, cr.finish());
+
+        final DecodeException e = assertThrows(DecodeException.class, () -> CallReader.of(t, ByteBuffer.wrap(new byte[] { 0x41, (byte) 0x81, 0x05 })).nextUint64());
+        assertEquals(Validator.NON_CANONICAL, e.code());
+        final byte[] badBits = encoding.clone();
+        badBits[4] |= (byte) 0x80; // an unused bit of the packed bools
+        final CallReader bad = CallReader.of(t, ByteBuffer.wrap(badBits));
+        bad.nextUint64();
+        assertEquals(Validator.NON_CANONICAL, assertThrows(DecodeException.class, bad::enterArray).code());
+
+        final V3Type empties = TypeFactory.create("(()[],uint8)");
+        final CallReader er = CallReader.of(empties, ByteBuffer.wrap(V3.encodeFunction(0, empties,
+                new Object[] { new Object[] { new Object[0], new Object[0] }, BigInteger.ONE }, false)));
+        assertEquals(2, er.enterArray());
+        for (int i = 0; i < 2; i++) {
+            er.enterTuple();
+            assertFalse(er.hasNext());
+            er.exitTuple();
+        }
+        er.exitArray();
+        assertEquals(1L, er.nextUint64());
+        er.finish();
+        assertEquals(Validator.ARRAY_TOO_LONG, assertThrows(DecodeException.class,
+                () -> CallReader.of(empties, ByteBuffer.wrap(new byte[] { 0x40, (byte) 0x84, 0x7f, -1, -1, -1, 1 })).enterArray()).code());
+    }
+
+    @Test
+    void preparedCall() {
+        final V3Type type = TypeFactory.create("(address,address,uint256,uint64,bool,bytes32,uint16[2])");
+        final BigInteger router = new BigInteger("7a250d5630b4cf539739df2c5dacb4c659f2488d", 16);
+        final BigInteger token = new BigInteger("c02aaa39b223fe8d0a0e5c4f27ead9083c756cc2", 16);
+        final byte[] salt = new byte[32];
+        Arrays.fill(salt, (byte) 0x5a);
+        final Random r = new Random(47L);
+        for (boolean external : new boolean[] { false, true }) {
+            final int fn = external ? 70 : 3;
+            final PreparedCall call = PreparedCall.of(fn, type, new Object[] { router, token, null, BigInteger.valueOf(1_700_000_000L), null, salt, null }, external);
+            assertEquals(3, call.variableCount());
+            assertEquals(!external, call.isPatchable());
+            final byte[] buffer = external ? null : call.newBuffer();
+            for (int round = 0; round < 50; round++) {
+                final BigInteger amount = new BigInteger(r.nextInt(257), r);
+                final boolean flag = r.nextBoolean();
+                final long[] pair = { r.nextInt(65536), r.nextInt(65536) };
+                final byte[] expected = V3.encodeFunction(fn, type, new Object[] { router, token, amount, BigInteger.valueOf(1_700_000_000L), flag, salt, pair }, external);
+                assertArrayEquals(expected, call.encode(new Object[] { amount, flag, pair }));
+                final ByteBuffer dest = ByteBuffer.allocate(expected.length + 3);
+                dest.put((byte) 9);
+                call.encode(dest, new Object[] { amount, flag, pair });
+                assertArrayEquals(expected, Arrays.copyOfRange(dest.array(), 1, dest.position()));
+                if (buffer != null) {
+                    call.patch(buffer, 0, amount);
+                    call.patchBoolean(buffer, 1, flag);
+                    call.patch(buffer, 2, pair);
+                    assertArrayEquals(expected, buffer);
+                    if (amount.bitLength() < Long.SIZE) {
+                        call.patch(buffer, 0, BigInteger.ZERO);
+                        call.patchLong(buffer, 0, amount.longValue());
+                        assertArrayEquals(expected, buffer);
+                    }
+                }
+            }
+            if (external) {
+                assertThrows(IllegalStateException.class, call::newBuffer);
+            }
+        }
+
+        final V3Type padded = TypeFactory.create("(uint8,bytes30)"); // 36 bytes internally, so padded to 37
+        final PreparedCall p = PreparedCall.of(0, padded, new Object[] { null, new byte[30] }, false);
+        final byte[] buffer = p.newBuffer();
+        p.patchLong(buffer, 0, 255L);
+        assertArrayEquals(V3.encodeFunction(0, padded, new Object[] { BigInteger.valueOf(255), new byte[30] }, false), buffer);
+        assertEquals(37, buffer.length);
+        assertThrows(IllegalArgumentException.class, () -> p.patchLong(buffer, 0, 256L));
+        assertThrows(IllegalArgumentException.class, () -> p.patchBoolean(buffer, 0, true));
+        final V3Type wide = TypeFactory.create("(int72,uint96)");
+        final PreparedCall w = PreparedCall.of(1, wide, new Object[] { null, null }, false);
+        final byte[] wideBuffer = w.newBuffer();
+        w.patchLong(wideBuffer, 0, -2L);
+        w.patchLong(wideBuffer, 1, -1L);
+        assertArrayEquals(V3.encodeFunction(1, wide, new Object[] { BigInteger.valueOf(-2), new BigInteger("ffffffffffffffff", 16) }, false), wideBuffer);
+
+        final V3Type dynamic = TypeFactory.create("(string,bytes,bool)");
+        final PreparedCall d = PreparedCall.of(100, dynamic, new Object[] { "memo", null, true }, true);
+        assertFalse(d.isPatchable());
+        assertArrayEquals(V3.encodeFunction(100, dynamic, new Object[] { "memo", new byte[60], true }, true), d.encode(new Object[] { new byte[60] }));
+        assertThrows(IllegalArgumentException.class, () -> d.encode(new Object[0]));
+        assertArrayEquals(V3.encodeFunction(100, dynamic, new Object[] { "memo", new byte[0], true }, true),
+                PreparedCall.of(100, dynamic, new Object[] { "memo", new byte[0], true }, true).encode(new Object[0]));
+        final V3Type lone = TypeFactory.create("(uint8,(bool,string),uint8[])"); // a lone tuple or array is never spread
+        final Object[] tuple = new Object[] { true, "x" };
+        final BigInteger[] uint8s = new BigInteger[] { BigInteger.ONE, BigInteger.TEN };
+        final PreparedCall t = PreparedCall.of(5, lone, new Object[] { BigInteger.ONE, null, uint8s }, true);
+        assertArrayEquals(V3.encodeFunction(5, lone, new Object[] { BigInteger.ONE, tuple, uint8s }, true), t.encode(new Object[] { tuple }));
+        final PreparedCall a = PreparedCall.of(5, lone, new Object[] { BigInteger.ONE, tuple, null }, true);
+        assertArrayEquals(V3.encodeFunction(5, lone, new Object[] { BigInteger.ONE, tuple, uint8s }, true), a.encode(new Object[] { uint8s }));
+
+        for (Call c : randomCalls(147L, 20)) {
+            final Object[] template = c.values.clone();
+            template[3] = template[9] = template[12] = null;
+            final PreparedCall prepared = PreparedCall.of(c.fn, CALL_TYPE, template, c.external);
+            assertEquals(3, prepared.variableCount());
+            assertArrayEquals(c.encoding, prepared.encode(new Object[] { c.values[3], c.values[9], c.values[12] }));
+        }
+    }
+
+    @Test
+    void gatheringEncode(@TempDir Path dir) throws IOException {
+        final Random r = new Random(48L);
+        for (Call c : randomCalls(48L, 40)) {
+            final int threshold = 1 + r.nextInt(80);
+            final ByteBuffer[] gather = V3.encodeFunctionGathering(c.fn, CALL_TYPE, c.values, c.external, threshold);
+            final ByteBuffer joined = ByteBuffer.allocate(c.encoding.length);
+            for (ByteBuffer b : gather) {
+                assertTrue(b.hasRemaining());
+                joined.put(b.duplicate());
+            }
+            assertArrayEquals(c.encoding, joined.array());
+            final int referenced = (((byte[]) c.values[3]).length >= threshold ? 1 : 0);
+            assertTrue(gather.length >= 1 + 2 * referenced);
+        }
+
+        final byte[] blob = new byte[300_000];
+        r.nextBytes(blob);
+        final V3Type t = TypeFactory.create("(bytes,uint8)");
+        final ByteBuffer[] gather = V3.encodeFunctionGathering(5, t, new Object[] { blob, BigInteger.ONE }, false, 4096);
+        assertEquals(3, gather.length);
+        assertTrue(gather[1].isReadOnly());
+        assertEquals(blob.length, gather[1].remaining());
+        blob[0] ^= 1; // referenced, not copied
+        assertEquals(blob[0], gather[1].get(0));
+        final Path file = dir.resolve("call.bin");
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            assertEquals(gather[0].remaining() + blob.length + gather[2].remaining(), V3.writeFully(fc, gather));
+        }
+        assertArrayEquals(V3.encodeFunction(5, t, new Object[] { blob, BigInteger.ONE }, false), Files.readAllBytes(file));
+        assertThrows(IllegalArgumentException.class, () -> V3.encodeFunctionGathering(5, t, new Object[] { blob, BigInteger.ONE }, false, 0));
+    }
+
+    @Test
+    void parallelEncode() {
+        final V3Type type = TypeFactory.create("((uint256,address)[],uint8,uint64[],(bytes,int16)[3],string[])");
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final Random r = new Random(49L);
+            for (int n : new int[] { 0, 10, ParallelEncoder.MIN_PARALLEL_LENGTH, 25_000 }) {
+                final Object[] drops = new Object[n];
+                for (int i = 0; i < n; i++) {
+                    drops[i] = new Object[] { new BigInteger(r.nextInt(257), r), new BigInteger(160, r) };
+                }
+                final BigInteger[] amounts = new BigInteger[n];
+                final String[] memos = new String[n];
+                for (int i = 0; i < n; i++) {
+                    amounts[i] = new BigInteger(r.nextInt(65), r);
+                    memos[i] = i % 7 == 0 ? "" : "memo " + i;
+                }
+                final Object[] triple = { new Object[] { new byte[5], BigInteger.ONE }, new Object[] { new byte[0], BigInteger.valueOf(-2) },
+                        new Object[] { new byte[70], BigInteger.TEN } };
+                final Object[] vals = { drops, BigInteger.valueOf(255), amounts, triple, memos };
+                for (boolean external : new boolean[] { false, true }) {
+                    assertArrayEquals(V3.encodeFunction(n, type, vals, external), V3.encodeFunctionParallel(n, type, vals, external, pool));
+                }
+            }
+            for (Call c : randomCalls(49L, 20)) {
+                assertArrayEquals(c.encoding, V3.encodeFunctionParallel(c.fn, CALL_TYPE, c.values, c.external, pool));
+            }
+            final Object[] bad = new Object[ParallelEncoder.MIN_PARALLEL_LENGTH * 2];
+            Arrays.fill(bad, new Object[] { BigInteger.ONE, BigInteger.ONE });
+            bad[bad.length - 3] = new Object[] { BigInteger.ONE.shiftLeft(256), BigInteger.ONE }; // too wide for the uint256
+            final Object[] pair = { new byte[1], BigInteger.ONE };
+            final Object[] vals = { bad, BigInteger.ONE, new BigInteger[0], new Object[] { pair, pair, pair }, new String[0] };
+            assertThrows(IllegalArgumentException.class, () -> V3.encodeFunctionParallel(0, type, vals, false, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void hex() {
+        final Random r = new Random(50L);
+        for (int len = 0; len < 70; len++) {
+            final byte[] bytes = new byte[len];
+            r.nextBytes(bytes);
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : bytes) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            final String hex = sb.toString();
+            assertEquals(hex, Hex.encode(bytes));
+            assertArrayEquals(bytes, Hex.decode(hex));
+            assertArrayEquals(bytes, Hex.decode("0x" + hex.toUpperCase()));
+            assertArrayEquals(bytes, Hex.decode(("0X" + hex).toCharArray(), 0, hex.length() + 2));
+            final byte[] ascii = new byte[hex.length() + 1];
+            Hex.encodeAscii(bytes, 0, bytes.length, ascii, 1);
+            assertEquals(hex, new String(ascii, 1, hex.length(), StandardCharsets.US_ASCII));
+            assertArrayEquals(bytes, Hex.decodeAscii(ascii, 1, ascii.length));
+        }
+        assertThrows(IllegalArgumentException.class, () -> Hex.decode("0xabc"));
+        assertThrows(IllegalArgumentException.class, () -> Hex.decode("0xag"));
+        assertThrows(IllegalArgumentException.class, () -> Hex.decode("\u0660\u0661"));
+
+        final DecodeTarget callTarget = DecodeTarget.of(CALL_TYPE);
+        for (Call c : randomCalls(50L, 20)) {
+            final String calldata = "0x" + Hex.encode(c.encoding);
+            assertTrue(Arrays.deepEquals(c.values, V3.decodeFunction(CALL_TYPE, calldata)));
+            V3.decodeFunction(callTarget, calldata);
+            assertEquals(c.values[4], callTarget.string(4));
+            assertArrayEquals((byte[]) c.values[3], Arrays.copyOf(callTarget.bytes(3), callTarget.length(3)));
+        }
+        final V3Type type = TypeFactory.create("(uint64,bytes,string,bool[])");
+        final DecodeTarget target = DecodeTarget.of(type);
+        final String trailing = "0x" + Hex.encode(V3.encodeFunction(1, type, new Object[] { BigInteger.ONE, new byte[0], "", new boolean[0] }, true)) + "00";
+        assertEquals(Validator.TRAILING_BYTES, assertThrows(DecodeException.class, () -> V3.decodeFunction(type, trailing)).code());
+        assertEquals(Validator.TRAILING_BYTES, assertThrows(DecodeException.class, () -> V3.decodeFunction(target, trailing)).code());
+
+        final ByteBuffer small = Hex.decodeToScratch("0x00ff");
+        final byte[] big = new byte[(1 << 16) + 1];
+        r.nextBytes(big);
+        final ByteBuffer bigScratch = Hex.decodeToScratch(Hex.encode(big));
+        assertNotSame(small, bigScratch);
+        assertArrayEquals(big, bigScratch.array());
+        assertSame(small, Hex.decodeToScratch("abcd")); // the retained buffer is not replaced by an oversized one
+    }
 }
@@ -0,0 +1,593 @@
+/*
+   Copyright 2022 Evan Saulpaugh
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.esaulpaugh.abiv3;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Rough throughput and allocation comparisons. Not part of the test suite; run {@link #main(String[])} directly, e.g.
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.esaulpaugh.abiv3.Benchmarks}.
+ */
+public final class Benchmarks {
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws IOException {
+        primitiveArrays();
+        objectArrays();
+        pooledEncoding();
+        coldStart();
+        incremental();
+        validation();
+        rejection();
+        scanning();
+        columnar();
+        corpus();
+        parallelCorpus();
+        bitOps();
+        integers();
+        decodeTarget();
+        callWriter();
+        callReader();
+        preparedCall();
+        gathering();
+        parallelEncode();
+        hex();
+    }
+
+    private static void primitiveArrays() {
+        final Random r = new Random(0L);
+        final long[] ticks = new long[5_000];
+        for (int i = 0; i < ticks.length; i++) {
+            ticks[i] = r.nextInt() >>> 1;
+        }
+        final V3Type type = TypeFactory.create("(uint32[])");
+        final V3Type primitiveType = type.asPrimitive();
+        final byte[] encoding = V3.encodeFunction(5, primitiveType, new Object[] { ticks }, false);
+        run("decode uint32[5000] as BigInteger[]", 20_000, () -> sink = V3.decodeFunction(type, encoding));
+        run("decode uint32[5000] as long[]", 20_000, () -> sink = V3.decodeFunction(primitiveType, encoding));
+        final Object[] bigInts = V3.decodeFunction(type, encoding);
+        final Object[] longs = new Object[] { ticks };
+        run("encode uint32[5000] from BigInteger[]", 20_000, () -> sink = V3.encodeFunction(5, type, bigInts, false));
+        run("encode uint32[5000] from long[]", 20_000, () -> sink = V3.encodeFunction(5, type, longs, false));
+    }
+
+    private static void objectArrays() {
+        final String[][] strings = new String[64][];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = new String[] { "a", "bc", "def" };
+        }
+        final Object[] legs = new Object[1_000];
+        for (int i = 0; i < legs.length; i++) {
+            legs[i] = new Object[] { BigInteger.valueOf(i), BigInteger.ONE.shiftLeft(159).add(BigInteger.valueOf(i)) };
+        }
+        final V3Type stringsType = TypeFactory.create("(string[][])");
+        final V3Type legsType = TypeFactory.create("((uint256,address)[])");
+        final byte[] stringsEncoding = V3.encodeFunction(9, stringsType, new Object[] { strings }, true);
+        final byte[] legsEncoding = V3.encodeFunction(9, legsType, new Object[] { legs }, true);
+        run("decode string[64][3]", 20_000, () -> sink = V3.decodeFunction(stringsType, stringsEncoding));
+        run("decode (uint256,address)[1000]", 2_000, () -> sink = V3.decodeFunction(legsType, legsEncoding));
+        run("create string[][][][]", 200_000, () -> sink = TypeFactory.create("string[][][][]"));
+    }
+
+    private static void pooledEncoding() {
+        final BufferPool pool = new BufferPool();
+        final V3Type type = TypeFactory.create("(uint32[],int64[3],bool)").asPrimitive();
+        final Object[] values = new Object[] { new long[] { 1L, 2L, 0xfffffffeL }, new long[] { -1L, 0L, Long.MIN_VALUE }, Boolean.TRUE };
+        run("encode to heap array", 200_000, () -> sink = V3.encodeFunction(3, type, values, false));
+        run("encode to pooled direct buffer", 200_000, () -> pool.release(V3.encodeFunction(3, type, values, false, pool)));
+        System.out.println("pool: acquires=" + pool.acquireCount() + " localHits=" + pool.localHitCount()
+                + " allocatedBytes=" + pool.allocatedBytes() + " outstandingBytes=" + pool.outstandingBytes());
+    }
+
+    private static void coldStart() {
+        final String[] params = { "uint256", "address", "bool", "bytes", "string", "bytes32", "uint8[]", "(uint256,address)[]",
+                "(address,(bytes32,uint64)[2])", "int24", "uint160[][]" };
+        final Random r = new Random(1L);
+        final List<String[]> signatures = new ArrayList<>();
+        final List<FunctionTable> tables = new ArrayList<>();
+        for (int t = 0; t < 500; t++) {
+            final String[] sigs = new String[20];
+            final V3Type[] types = new V3Type[sigs.length];
+            final String[] names = new String[sigs.length];
+            for (int f = 0; f < sigs.length; f++) {
+                final StringBuilder sb = new StringBuilder("(");
+                for (int p = r.nextInt(6); p >= 0; p--) {
+                    sb.append(params[r.nextInt(params.length)]).append(',');
+                }
+                sigs[f] = sb.deleteCharAt(sb.length() - 1).append(')').toString();
+                types[f] = TypeFactory.create(sigs[f]);
+                names[f] = "fn" + f;
+            }
+            signatures.add(sigs);
+            tables.add(new FunctionTable(names, types));
+        }
+        final ByteBuffer snapshot = SchemaSnapshot.toBytes(tables);
+        System.out.println("snapshot of 500 tables x 20 functions: " + snapshot.remaining() + " bytes");
+        run("reparse 10000 signatures via TypeFactory", 50, () -> {
+            for (String[] sigs : signatures) {
+                for (String sig : sigs) {
+                    sink = TypeFactory.create(sig);
+                }
+            }
+        });
+        run("load snapshot, materialize all 500 tables", 50, () -> {
+            final SchemaSnapshot s = SchemaSnapshot.wrap(snapshot.duplicate());
+            for (int i = 0; i < s.tableCount(); i++) {
+                sink = s.table(i);
+            }
+        });
+        run("load snapshot, materialize 1 table", 50, () -> sink = SchemaSnapshot.wrap(snapshot.duplicate()).table(7));
+    }
+
+    private static void incremental() {
+        final Object[] legs = new Object[1_000];
+        for (int i = 0; i < legs.length; i++) {
+            legs[i] = new Object[] { BigInteger.valueOf(i), BigInteger.ONE.shiftLeft(159).add(BigInteger.valueOf(i)) };
+        }
+        final V3Type type = TypeFactory.create("((uint256,address)[])");
+        final byte[] encoding = V3.encodeFunction(9, type, new Object[] { legs }, true);
+        final IncrementalDecoder decoder = new IncrementalDecoder(type);
+        run("decode (uint256,address)[1000] whole", 2_000, () -> sink = V3.decodeFunction(type, encoding));
+        run("decode (uint256,address)[1000] in 1460-byte chunks", 2_000, () -> {
+            decoder.reset();
+            for (int pos = 0; decoder.feed(ByteBuffer.wrap(encoding, pos, Math.min(1460, encoding.length - pos))) != 0; pos += 1460) {
+            }
+            sink = decoder.result();
+        });
+    }
+
+    private static void validation() {
+        final Object[] legs = new Object[1_000];
+        for (int i = 0; i < legs.length; i++) {
+            legs[i] = new Object[] { BigInteger.valueOf(i), BigInteger.ONE.shiftLeft(159).add(BigInteger.valueOf(i)) };
+        }
+        final V3Type type = TypeFactory.create("((uint256,address)[],string)");
+        final byte[] encoding = V3.encodeFunction(9, type, new Object[] { legs, "memo" }, true);
+        final ByteBuffer bb = ByteBuffer.wrap(encoding);
+        run("decode (uint256,address)[1000]", 2_000, () -> sink = V3.decodeFunction(type, encoding));
+        run("validate (uint256,address)[1000]", 2_000, () -> sink = Validator.validate(type, bb) == Validator.VALID);
+    }
+
+    private static void rejection() {
+        final V3Type type = TypeFactory.create("(uint256,address,string,bytes32[])");
+        final byte[] valid = V3.encodeFunction(7, type, new Object[] {
+                BigInteger.TEN, BigInteger.ONE.shiftLeft(159), "hello", new byte[][] { new byte[32], new byte[32] } }, true);
+        final byte[] junk = valid.clone();
+        junk[23] = (byte) 0xc5; // the string becomes an RLP list
+        run("tryDecode valid", 200_000, () -> sink = V3.tryDecodeFunction(type, valid));
+        run("tryDecode junk", 200_000, () -> sink = V3.tryDecodeFunction(type, junk));
+        run("decodeFunction junk, catch DecodeException", 200_000, () -> {
+            try {
+                sink = V3.decodeFunction(type, junk);
+            } catch (DecodeException de) {
+                sink = de;
+            }
+        });
+        run("decodeFunction junk, plus a stack trace as before", 200_000, () -> {
+            try {
+                sink = V3.decodeFunction(type, junk);
+            } catch (DecodeException de) {
+                sink = new IllegalArgumentException(de.getMessage());
+            }
+        });
+    }
+
+    private static void scanning() {
+        final V3Type type = TypeFactory.create("(uint256,address,uint32,bytes,address,string)");
+        final Random r = new Random(2L);
+        final BigInteger target = new BigInteger(160, r);
+        final byte[][] corpus = new byte[20_000][];
+        for (int i = 0; i < corpus.length; i++) {
+            final byte[] data = new byte[r.nextInt(200)];
+            r.nextBytes(data);
+            corpus[i] = V3.encodeFunction(r.nextInt(16), type, new Object[] {
+                    new BigInteger(r.nextInt(256) + 1, r), r.nextInt(100) == 0 ? target : new BigInteger(160, r),
+                    BigInteger.valueOf(r.nextInt() >>> 1), data, new BigInteger(160, r), "memo" + i }, r.nextBoolean());
+        }
+        final Scanner scanner = Scanner.of(type).function(7).whereEquals(1, target);
+        run("decode all 20000, then filter by argument", 20, () -> {
+            int n = 0;
+            for (byte[] call : corpus) {
+                if (target.equals(V3.decodeFunction(type, call)[1])) {
+                    n++;
+                }
+            }
+            sink = n;
+        });
+        run("scan 20000 by function and argument, decode matches", 200, () -> {
+            int n = 0;
+            for (byte[] call : corpus) {
+                if (scanner.decodeIfMatches(call) != null) {
+                    n++;
+                }
+            }
+            sink = n;
+        });
+    }
+
+    private static void columnar() {
+        final V3Type type = TypeFactory.create("(uint64,uint32,bool,bytes,int64)");
+        final Random r = new Random(3L);
+        final List<byte[]> corpus = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            final byte[] data = new byte[r.nextInt(40)];
+            r.nextBytes(data);
+            corpus.add(V3.encodeFunction(4, type, new Object[] { new BigInteger(64, r), BigInteger.valueOf(r.nextInt() >>> 1),
+                    r.nextBoolean(), data, BigInteger.valueOf(r.nextLong()) }, r.nextBoolean()));
+        }
+        run("decode 20000 rows, sum a uint32 column", 50, () -> {
+            long sum = 0;
+            for (byte[] call : corpus) {
+                sum += ((BigInteger) V3.decodeFunction(type, call)[1]).longValue();
+            }
+            sink = sum;
+        });
+        run("decode 20000 rows as columns, sum a uint32 column", 50, () -> {
+            long sum = 0;
+            for (long v : ColumnarBatch.decode(type, corpus).longs(1)) {
+                sum += v;
+            }
+            sink = sum;
+        });
+    }
+
+    private static void corpus() throws IOException {
+        final V3Type type = TypeFactory.create("(uint256,address,uint32,bytes)");
+        final Random r = new Random(4L);
+        final Path path = Files.createTempFile("corpus", ".v3c");
+        try (Corpus.Writer w = Corpus.create(path, 1024)) {
+            for (int i = 0; i < 100_000; i++) {
+                final byte[] data = new byte[r.nextInt(100)];
+                r.nextBytes(data);
+                w.write(V3.encodeFunction(r.nextInt(16), type, new Object[] {
+                        new BigInteger(r.nextInt(256) + 1, r), new BigInteger(160, r), BigInteger.valueOf(r.nextInt() >>> 1), data }, true));
+            }
+        }
+        try (Corpus corpus = Corpus.open(path)) {
+            run("read file to heap, copy out and decode 100000", 5, () -> {
+                try {
+                    final ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+                    file.position(Corpus.HEADER_LEN);
+                    for (long n = corpus.recordCount(); n > 0; n--) {
+                        final byte[] record = new byte[file.getInt()];
+                        file.get(record);
+                        sink = V3.decodeFunction(type, record);
+                    }
+                } catch (IOException ioe) {
+                    throw new IllegalStateException(ioe);
+                }
+            });
+            run("map and decode 100000 in place", 5, () -> {
+                for (ByteBuffer record : corpus) {
+                    sink = V3.decodeFunction(type, record);
+                }
+            });
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static void parallelCorpus() throws IOException {
+        final V3Type type = TypeFactory.create("(uint256,address,uint32,bytes)");
+        final Random r = new Random(5L);
+        final Path path = Files.createTempFile("corpus", ".v3c");
+        try (Corpus.Writer w = Corpus.create(path, 1024)) {
+            for (int i = 0; i < 200_000; i++) {
+                final byte[] data = new byte[r.nextInt(100)];
+                r.nextBytes(data);
+                w.write(V3.encodeFunction(r.nextInt(16), type, new Object[] {
+                        new BigInteger(r.nextInt(256) + 1, r), new BigInteger(160, r), BigInteger.valueOf(r.nextInt() >>> 1), data }, true));
+            }
+        }
+        final int cores = Runtime.getRuntime().availableProcessors();
+        try (Corpus corpus = Corpus.open(path)) {
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                final ForkJoinPool pool = new ForkJoinPool(threads);
+                run("decode, filter, sum 200000 on " + threads + " thread(s)", 5, () -> {
+                    try {
+                        sink = pool.submit(() -> corpus.stream(true)
+                                .map(record -> V3.decodeFunction(type, record))
+                                .filter(args -> ((byte[]) args[3]).length > 50)
+                                .mapToLong(args -> ((BigInteger) args[2]).longValue())
+                                .sum()).get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                pool.shutdown();
+                if (threads < cores && threads * 2 > cores) {
+                    threads = cores / 2; // end on exactly the number of cores
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Scalar against whichever {@link BitOps} is selected at runtime. The SIMD one is selected only when running from the
+     * multi-release JAR with the module added, e.g. {@code java --add-modules jdk.incubator.vector -cp
+     * target/abiv3.jar:target/test-classes ...}.
+     */
+    private static void bitOps() {
+        final Random r = new Random(6L);
+        final boolean[] booleans = new boolean[4_096];
+        for (int i = 0; i < booleans.length; i++) {
+            booleans[i] = r.nextBoolean();
+        }
+        final byte[] packed = new byte[BitOps.packedLength(booleans.length)];
+        final boolean[] unpacked = new boolean[booleans.length];
+        final byte[] payload = new byte[65_536];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (r.nextInt(3) == 0 ? 0 : r.nextInt());
+        }
+        final BitOps scalar = new BitOps.Scalar();
+        final BitOps selected = BitOps.get();
+        System.out.println("selected: " + selected.getClass().getSimpleName());
+        run("pack bool[4096], scalar", 200_000, () -> scalar.pack(booleans, packed, 0));
+        run("pack bool[4096], selected", 200_000, () -> selected.pack(booleans, packed, 0));
+        run("unpack bool[4096], scalar", 200_000, () -> scalar.unpack(packed, 0, unpacked));
+        run("unpack bool[4096], selected", 200_000, () -> selected.unpack(packed, 0, unpacked));
+        run("count zeros in 64 KiB, scalar", 20_000, () -> sink = scalar.countZeros(payload, 0, payload.length));
+        run("count zeros in 64 KiB, selected", 20_000, () -> sink = selected.countZeros(payload, 0, payload.length));
+    }
+
+    private static void integers() {
+        final Random r = new Random(7L);
+        final long[] vals = new long[1_024];
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = r.nextLong() >>> r.nextInt(Long.SIZE);
+        }
+        final ByteBuffer bb = ByteBuffer.allocate(vals.length * Long.BYTES);
+        run("len(long) x1024, shift loop as before", 20_000, () -> {
+            int n = 0;
+            for (long v : vals) {
+                for ( ; v != 0; v >>>= Byte.SIZE) {
+                    n++;
+                }
+            }
+            sink = n;
+        });
+        run("len(long) x1024", 20_000, () -> {
+            int n = 0;
+            for (long v : vals) {
+                n += Integers.len(v);
+            }
+            sink = n;
+        });
+        run("putLong x1024, via temp array as before", 20_000, () -> {
+            bb.clear();
+            for (long v : vals) {
+                final byte[] temp = new byte[Long.BYTES];
+                int j = Long.BYTES;
+                for (long x = v; x != 0; x >>>= Byte.SIZE) {
+                    temp[--j] = (byte) x;
+                }
+                bb.put(temp, j, Long.BYTES - j);
+            }
+        });
+        run("putLong x1024", 20_000, () -> {
+            bb.clear();
+            for (long v : vals) {
+                Integers.putLong(v, bb);
+            }
+        });
+        final int[] lens = new int[vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            lens[i] = Integers.len(vals[i]);
+        }
+        final byte[] array = bb.array();
+        run("getLong x1024, via byte loop as before", 20_000, () -> {
+            long sum = 0;
+            int offset = 0;
+            for (int len : lens) {
+                long v = 0L;
+                for (int i = 0; i < len; i++) {
+                    v = (v << Byte.SIZE) | (array[offset + i] & 0xFFL);
+                }
+                sum += v;
+                offset += len;
+            }
+            sink = sum;
+        });
+        run("getLong(byte[]) x1024", 20_000, () -> {
+            long sum = 0;
+            int offset = 0;
+            for (int len : lens) {
+                sum += Integers.getLong(array, offset, len);
+                offset += len;
+            }
+            sink = sum;
+        });
+        run("getLong(ByteBuffer) x1024", 20_000, () -> {
+            final ByteBuffer in = ByteBuffer.wrap(array);
+            long sum = 0;
+            for (int len : lens) {
+                sum += Integers.getLong(in, len);
+            }
+            sink = sum;
+        });
+    }
+
+    private static void decodeTarget() {
+        final V3Type type = TypeFactory.create("(uint64,uint32,int64,bool,bytes32,(uint64,int64)[])");
+        final Object[] levels = new Object[10];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Object[] { BigInteger.valueOf(100_000 + i), BigInteger.valueOf(-i * 1_000L) };
+        }
+        final byte[] encoding = V3.encodeFunction(2, type, new Object[] { BigInteger.valueOf(Long.MAX_VALUE), BigInteger.TEN,
+                BigInteger.valueOf(-5), true, new byte[32], levels }, true);
+        final ByteBuffer bb = ByteBuffer.wrap(encoding);
+        final DecodeTarget target = DecodeTarget.of(type);
+        run("decode tick to Object[]", 500_000, () -> sink = V3.decodeFunction(type, encoding));
+        run("decode tick into reused DecodeTarget", 500_000, () -> {
+            bb.rewind();
+            V3.decodeFunction(target, bb);
+        });
+    }
+
+    private static void callWriter() {
+        final V3Type type = TypeFactory.create("(uint64,uint32,int64,bool,bytes32,(uint64,int64)[])");
+        final byte[] hash = new byte[32];
+        final Object[] levels = new Object[10];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Object[] { BigInteger.valueOf(100_000 + i), BigInteger.valueOf(-i * 1_000L) };
+        }
+        final Object[] args = new Object[] { BigInteger.valueOf(Long.MAX_VALUE), BigInteger.TEN, BigInteger.valueOf(-5), true, hash, levels };
+        final ByteBuffer dest = ByteBuffer.allocate(256);
+        final CallWriter writer = new CallWriter(type);
+        run("encode tick from Object[]", 500_000, () -> {
+            dest.clear();
+            V3.encodeFunction(2, type, args, true, dest);
+        });
+        run("encode tick with reused CallWriter", 500_000, () -> {
+            dest.clear();
+            writer.start(2, true, dest)
+                    .putUint(Long.MAX_VALUE).putUint(10L).putInt(-5L).putBool(true).putBytes(hash)
+                    .beginArray(10);
+            for (int i = 0; i < 10; i++) {
+                writer.beginTuple().putUint(100_000 + i).putInt(-i * 1_000L).endTuple();
+            }
+            writer.endArray().finish();
+        });
+    }
+
+    private static void callReader() {
+        final V3Type type = TypeFactory.create("(uint64,uint32,int64,bool,bytes32,(uint64,int64)[])");
+        final Object[] levels = new Object[10];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Object[] { BigInteger.valueOf(100_000 + i), BigInteger.valueOf(-i * 1_000L) };
+        }
+        final byte[] encoding = V3.encodeFunction(2, type, new Object[] { BigInteger.valueOf(Long.MAX_VALUE), BigInteger.TEN,
+                BigInteger.valueOf(-5), true, new byte[32], levels }, true);
+        final ByteBuffer bb = ByteBuffer.wrap(encoding);
+        final CallReader reader = new CallReader(type);
+        final byte[] hash = new byte[32];
+        run("decode tick to Object[]", 2_000_000, () -> sink = V3.decodeFunction(type, encoding));
+        run("read tick with reused CallReader", 2_000_000, () -> {
+            bb.rewind();
+            reader.start(bb);
+            long sum = reader.nextUint64() + reader.nextUint64() + reader.nextInt64();
+            if (reader.nextBool()) {
+                sum += reader.nextBytesInto(hash, 0);
+            }
+            final int n = reader.enterArray();
+            for (int i = 0; i < n; i++) {
+                reader.enterTuple();
+                sum += reader.nextUint64() * reader.nextInt64();
+                reader.exitTuple();
+            }
+            reader.exitArray();
+            reader.finish();
+            if (sum == 0) throw new AssertionError();
+        });
+    }
+
+    private static void preparedCall() {
+        final V3Type type = TypeFactory.create("(address,address,address,uint256,uint256,uint64)");
+        final BigInteger router = new BigInteger("7a250d5630b4cf539739df2c5dacb4c659f2488d", 16);
+        final BigInteger tokenIn = new BigInteger("c02aaa39b223fe8d0a0e5c4f27ead9083c756cc2", 16);
+        final BigInteger tokenOut = new BigInteger("a0b86991c6218b36c1d19d4a2e9eb0ce3606eb48", 16);
+        final BigInteger minOut = BigInteger.ONE.shiftLeft(100);
+        final BigInteger deadline = BigInteger.valueOf(1_700_000_000L);
+        final BigInteger amount = BigInteger.valueOf(123_456_789_000L);
+        final ByteBuffer dest = ByteBuffer.allocate(256);
+        run("encode swap, all arguments", 1_000_000, () -> {
+            dest.clear();
+            V3.encodeFunction(7, type, new Object[] { router, tokenIn, tokenOut, amount, minOut, deadline }, false, dest);
+        });
+        final PreparedCall call = PreparedCall.of(7, type, new Object[] { router, tokenIn, tokenOut, null, minOut, deadline }, false);
+        run("encode swap, prepared", 1_000_000, () -> {
+            dest.clear();
+            call.encode(dest, new Object[] { amount });
+        });
+        final byte[] buffer = call.newBuffer();
+        final long[] amounts = { 123_456_789_000L };
+        run("patch swap amount in place", 1_000_000, () -> call.patchLong(buffer, 0, amounts[0]++));
+    }
+
+    private static void gathering() {
+        final V3Type type = TypeFactory.create("(uint64,bytes,bytes32)");
+        final Object[] args = { BigInteger.valueOf(9), new byte[256 * 1024], new byte[32] };
+        run("encode 256 KiB proof to byte[]", 5_000, () -> sink = V3.encodeFunction(1, type, args, true));
+        run("encode 256 KiB proof as gather list", 5_000, () -> sink = V3.encodeFunctionGathering(1, type, args, true, 4096));
+    }
+
+    private static void parallelEncode() {
+        final V3Type type = TypeFactory.create("((uint256,address)[])");
+        final Random r = new Random(49L);
+        final Object[] drops = new Object[100_000];
+        for (int i = 0; i < drops.length; i++) {
+            drops[i] = new Object[] { new BigInteger(r.nextInt(100), r), new BigInteger(160, r) };
+        }
+        final Object[] args = { drops };
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        System.out.println("parallelism " + pool.getParallelism());
+        run("encode 100k-element airdrop", 20, () -> sink = V3.encodeFunction(1, type, args, true));
+        run("encode 100k-element airdrop in parallel", 20, () -> sink = V3.encodeFunctionParallel(1, type, args, true, pool));
+    }
+
+    private static void hex() {
+        final V3Type type = TypeFactory.create("(uint64,uint32,int64,bool,bytes32,(uint64,int64)[])");
+        final Object[] levels = new Object[10];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new Object[] { BigInteger.valueOf(100_000 + i), BigInteger.valueOf(-i * 1_000L) };
+        }
+        final byte[] encoding = V3.encodeFunction(2, type, new Object[] { BigInteger.valueOf(Long.MAX_VALUE), BigInteger.TEN,
+                BigInteger.valueOf(-5), true, new byte[32], levels }, true);
+        final String calldata = "0x" + Hex.encode(encoding);
+        run("hex encode, String.format per byte", 100_000, () -> {
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : encoding) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            sink = sb.toString();
+        });
+        run("hex encode, table", 100_000, () -> sink = Hex.encode(encoding));
+        run("hex decode, BigInteger", 100_000, () -> sink = new BigInteger(calldata.substring(2), 16).toByteArray());
+        run("hex decode, table", 100_000, () -> sink = Hex.decode(calldata));
+        final DecodeTarget target = DecodeTarget.of(type);
+        run("decode tick from hex into DecodeTarget", 500_000, () -> V3.decodeFunction(target, calldata));
+    }
+
+    static void run(String name, int iterations, Runnable op) {
+        for (int i = 0; i < iterations; i++) {
+            op.run(); // warm up
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+        System.out.printf("%-48s %12.1f ns/op %14.1f B/op%n", name, (double) elapsed / iterations, (double) allocated / iterations);
+    }
+}